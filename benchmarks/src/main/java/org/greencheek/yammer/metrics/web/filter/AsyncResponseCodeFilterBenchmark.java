@@ -0,0 +1,86 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.mock.web.MockFilterConfig;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockServletContext;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the per request work done by {@link AsyncResponseCodeFilter}'s listener: creating it
+ * when the request goes async (which starts the timer), and recording the request on completion.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AsyncResponseCodeFilterBenchmark {
+
+    @Param({ResponseCodeFilter.METER_TYPE_DEFAULT, ResponseCodeFilter.METER_TYPE_STRIPED, ResponseCodeFilter.METER_TYPE_LAZY})
+    public String meterType;
+
+    private AsyncResponseCodeFilter filter;
+
+    @Setup
+    public void setUp() throws ServletException {
+        MockFilterConfig config = new MockFilterConfig(new MockServletContext(), "async-benchmark-filter");
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_METER_TYPE, meterType);
+
+        filter = new AsyncResponseCodeFilter();
+        filter.init(config);
+    }
+
+    @TearDown
+    public void tearDown() {
+        filter.destroy();
+    }
+
+    /**
+     * The request and the completion event used by a single benchmark thread
+     */
+    @State(Scope.Thread)
+    public static class AsyncRequestState {
+        public MockHttpServletRequest request;
+        public MockHttpServletResponse response;
+        public AsyncEvent completeEvent;
+
+        @Setup
+        public void setUp() {
+            request = new MockHttpServletRequest("GET", "/resource");
+            request.setServletPath("/resource");
+            response = new MockHttpServletResponse();
+            response.setStatus(HttpServletResponse.SC_OK);
+            completeEvent = new AsyncEvent(new BenchmarkAsyncContext(request, response));
+        }
+    }
+
+    @Benchmark
+    public void listenerLifecycle(AsyncRequestState state) throws IOException {
+        AsyncListener listener = filter.new AsyncMetricsRequestResponseListener(state.request, state.response, filter.startTiming(), System.nanoTime());
+        listener.onComplete(state.completeEvent);
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Runs all the filter benchmarks with 1, 8 and (number of processors) threads, with the gc
+ * profiler so that the allocation per request is reported alongside the time.  The results for
+ * each thread count are written to jmh-result-[threads]-threads.json, to compare against a baseline.
+ *
+ * Any arguments are passed on to jmh, i.e. "-p meterType=striped" to only run the striped meters.
+ */
+public class FilterBenchmarks {
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+
+        Set<Integer> threadCounts = new TreeSet<Integer>();
+        threadCounts.add(1);
+        threadCounts.add(8);
+        threadCounts.add(Runtime.getRuntime().availableProcessors());
+
+        for(int threads : threadCounts) {
+            Options options = new OptionsBuilder()
+                    .parent(commandLineOptions)
+                    .include(FilterBenchmarks.class.getPackage().getName() + ".*Benchmark")
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("jmh-result-" + threads + "-threads.json")
+                    .build();
+
+            new Runner(options).run();
+        }
+    }
+}
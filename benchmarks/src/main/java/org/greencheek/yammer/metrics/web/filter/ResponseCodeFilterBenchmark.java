@@ -0,0 +1,134 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.core.Timer;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.mock.web.MockFilterConfig;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.mock.web.MockServletContext;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the per request work done by {@link ResponseCodeFilter}: the whole of doFilter
+ * (with a chain that only sets the status), and each of the steps it is made up of.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseCodeFilterBenchmark {
+
+    @Param({ResponseCodeFilter.METER_TYPE_DEFAULT, ResponseCodeFilter.METER_TYPE_STRIPED, ResponseCodeFilter.METER_TYPE_LAZY})
+    public String meterType;
+
+    @Param({"false", "true"})
+    public String backgroundAggregation;
+
+    @Param({ResponseCodeFilter.METRICS_BACKEND_YAMMER, ResponseCodeFilter.METRICS_BACKEND_BUILTIN})
+    public String metricsBackend;
+
+    private ResponseCodeFilter filter;
+
+    @Setup
+    public void setUp() throws ServletException {
+        MockFilterConfig config = new MockFilterConfig(new MockServletContext(), "sync-benchmark-filter");
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_METER_TYPE, meterType);
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_BACKGROUND_AGGREGATION, backgroundAggregation);
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_METRICS_BACKEND, metricsBackend);
+
+        filter = new ResponseCodeFilter();
+        filter.init(config);
+    }
+
+    @TearDown
+    public void tearDown() {
+        filter.destroy();
+    }
+
+    /**
+     * The request, response and chain used by a single benchmark thread
+     */
+    @State(Scope.Thread)
+    public static class RequestState {
+        // not final, so the jit cannot fold the method comparisons away
+        public String get = "GET";
+        public String delete = "DELETE";
+        public String options = "OPTIONS";
+        public String path = "/resource";
+        public String adminPath = "/ping";
+        public int status = HttpServletResponse.SC_OK;
+
+        public MockHttpServletRequest request;
+        public MockHttpServletResponse response;
+        public FilterChain chain;
+
+        @Setup
+        public void setUp() {
+            request = new MockHttpServletRequest(get, path);
+            request.setServletPath(path);
+            response = new MockHttpServletResponse();
+            chain = new FilterChain() {
+                @Override
+                public void doFilter(ServletRequest request, ServletResponse response) {
+                    ((HttpServletResponse) response).setStatus(status);
+                }
+            };
+        }
+    }
+
+    @Benchmark
+    public void doFilter(RequestState state) throws IOException, ServletException {
+        filter.doFilter(state.request, state.response, state.chain);
+    }
+
+    @Benchmark
+    public Timer getTimerForGetRequest(RequestState state) {
+        return filter.getTimerForCurrentRequestMethodType(state.get);
+    }
+
+    @Benchmark
+    public Timer getTimerForDeleteRequest(RequestState state) {
+        return filter.getTimerForCurrentRequestMethodType(state.delete);
+    }
+
+    @Benchmark
+    public Timer getTimerForOtherRequest(RequestState state) {
+        return filter.getTimerForCurrentRequestMethodType(state.options);
+    }
+
+    @Benchmark
+    public void updateResponseRate(RequestState state) {
+        filter.updateResponseRate(state.status);
+    }
+
+    @Benchmark
+    public void updateAdminMetricsIfRequestMatched(RequestState state) {
+        filter.updateAdminMetricsIfRequestMatched(state.path);
+    }
+
+    @Benchmark
+    public void updateAdminMetricsIfAdminRequestMatched(RequestState state) {
+        filter.updateAdminMetricsIfRequestMatched(state.adminPath);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yammer.metrics.core;
+
+import com.yammer.metrics.stats.Sample;
+import com.yammer.metrics.stats.Snapshot;
+
+/**
+ * A {@link Histogram} whose recording and statistics are all supplied by a subclass.
+ *
+ * {@link Histogram}'s constructors are package private, and its own implementation keeps a sample along with
+ * atomic min, max, sum and variance (allocating a new variance array on every update).  This class opens the
+ * constructor up with a sample that keeps nothing, so that a histogram with a different implementation is still
+ * reported as a histogram by every {@link MetricProcessor}.
+ */
+public abstract class ExtensibleHistogram extends Histogram {
+
+    private static final Sample NO_SAMPLE = new Sample() {
+        @Override
+        public void clear() {
+        }
+
+        @Override
+        public int size() {
+            return 0;
+        }
+
+        @Override
+        public void update(long value) {
+        }
+
+        @Override
+        public Snapshot getSnapshot() {
+            return new Snapshot(new double[0]);
+        }
+    };
+
+    /**
+     * Note that {@link Histogram}'s constructor calls {@link #clear()}, before the subclass's fields are set
+     */
+    protected ExtensibleHistogram() {
+        super(NO_SAMPLE);
+    }
+
+    @Override
+    public void update(int value) {
+        update((long) value);
+    }
+
+    @Override
+    public abstract void update(long value);
+
+    @Override
+    public abstract void clear();
+
+    @Override
+    public abstract long count();
+
+    @Override
+    public abstract double max();
+
+    @Override
+    public abstract double min();
+
+    @Override
+    public abstract double mean();
+
+    @Override
+    public abstract double stdDev();
+
+    @Override
+    public abstract double sum();
+
+    @Override
+    public abstract Snapshot getSnapshot();
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yammer.metrics.core;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link Meter} whose counting and rate calculation is supplied by a subclass.
+ *
+ * {@link Meter}'s constructor and its 5 second {@code tick()} are package private.  This
+ * class opens both up, so that a subclass can keep its own count and fold it into its
+ * own rates on yammer's meter tick thread, whilst still being reported as a meter
+ * by every {@link MetricProcessor}.
+ *
+ * A subclass that decays its own rates (rather than being ticked) can be created without a
+ * tick thread, in which case {@code tick()} is never called for it.
+ */
+public abstract class ExtensibleMeter extends Meter {
+
+    protected ExtensibleMeter(ScheduledExecutorService tickThread, String eventType, TimeUnit rateUnit, Clock clock) {
+        super(tickThread, eventType, rateUnit, clock);
+    }
+
+    /**
+     * A meter that is never ticked
+     */
+    protected ExtensibleMeter(String eventType, TimeUnit rateUnit, Clock clock) {
+        this(UnscheduledExecutor.INSTANCE, eventType, rateUnit, clock);
+    }
+
+    /**
+     * Called every 5 seconds by the tick thread the meter was created with (if any).
+     */
+    @Override
+    protected abstract void tick();
+
+    @Override
+    public abstract void mark(long n);
+
+    @Override
+    public abstract long count();
+
+    @Override
+    public abstract double fifteenMinuteRate();
+
+    @Override
+    public abstract double fiveMinuteRate();
+
+    @Override
+    public abstract double meanRate();
+
+    @Override
+    public abstract double oneMinuteRate();
+}
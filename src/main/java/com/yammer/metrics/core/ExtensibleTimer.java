@@ -0,0 +1,108 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yammer.metrics.core;
+
+import com.yammer.metrics.stats.Snapshot;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link Timer} whose recording, rates and statistics are all supplied by a subclass.
+ *
+ * {@link Timer}'s constructor is package private.  This class opens it up, so that a timer with
+ * a different histogram (or meter) implementation is still reported as a timer by every
+ * {@link MetricProcessor}.  The meter and histogram that {@link Timer} creates for itself are never
+ * updated, and the meter is stopped straight away so that it is not ticked.
+ */
+public abstract class ExtensibleTimer extends Timer {
+
+    protected ExtensibleTimer(ScheduledExecutorService tickThread, TimeUnit durationUnit, TimeUnit rateUnit, Clock clock) {
+        super(tickThread, durationUnit, rateUnit, clock);
+        super.stop();
+    }
+
+    /**
+     * A timer that creates no tick thread (its own unused meter is never ticked)
+     */
+    protected ExtensibleTimer(TimeUnit durationUnit, TimeUnit rateUnit, Clock clock) {
+        this(UnscheduledExecutor.INSTANCE, durationUnit, rateUnit, clock);
+    }
+
+    /**
+     * A new, unregistered, histogram with the same biased (exponentially decaying) sample as a timer's
+     */
+    protected static Histogram newBiasedHistogram() {
+        return new Histogram(Histogram.SampleType.BIASED);
+    }
+
+    /**
+     * Timer's own implementation updates its private histogram directly, so record through
+     * {@link #update(long, TimeUnit)} instead.
+     */
+    @Override
+    public <T> T time(Callable<T> event) throws Exception {
+        final long startTime = System.nanoTime();
+        try {
+            return event.call();
+        } finally {
+            update(System.nanoTime() - startTime, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @Override
+    public abstract void update(long duration, TimeUnit unit);
+
+    @Override
+    public abstract void clear();
+
+    @Override
+    public abstract long count();
+
+    @Override
+    public abstract double fifteenMinuteRate();
+
+    @Override
+    public abstract double fiveMinuteRate();
+
+    @Override
+    public abstract double meanRate();
+
+    @Override
+    public abstract double oneMinuteRate();
+
+    @Override
+    public abstract double max();
+
+    @Override
+    public abstract double min();
+
+    @Override
+    public abstract double mean();
+
+    @Override
+    public abstract double stdDev();
+
+    @Override
+    public abstract double sum();
+
+    @Override
+    public abstract Snapshot getSnapshot();
+
+    @Override
+    public abstract void stop();
+}
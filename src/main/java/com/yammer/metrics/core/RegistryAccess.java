@@ -0,0 +1,38 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yammer.metrics.core;
+
+/**
+ * Gives the response code filter access to {@link MetricsRegistry#getOrAdd(MetricName, Metric)}.
+ *
+ * The registry only exposes factory methods for its own metric implementations, so registering
+ * one of the filter's own {@link Meter} or {@link Timer} subclasses under an existing
+ * {@link MetricName} has to go through the protected method, which is only reachable
+ * from this package.
+ */
+public final class RegistryAccess {
+
+    private RegistryAccess() {
+    }
+
+    /**
+     * Registers the given metric under the given name, unless a metric is already registered
+     * under that name, in which case the existing metric is returned.
+     */
+    public static <T extends Metric> T getOrAdd(MetricsRegistry registry, MetricName name, T metric) {
+        return registry.getOrAdd(name, metric);
+    }
+}
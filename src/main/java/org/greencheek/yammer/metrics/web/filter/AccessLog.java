@@ -0,0 +1,524 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A binary access log: a fixed width record per request, appended to rolling memory mapped segment files.
+ *
+ * Request threads never write to a file, or take a lock.  Each thread appends its records to its own
+ * buffer (a single producer, single consumer ring of records); a single daemon thread drains every thread's
+ * buffer into the current segment every flush interval, rolling to a new segment when it is full.  If a
+ * thread's buffer is full, because the flush thread has fallen behind, the record is dropped and counted.
+ *
+ * Paths are dictionary encoded: each distinct path is given an id the first time it is seen, and the
+ * id to path mappings are appended to the run's dictionary file.  Once {@code maxPaths} ids have been given out,
+ * further new paths are recorded as {@link #OTHER_PATH_ID}.
+ *
+ * When the log stops, the buffers' record arrays are released and the log drops its thread local; so the
+ * container's threads only keep an empty buffer (and, through its class, the webapp's classloader) until their
+ * stale thread local entries are expunged.  Appends after the log has stopped are ignored.
+ *
+ * <h3>Files</h3>
+ * Each run of the log (from the filter starting to it being destroyed) writes a dictionary file,
+ * {@code <name>-<run>.dict}, and segments {@code <name>-<run>-<segment>.seg}; where the run is the 13 digit
+ * start time in milliseconds, and the segment an 8 digit sequence, so the files sort in the order they were
+ * written.  Only the newest {@code maxSegments} segments are kept.  All values are little endian.
+ * <pre>
+ * dictionary file
+ *   0   int   magic, 0x52434144 ("RCAD")
+ *   4   int   layout version, 1
+ *   8   int   M, the number of request methods (the last is "other")
+ *   12  M request method names, each an int byte length then the UTF-8 bytes
+ *   then path entries, each an int id, then an int byte length and the path's UTF-8 bytes
+ *
+ * segment file
+ *   0   int   magic, 0x5243414C ("RCAL")
+ *   4   int   layout version, 1
+ *   8   int   record size in bytes, 32
+ *   12  int   capacity, in records
+ *   16  long  number of records written (updated after the records, on each flush)
+ *   24  long  time the segment was created, in milliseconds since the epoch
+ *   32  long  segment sequence number
+ *   40  24 bytes reserved, zero
+ *   64  records
+ *
+ * record (32 bytes)
+ *   0   long  time the request completed, in milliseconds since the epoch
+ *   8   long  duration in nanoseconds, or -1 if the request was not timed
+ *   16  int   path id, from the dictionary
+ *   20  int   status code
+ *   24  int   request method index, into the dictionary's request method names
+ *   28  int   reserved, zero
+ * </pre>
+ * {@link AccessLogReader} reads the records back.
+ */
+public class AccessLog implements Runnable {
+
+    public static final int DICTIONARY_MAGIC = 0x52434144;
+    public static final int SEGMENT_MAGIC = 0x5243414C;
+    public static final int VERSION = 1;
+
+    public static final int SEGMENT_HEADER_SIZE = 64;
+    public static final int RECORD_SIZE = 32;
+
+    public static final int SEGMENT_VERSION_OFFSET = 4;
+    public static final int SEGMENT_RECORD_SIZE_OFFSET = 8;
+    public static final int SEGMENT_CAPACITY_OFFSET = 12;
+    public static final int SEGMENT_RECORD_COUNT_OFFSET = 16;
+    public static final int SEGMENT_CREATED_OFFSET = 24;
+    public static final int SEGMENT_SEQUENCE_OFFSET = 32;
+
+    public static final int RECORD_TIMESTAMP_OFFSET = 0;
+    public static final int RECORD_DURATION_OFFSET = 8;
+    public static final int RECORD_PATH_OFFSET = 16;
+    public static final int RECORD_STATUS_OFFSET = 20;
+    public static final int RECORD_METHOD_OFFSET = 24;
+
+    public static final int OTHER_PATH_ID = 0;
+    public static final String OTHER_PATH = "(other)";
+
+    static final String DICTIONARY_SUFFIX = ".dict";
+    static final String SEGMENT_SUFFIX = ".seg";
+    // the run and segment parts of the file names
+    static final String RUN_PATTERN = "[0-9]{13}";
+    static final String SEGMENT_PATTERN = "[0-9]{8}";
+
+    /**
+     * A thread's own ring of records.  Only the owning thread appends, and only the flush thread drains.
+     */
+    static final class ThreadBuffer {
+        final Thread owner;
+        final int capacity;
+        final int mask;
+        final AtomicLong tail = new AtomicLong();
+        final AtomicLong head = new AtomicLong();
+        // set when the log stops, before the arrays are released
+        volatile boolean stopped;
+        volatile byte[] bytes;
+        volatile ByteBuffer records;
+
+        ThreadBuffer(Thread owner, int capacity) {
+            int size = 2;
+            while(size < capacity) {
+                size <<= 1;
+            }
+            this.owner = owner;
+            this.capacity = size;
+            this.mask = size - 1;
+            this.bytes = new byte[size * RECORD_SIZE];
+            this.records = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /**
+         * Appends a record, returning false if the buffer is full or stopped
+         */
+        boolean append(long timestamp, long durationNanos, int pathId, int status, int methodIndex) {
+            // read before the stopped flag, so a buffer that is not yet stopped still has its records
+            final ByteBuffer records = this.records;
+            if(stopped) {
+                return false;
+            }
+            final long position = tail.get();
+            if(position - head.get() == capacity) {
+                return false;
+            }
+            final int record = (int) (position & mask) * RECORD_SIZE;
+            records.putLong(record + RECORD_TIMESTAMP_OFFSET, timestamp);
+            records.putLong(record + RECORD_DURATION_OFFSET, durationNanos);
+            records.putInt(record + RECORD_PATH_OFFSET, pathId);
+            records.putInt(record + RECORD_STATUS_OFFSET, status);
+            records.putInt(record + RECORD_METHOD_OFFSET, methodIndex);
+            // publishes the record to the flush thread
+            tail.lazySet(position + 1);
+            return true;
+        }
+
+        /**
+         * Stops the buffer, and releases its records.  Any records left in it are lost.
+         */
+        void stop() {
+            stopped = true;
+            records = null;
+            bytes = null;
+        }
+    }
+
+    private static final class PathEntry {
+        final int id;
+        final String path;
+
+        PathEntry(int id, String path) {
+            this.id = id;
+            this.path = path;
+        }
+    }
+
+    private final File directory;
+    private final String runPrefix;
+    private final String name;
+    private final int segmentCapacity;
+    private final int maxSegments;
+    private final int threadBufferRecords;
+    private final int maxPaths;
+    private final long flushIntervalNanos;
+
+    private final ConcurrentHashMap<String, Integer> pathIds = new ConcurrentHashMap<String, Integer>();
+    private final AtomicInteger nextPathId = new AtomicInteger(OTHER_PATH_ID + 1);
+    private final ConcurrentLinkedQueue<PathEntry> newPaths = new ConcurrentLinkedQueue<PathEntry>();
+    private final CopyOnWriteArrayList<ThreadBuffer> threadBuffers = new CopyOnWriteArrayList<ThreadBuffer>();
+    // dropped when the log stops
+    private volatile ThreadLocal<ThreadBuffer> threadBuffer = new ThreadLocal<ThreadBuffer>() {
+        @Override
+        protected ThreadBuffer initialValue() {
+            ThreadBuffer buffer = new ThreadBuffer(Thread.currentThread(), threadBufferRecords);
+            threadBuffers.add(buffer);
+            if(!running) {
+                // lost a race with stop(), which may already have stopped the other buffers
+                buffer.stop();
+            }
+            return buffer;
+        }
+    };
+    private final AtomicLong droppedRecords = new AtomicLong();
+
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    // Held by whoever is flushing: the flush thread, or stop().  Request threads never take it.
+    private final Object flushLock = new Object();
+    // Only used while holding the flush lock
+    private boolean closed;
+    private final FileChannel dictionary;
+    private final ByteBuffer dictionaryEntry = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+    private MappedByteBuffer segment;
+    private long segmentSequence;
+    private int segmentRecords;
+
+    /**
+     * Creates the run's dictionary file and first segment
+     *
+     * @param name the prefix of the log's file names
+     * @param methodNames the request method names, with "other" last
+     */
+    public AccessLog(File directory, String name, List<String> methodNames, int segmentCapacity, int maxSegments,
+                     int threadBufferRecords, int maxPaths, long flushIntervalNanos) throws IOException {
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create the access log directory " + directory);
+        }
+        this.directory = directory;
+        this.name = name;
+        this.runPrefix = name + '-' + String.format("%013d", System.currentTimeMillis());
+        this.segmentCapacity = segmentCapacity;
+        this.maxSegments = Math.max(1, maxSegments);
+        this.threadBufferRecords = threadBufferRecords;
+        this.maxPaths = maxPaths;
+        this.flushIntervalNanos = flushIntervalNanos;
+
+        this.dictionary = new RandomAccessFile(new File(directory, runPrefix + DICTIONARY_SUFFIX), "rw").getChannel();
+        this.dictionary.truncate(0);
+        writeDictionaryHeader(methodNames);
+        pathIds.put(OTHER_PATH, OTHER_PATH_ID);
+        writeDictionaryEntry(OTHER_PATH_ID, OTHER_PATH);
+        rollSegment();
+
+        this.thread = new Thread(this, name + "-access-log");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Appends a request's record to the current thread's buffer
+     *
+     * @param durationNanos the request's duration, or -1 if it was not timed
+     */
+    public void append(int methodIndex, String path, int status, long durationNanos) {
+        final ThreadLocal<ThreadBuffer> buffers = threadBuffer;
+        if(buffers == null) {
+            return;
+        }
+        final ThreadBuffer buffer = buffers.get();
+        if(buffer.stopped) {
+            // the log has stopped, so the thread should not keep its buffer
+            buffers.remove();
+            return;
+        }
+        if(!buffer.append(System.currentTimeMillis(), durationNanos, pathId(path), status, methodIndex)
+                && !buffer.stopped) {
+            droppedRecords.incrementAndGet();
+        }
+    }
+
+    /**
+     * The number of records dropped because a thread's buffer was full
+     */
+    public long getDroppedRecords() {
+        return droppedRecords.get();
+    }
+
+    private int pathId(String path) {
+        if(path == null) {
+            return OTHER_PATH_ID;
+        }
+        final Integer id = pathIds.get(path);
+        if(id != null) {
+            return id;
+        }
+        final int newId = reservePathId();
+        if(newId == OTHER_PATH_ID) {
+            return OTHER_PATH_ID;
+        }
+        final Integer existing = pathIds.putIfAbsent(path, newId);
+        if(existing != null) {
+            // another thread added the path first; the reserved id goes unused
+            return existing;
+        }
+        newPaths.add(new PathEntry(newId, path));
+        return newId;
+    }
+
+    /**
+     * Reserves the next path id, or returns {@link #OTHER_PATH_ID} once {@code maxPaths} ids (including the other
+     * path's) have been reserved
+     */
+    private int reservePathId() {
+        while(true) {
+            final int id = nextPathId.get();
+            if(id >= maxPaths) {
+                return OTHER_PATH_ID;
+            }
+            if(nextPathId.compareAndSet(id, id + 1)) {
+                return id;
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while(running) {
+            flushSafely();
+            LockSupport.parkNanos(this, flushIntervalNanos);
+        }
+    }
+
+    private void flushSafely() {
+        try {
+            synchronized(flushLock) {
+                if(!closed) {
+                    flush();
+                }
+            }
+        } catch(IOException e) {
+            // a failing write must not stop the thread; what was being written may be lost
+        } catch(RuntimeException e) {
+            // as above
+        }
+    }
+
+    /**
+     * Writes the new paths to the dictionary, and drains every thread's buffer into the segments.
+     * Only called holding the flush lock.
+     */
+    void flush() throws IOException {
+        PathEntry entry;
+        while((entry = newPaths.poll()) != null) {
+            writeDictionaryEntry(entry.id, entry.path);
+        }
+        for(ThreadBuffer buffer : threadBuffers) {
+            drain(buffer);
+            if(!buffer.owner.isAlive() && buffer.head.get() == buffer.tail.get()) {
+                threadBuffers.remove(buffer);
+            }
+        }
+        segment.putLong(SEGMENT_RECORD_COUNT_OFFSET, segmentRecords);
+    }
+
+    private void drain(ThreadBuffer buffer) throws IOException {
+        long head = buffer.head.get();
+        final long tail = buffer.tail.get();
+        while(head < tail) {
+            if(segmentRecords == segmentCapacity) {
+                rollSegment();
+            }
+            final int slot = (int) (head & buffer.mask);
+            final int records = (int) Math.min(tail - head, Math.min(buffer.capacity - slot, segmentCapacity - segmentRecords));
+            segment.position(SEGMENT_HEADER_SIZE + (segmentRecords * RECORD_SIZE));
+            segment.put(buffer.bytes, slot * RECORD_SIZE, records * RECORD_SIZE);
+            segmentRecords += records;
+            head += records;
+            // hands the slots back to the owning thread
+            buffer.head.lazySet(head);
+        }
+    }
+
+    private void rollSegment() throws IOException {
+        if(segment != null) {
+            segment.putLong(SEGMENT_RECORD_COUNT_OFFSET, segmentRecords);
+            segment.force();
+        }
+        segmentSequence++;
+        final int size = SEGMENT_HEADER_SIZE + (segmentCapacity * RECORD_SIZE);
+        final RandomAccessFile file = new RandomAccessFile(new File(directory,
+                runPrefix + '-' + String.format("%08d", segmentSequence) + SEGMENT_SUFFIX), "rw");
+        try {
+            file.setLength(0);
+            file.setLength(size);
+            segment = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            file.close();
+        }
+        segment.order(ByteOrder.LITTLE_ENDIAN);
+        segment.putInt(SEGMENT_VERSION_OFFSET, VERSION);
+        segment.putInt(SEGMENT_RECORD_SIZE_OFFSET, RECORD_SIZE);
+        segment.putInt(SEGMENT_CAPACITY_OFFSET, segmentCapacity);
+        segment.putLong(SEGMENT_RECORD_COUNT_OFFSET, 0);
+        segment.putLong(SEGMENT_CREATED_OFFSET, System.currentTimeMillis());
+        segment.putLong(SEGMENT_SEQUENCE_OFFSET, segmentSequence);
+        segment.putInt(0, SEGMENT_MAGIC);
+        segmentRecords = 0;
+        deleteOldSegments();
+    }
+
+    /**
+     * Deletes all but the newest segments of the log, and the dictionaries of earlier runs that no longer have
+     * any segments
+     */
+    private void deleteOldSegments() {
+        final File[] segments = listFiles(directory, name, RUN_PATTERN + '-' + SEGMENT_PATTERN, SEGMENT_SUFFIX);
+        for(int i = 0; i < segments.length - maxSegments; i++) {
+            segments[i].delete();
+        }
+        for(File dictionaryFile : listFiles(directory, name, RUN_PATTERN, DICTIONARY_SUFFIX)) {
+            final String run = dictionaryFile.getName().substring(0, dictionaryFile.getName().length() - DICTIONARY_SUFFIX.length());
+            if(!run.equals(runPrefix) && listFiles(directory, run, SEGMENT_PATTERN, SEGMENT_SUFFIX).length == 0) {
+                dictionaryFile.delete();
+            }
+        }
+    }
+
+    /**
+     * The log's files named {@code <prefix>-<pattern><suffix>}, sorted by name (so in the order they were written)
+     */
+    static File[] listFiles(File directory, final String prefix, final String pattern, final String suffix) {
+        final File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String fileName) {
+                return fileName.startsWith(prefix + '-') && fileName.endsWith(suffix)
+                        && fileName.length() > prefix.length() + 1 + suffix.length()
+                        && fileName.substring(prefix.length() + 1, fileName.length() - suffix.length()).matches(pattern);
+            }
+        });
+        if(files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    private void writeDictionaryHeader(List<String> methodNames) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(DICTIONARY_MAGIC).putInt(VERSION).putInt(methodNames.size());
+        writeFully(header);
+        for(String method : methodNames) {
+            final byte[] bytes = method.getBytes("UTF-8");
+            writeFully(dictionaryBuffer(4 + bytes.length).putInt(bytes.length).put(bytes));
+        }
+    }
+
+    private void writeDictionaryEntry(int id, String path) throws IOException {
+        final byte[] bytes = path.getBytes("UTF-8");
+        writeFully(dictionaryBuffer(8 + bytes.length).putInt(id).putInt(bytes.length).put(bytes));
+    }
+
+    /**
+     * The reusable dictionary entry buffer, cleared; or a larger buffer for an unusually long entry
+     */
+    private ByteBuffer dictionaryBuffer(int size) {
+        if(size > dictionaryEntry.capacity()) {
+            return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        dictionaryEntry.clear();
+        return dictionaryEntry;
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while(buffer.hasRemaining()) {
+            dictionary.write(buffer);
+        }
+    }
+
+    /**
+     * Stops the flush thread, flushing the records left in the threads' buffers, and closes the log.  The final
+     * flush is made under the flush lock, so it happens even if the flush thread has not exited within 5 seconds
+     * (once that thread's current flush completes).  Records appended after the final flush are not written.
+     */
+    public void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized(flushLock) {
+            if(closed) {
+                return;
+            }
+            try {
+                flush();
+            } catch(IOException e) {
+                // what was being written is lost
+            } catch(RuntimeException e) {
+                // as above
+            }
+            closed = true;
+            segment.force();
+            MappedBuffers.unmap(segment);
+            segment = null;
+            try {
+                dictionary.close();
+            } catch(IOException e) {
+                // nothing more to write
+            }
+            for(ThreadBuffer buffer : threadBuffers) {
+                buffer.stop();
+            }
+            threadBuffers.clear();
+            threadBuffer = null;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Streams the records of an {@link AccessLog} back, run by run and segment by segment in the order they were
+ * written, decoding the request method and path of each record from its run's dictionary.
+ *
+ * Reading a log that is still being written sees each segment up to its last flush.
+ */
+public class AccessLogReader {
+
+    /**
+     * Receives each record read
+     */
+    public interface Handler {
+        /**
+         * @param durationNanos the request's duration, or -1 if it was not timed
+         */
+        void onRecord(long timestampMillis, String method, String path, int status, long durationNanos);
+    }
+
+    private final File directory;
+    private final String name;
+
+    /**
+     * @param name the prefix of the log's file names, as given to the {@link AccessLog}
+     */
+    public AccessLogReader(File directory, String name) {
+        this.directory = directory;
+        this.name = name;
+    }
+
+    /**
+     * Passes every record in the log to the handler
+     *
+     * @return the number of records read
+     */
+    public long read(Handler handler) throws IOException {
+        long records = 0;
+        for(File dictionaryFile : AccessLog.listFiles(directory, name, AccessLog.RUN_PATTERN, AccessLog.DICTIONARY_SUFFIX)) {
+            final String run = dictionaryFile.getName().substring(0, dictionaryFile.getName().length() - AccessLog.DICTIONARY_SUFFIX.length());
+            final Map<Integer, String> paths = new HashMap<Integer, String>();
+            final String[] methods = readDictionary(dictionaryFile, paths);
+            for(File segment : AccessLog.listFiles(directory, run, AccessLog.SEGMENT_PATTERN, AccessLog.SEGMENT_SUFFIX)) {
+                records += readSegment(segment, methods, paths, handler);
+            }
+        }
+        return records;
+    }
+
+    private static MappedByteBuffer map(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads the request method names, and adds the path entries to the given map.  An entry that was only
+     * partly written is ignored.
+     */
+    private static String[] readDictionary(File dictionaryFile, Map<Integer, String> paths) throws IOException {
+        final MappedByteBuffer dictionary = map(dictionaryFile);
+        if(dictionary.remaining() < 12 || dictionary.getInt() != AccessLog.DICTIONARY_MAGIC) {
+            throw new IOException("Not an access log dictionary " + dictionaryFile);
+        }
+        if(dictionary.getInt() != AccessLog.VERSION) {
+            throw new IOException("Unsupported access log dictionary version " + dictionaryFile);
+        }
+        final String[] methods = new String[dictionary.getInt()];
+        for(int i = 0; i < methods.length; i++) {
+            methods[i] = readString(dictionary, dictionary.getInt());
+        }
+        while(dictionary.remaining() >= 8) {
+            final int id = dictionary.getInt();
+            final int length = dictionary.getInt();
+            if(length < 0 || length > dictionary.remaining()) {
+                break;
+            }
+            paths.put(id, readString(dictionary, length));
+        }
+        return methods;
+    }
+
+    private static String readString(MappedByteBuffer buffer, int length) throws IOException {
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static long readSegment(File segmentFile, String[] methods, Map<Integer, String> paths, Handler handler) throws IOException {
+        final MappedByteBuffer segment = map(segmentFile);
+        if(segment.limit() < AccessLog.SEGMENT_HEADER_SIZE || segment.getInt(0) != AccessLog.SEGMENT_MAGIC) {
+            // not yet initialised
+            return 0;
+        }
+        final int recordSize = segment.getInt(AccessLog.SEGMENT_RECORD_SIZE_OFFSET);
+        final long count = Math.min(segment.getLong(AccessLog.SEGMENT_RECORD_COUNT_OFFSET),
+                (segment.limit() - AccessLog.SEGMENT_HEADER_SIZE) / recordSize);
+        for(long i = 0; i < count; i++) {
+            final int record = (int) (AccessLog.SEGMENT_HEADER_SIZE + (i * recordSize));
+            final int methodIndex = segment.getInt(record + AccessLog.RECORD_METHOD_OFFSET);
+            final String path = paths.get(segment.getInt(record + AccessLog.RECORD_PATH_OFFSET));
+            handler.onRecord(segment.getLong(record + AccessLog.RECORD_TIMESTAMP_OFFSET),
+                    methodIndex >= 0 && methodIndex < methods.length ? methods[methodIndex] : null,
+                    path == null ? AccessLog.OTHER_PATH : path,
+                    segment.getInt(record + AccessLog.RECORD_STATUS_OFFSET),
+                    segment.getLong(record + AccessLog.RECORD_DURATION_OFFSET));
+        }
+        return count;
+    }
+}
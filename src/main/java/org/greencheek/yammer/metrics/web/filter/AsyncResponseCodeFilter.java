@@ -15,13 +15,19 @@
  */
 package org.greencheek.yammer.metrics.web.filter;
 
-import com.yammer.metrics.core.TimerContext;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.Timer;
 
 import javax.servlet.*;
 import javax.servlet.annotation.WebFilter;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 
 /**
@@ -33,53 +39,229 @@ import java.io.IOException;
  */
 public class AsyncResponseCodeFilter extends ResponseCodeFilter
 {
+    public static final String METRIC_NAME_LOOKUP_ASYNC_TIMEOUTS = "async-timeouts";
+    public static final String METRIC_NAME_LOOKUP_ASYNC_ERRORS = "async-errors";
+    public static final String METRIC_NAME_LOOKUP_ASYNC_TIMED_OUT_REQUESTS = "async-timed-out-requests";
+    public static final String METRIC_NAME_LOOKUP_SYNC_PATH_REQUESTS = "sync-path-requests";
+    public static final String METRIC_NAME_LOOKUP_ASYNC_PATH_REQUESTS = "async-path-requests";
+    public static final String METRIC_NAME_LOOKUP_ASYNC_REQUESTS_IN_FLIGHT = "async-requests-in-flight";
+    // suffixes of the per request method async timers, i.e. get-async-wait-requests
+    public static final String METRIC_NAME_LOOKUP_ASYNC_CONTAINER_SUFFIX = "-async-container-requests";
+    public static final String METRIC_NAME_LOOKUP_ASYNC_WAIT_SUFFIX = "-async-wait-requests";
+    public static final String METRIC_NAME_LOOKUP_ASYNC_TOTAL_SUFFIX = "-async-total-requests";
+
+    // The requests per second that completed on the container thread, and that went async
+    private Meter syncPathRequests;
+    private Meter asyncPathRequests;
+
+    // The async requests that timed out, or failed with an error, per second
+    private Meter asyncTimeouts;
+    private Meter asyncErrors;
+
+    // The time timed out requests were in async, before they timed out
+    private Timer timeTakenForTimedOutRequests;
+
+    // Timers for async requests, indexed by request method (as the request method timers are): the time
+    // until the chain returned on the container thread, the time from then until completion, and the total
+    private Timer[] asyncContainerTimeForRequestMethods;
+    private Timer[] asyncWaitTimeForRequestMethods;
+    private Timer[] asyncTotalTimeForRequestMethods;
+
+    // The async requests that have not yet completed
+    private final StripedCounter asyncRequestsInFlight = new StripedCounter();
+
+    // Flags of the listener's state; each is only ever set once
+    private static final int STATE_TIMED_OUT = 1;
+    private static final int STATE_ERRORED = 2;
+    private static final int STATE_COMPLETED = 4;
+
+    private static final AtomicIntegerFieldUpdater<AsyncMetricsRequestResponseListener> LISTENER_STATE =
+            AtomicIntegerFieldUpdater.newUpdater(AsyncMetricsRequestResponseListener.class, "state");
+
+    @Override
+    public synchronized void createMetrics(FilterConfig filterConfig) {
+        super.createMetrics(filterConfig);
+
+        createRequestBasedMetricName(METRIC_NAME_LOOKUP_ASYNC_TIMEOUTS);
+        createRequestBasedMetricName(METRIC_NAME_LOOKUP_ASYNC_ERRORS);
+        createRequestBasedMetricName(METRIC_NAME_LOOKUP_ASYNC_TIMED_OUT_REQUESTS);
+        createRequestBasedMetricName(METRIC_NAME_LOOKUP_SYNC_PATH_REQUESTS);
+        createRequestBasedMetricName(METRIC_NAME_LOOKUP_ASYNC_PATH_REQUESTS);
+        syncPathRequests = newMeter(METRIC_NAME_LOOKUP_SYNC_PATH_REQUESTS, "requests");
+        asyncPathRequests = newMeter(METRIC_NAME_LOOKUP_ASYNC_PATH_REQUESTS, "requests");
+        asyncTimeouts = newMeter(METRIC_NAME_LOOKUP_ASYNC_TIMEOUTS, "requests");
+        asyncErrors = newMeter(METRIC_NAME_LOOKUP_ASYNC_ERRORS, "requests");
+        timeTakenForTimedOutRequests = newTimer(METRIC_NAME_LOOKUP_ASYNC_TIMED_OUT_REQUESTS);
+
+        asyncContainerTimeForRequestMethods = newAsyncRequestMethodTimers(METRIC_NAME_LOOKUP_ASYNC_CONTAINER_SUFFIX);
+        asyncWaitTimeForRequestMethods = newAsyncRequestMethodTimers(METRIC_NAME_LOOKUP_ASYNC_WAIT_SUFFIX);
+        asyncTotalTimeForRequestMethods = newAsyncRequestMethodTimers(METRIC_NAME_LOOKUP_ASYNC_TOTAL_SUFFIX);
+
+        createRequestBasedMetricName(METRIC_NAME_LOOKUP_ASYNC_REQUESTS_IN_FLIGHT);
+        getMetricsBackend().newGauge(getMetricName(METRIC_NAME_LOOKUP_ASYNC_REQUESTS_IN_FLIGHT), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return asyncRequestsInFlight.sum();
+            }
+        });
+    }
+
+    /**
+     * Creates a timer, with the given suffix, for each request method that has a timer; i.e. get-async-wait-requests
+     */
+    private Timer[] newAsyncRequestMethodTimers(String suffix) {
+        RequestMethods requestMethods = getRequestMethods();
+        List<String> methods = requestMethods.getMethodsAndOther();
+        Timer[] timers = new Timer[requestMethods.size()];
+        for(int i = 0; i < methods.size(); i++) {
+            timers[i] = newAsyncRequestMethodTimer(methods.get(i), suffix);
+        }
+        return timers;
+    }
+
+    private Timer newAsyncRequestMethodTimer(String method, String suffix) {
+        String name = method.toLowerCase(Locale.ENGLISH) + suffix;
+        createRequestBasedMetricName(name);
+        return newTimer(name);
+    }
+
+    /**
+     * Runs the chain, and only then checks whether the request went async.  A request that did not is
+     * recorded straight away, as the sync filter would; only a request that did has a listener added,
+     * to record it when it completes.  The filter never starts async itself, so synchronous servlets
+     * stay on the container's synchronous path.
+     *
+     * Async dispatches (back into the chain, from {@link AsyncContext#dispatch()}) are passed straight
+     * through, as the request is already being recorded by the listener added on its first dispatch.
+     */
     @Override
     public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
-        final StatusExposingServletResponse wrappedResponse =
-                new StatusExposingServletResponse((HttpServletResponse) response);
+        // The status is read from the container's own response, so the response is only wrapped when
+        // counting, or timing the first byte of, the response body; leaving the container free to use its
+        // own response fast paths.
+        final HttpServletRequest servletRequest = (HttpServletRequest) request;
+        if(servletRequest.getDispatcherType() == DispatcherType.ASYNC) {
+            chain.doFilter(request, response);
+            return;
+        }
 
-        HttpServletRequest servletRequest = (HttpServletRequest)request;
+        final ServletResponse filteredResponse = isWatchingResponseBody() ? wrapResponseIfRequired(request, response) : response;
+        final long startTime = startTiming();
+        requestArrived(startTime);
+        final long cpuTimeAtStart = threadCpuTime(startTime);
+        final long allocatedBytesAtStart = threadAllocatedBytes(startTime);
         try {
-            final AsyncContext asyncContext;
+            chain.doFilter(request, filteredResponse);
+        } finally {
             if(servletRequest.isAsyncStarted()) {
-                asyncContext = servletRequest.getAsyncContext();
+                // an async request's work is spread over other threads, so only the sync path's cpu and allocation
+                // is recorded
+                asyncPathRequests.mark();
+                asyncRequestsInFlight.increment();
+                servletRequest.getAsyncContext().addListener(new AsyncMetricsRequestResponseListener(servletRequest, filteredResponse,
+                        startTime, startTime == NOT_TIMED ? NOT_TIMED : System.nanoTime()));
             } else {
-                asyncContext = servletRequest.startAsync(request,response);
+                syncPathRequests.mark();
+                recordThreadResources(servletRequest, cpuTimeAtStart, allocatedBytesAtStart);
+                requestDeparted();
+                final long duration = durationSince(startTime);
+                recordRequest(servletRequest, getStatus(filteredResponse), duration,
+                        getTimeToFirstByte(filteredResponse, startTime, duration), getResponseBytes(request, filteredResponse));
             }
-            asyncContext.addListener(new AsyncMetricsRequestResponseListener(servletRequest));
-            chain.doFilter(request, wrappedResponse);
-        } finally {
-//
         }
     }
 
 
+    /**
+     * Records an async request once it completes.
+     *
+     * Containers call onComplete after onTimeout or onError (once the timed out or failed request
+     * has been completed), and may call the listener from different threads.  So the listener's state
+     * is a single atomic set of flags: the request is recorded only by the first onComplete, and a
+     * timeout or error is only counted once; so a timed out request is not counted twice in the
+     * request and response meters.
+     */
     class AsyncMetricsRequestResponseListener implements AsyncListener {
 
-        private final TimerContext timer;
-        public AsyncMetricsRequestResponseListener(HttpServletRequest servletRequest) {
-            timer = getTimerForCurrentRequestMethodType(servletRequest.getMethod()).time();
+        private final int methodIndex;
+        private final ServletResponse response;
+        private final long startTime;
+        private final long asyncStartTime;
+        volatile int state;
+
+        /**
+         * @param response the response passed down the chain (which counts, and times the first byte of, the
+         *                 response body when asked to)
+         * @param startTime the request's start time, from {@link #startTiming()}
+         * @param asyncStartTime the time the chain returned on the container thread, leaving the request in async
+         *                       ({@link #NOT_TIMED} if the request is not being timed)
+         */
+        public AsyncMetricsRequestResponseListener(HttpServletRequest servletRequest, ServletResponse response,
+                                                   long startTime, long asyncStartTime) {
+            this.methodIndex = getRequestMethods().indexOf(servletRequest.getMethod());
+            this.response = response;
+            this.startTime = startTime;
+            this.asyncStartTime = asyncStartTime;
+        }
+
+        /**
+         * Sets the given state flag, returning false if it was already set
+         */
+        private boolean transition(int flag) {
+            for(;;) {
+                final int current = state;
+                if((current & flag) != 0) {
+                    return false;
+                }
+                if(LISTENER_STATE.compareAndSet(this, current, current | flag)) {
+                    return true;
+                }
+            }
         }
 
         @Override
         public void onComplete(AsyncEvent asyncEvent) throws IOException {
-            timer.stop();
-            updateResponseRate(((HttpServletResponse) asyncEvent.getAsyncContext().getResponse()).getStatus());
-            updateAdminMetricsIfRequestMatched(((HttpServletRequest) asyncEvent.getAsyncContext().getRequest()).getServletPath());
+            if(transition(STATE_COMPLETED)) {
+                asyncRequestsInFlight.add(-1);
+                requestDeparted();
+                final long duration = durationSince(startTime);
+                final HttpServletRequest request = (HttpServletRequest) asyncEvent.getAsyncContext().getRequest();
+                recordRequest(request, getStatus(asyncEvent.getAsyncContext().getResponse()), duration,
+                        getTimeToFirstByte(response, startTime, duration), getResponseBytes(request, response));
+                if(duration != NOT_TIMED) {
+                    final long containerTime = asyncStartTime - startTime;
+                    asyncContainerTimeForRequestMethods[methodIndex].update(containerTime, TimeUnit.NANOSECONDS);
+                    asyncWaitTimeForRequestMethods[methodIndex].update(duration - containerTime, TimeUnit.NANOSECONDS);
+                    asyncTotalTimeForRequestMethods[methodIndex].update(duration, TimeUnit.NANOSECONDS);
+                }
+            }
         }
 
         @Override
         public void onTimeout(AsyncEvent asyncEvent) throws IOException {
-            onComplete(asyncEvent);
+            if(transition(STATE_TIMED_OUT)) {
+                asyncTimeouts.mark();
+                final long timeInAsync = durationSince(asyncStartTime);
+                if(timeInAsync != NOT_TIMED) {
+                    timeTakenForTimedOutRequests.update(timeInAsync, TimeUnit.NANOSECONDS);
+                }
+            }
         }
 
         @Override
         public void onError(AsyncEvent asyncEvent) throws IOException {
-            onComplete(asyncEvent);
+            if(transition(STATE_ERRORED)) {
+                asyncErrors.mark();
+            }
         }
 
+        /**
+         * Async was restarted on an async dispatch; the context's listeners are cleared, so carry on
+         * listening for the request's completion.
+         */
         @Override
         public void onStartAsync(AsyncEvent asyncEvent) throws IOException {
+            asyncEvent.getAsyncContext().addListener(this);
         }
     }
 }
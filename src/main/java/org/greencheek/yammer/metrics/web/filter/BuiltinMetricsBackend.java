@@ -0,0 +1,126 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.RegistryAccess;
+import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.reporting.JmxReporter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link MetricsBackend} whose metrics neither lock nor allocate when they are updated, and need no tick
+ * threads; registered in a registry of the backend's own, rather than the global yammer registry.
+ *
+ * <ul>
+ *     <li>meters are {@link LazyDecayingMeter}s, over a {@link StripedCounter}</li>
+ *     <li>timers are {@link HdrHistogramTimer}s, whose count and rates come from a lazy meter</li>
+ *     <li>histograms are {@link HdrValueHistogram}s</li>
+ *     <li>counters and gauges are yammer's own, which are already a single atomic update, and a callback</li>
+ * </ul>
+ *
+ * The cost is paid when the metrics are read instead: the rates are decayed, and the HdrHistogram windows
+ * merged, on each read.
+ *
+ * The registry has its own {@link JmxReporter}, so the metrics are published as MBeans under the same names as
+ * yammer's global registry publishes them; and can be listed from {@link #getRegistry()}.  {@link #shutdown()}
+ * unregisters the MBeans, and shuts the registry (and any tick threads created in it) down.
+ */
+public class BuiltinMetricsBackend implements MetricsBackend {
+
+    public static final int DEFAULT_SIGNIFICANT_DIGITS = 2;
+    public static final long DEFAULT_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private final MetricsRegistry registry = new MetricsRegistry();
+    private final int significantDigits;
+    private final long windowNanos;
+    private final Clock clock = Clock.defaultClock();
+    private final JmxReporter jmxReporter;
+
+    public BuiltinMetricsBackend() {
+        this(DEFAULT_SIGNIFICANT_DIGITS, DEFAULT_WINDOW_NANOS);
+    }
+
+    /**
+     * @param significantDigits the precision of the timers' and histograms' HdrHistograms
+     * @param windowNanos the window the timers and histograms report on (they report the last two)
+     */
+    public BuiltinMetricsBackend(int significantDigits, long windowNanos) {
+        this.significantDigits = significantDigits;
+        this.windowNanos = windowNanos;
+        this.jmxReporter = new JmxReporter(registry);
+        this.jmxReporter.start();
+    }
+
+    @Override
+    public Meter newMeter(MetricName name, String eventType) {
+        return register(name, newLazyMeter(eventType));
+    }
+
+    private Meter newLazyMeter(String eventType) {
+        return new LazyDecayingMeter(new StripedCounter(), eventType, TimeUnit.SECONDS, clock);
+    }
+
+    @Override
+    public Timer newTimer(MetricName name) {
+        return register(name, new HdrHistogramTimer(newLazyMeter("calls"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS,
+                significantDigits, windowNanos, clock));
+    }
+
+    @Override
+    public Histogram newHistogram(MetricName name) {
+        return register(name, new HdrValueHistogram(significantDigits, windowNanos, clock));
+    }
+
+    @Override
+    public Counter newCounter(MetricName name) {
+        return registry.newCounter(name);
+    }
+
+    @Override
+    public <T> Gauge<T> newGauge(MetricName name, Gauge<T> gauge) {
+        return registry.newGauge(name, gauge);
+    }
+
+    @Override
+    public <T extends Metric> T register(MetricName name, T metric) {
+        return RegistryAccess.getOrAdd(registry, name, metric);
+    }
+
+    @Override
+    public void removeMetric(MetricName name) {
+        registry.removeMetric(name);
+    }
+
+    @Override
+    public MetricsRegistry getRegistry() {
+        return registry;
+    }
+
+    @Override
+    public void shutdown() {
+        jmxReporter.shutdown();
+        registry.shutdown();
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.core.Clock;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the number of requests in flight, and the most that were in flight at once.
+ *
+ * The in flight count is a single AtomicLong rather than a {@link StripedCounter}: every arrival needs the
+ * concurrency it arrived at, which the increment returns, where a striped count would have to be summed
+ * across all its stripes.  That concurrency is only written to the shared maximum when it is a new maximum,
+ * so in the steady state an arrival only reads it.
+ *
+ * The maximum is kept per interval: reading it rolls the current interval over once {@code intervalNanos}
+ * has passed, and reports the larger of the current and previous intervals' maximums.
+ */
+public class ConcurrencyTracker {
+
+    private final AtomicLong inFlight = new AtomicLong();
+    private final AtomicLong currentMax = new AtomicLong();
+    private final long intervalNanos;
+    private final Clock clock;
+
+    // guarded by this
+    private long previousMax;
+    private long intervalStart;
+
+    public ConcurrencyTracker(long intervalNanos, Clock clock) {
+        this.intervalNanos = intervalNanos;
+        this.clock = clock;
+        this.intervalStart = clock.tick();
+    }
+
+    /**
+     * Records a request arriving, returning the number of requests in flight including it
+     */
+    public long arrive() {
+        final long concurrency = inFlight.incrementAndGet();
+        long max = currentMax.get();
+        while(concurrency > max) {
+            if(currentMax.compareAndSet(max, concurrency)) {
+                break;
+            }
+            max = currentMax.get();
+        }
+        return concurrency;
+    }
+
+    /**
+     * Records a request completing
+     */
+    public void depart() {
+        inFlight.decrementAndGet();
+    }
+
+    public long getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * The most requests in flight at once, over the last one to two intervals
+     */
+    public synchronized long getMaxInFlight() {
+        final long now = clock.tick();
+        final long elapsed = now - intervalStart;
+        if(elapsed >= intervalNanos) {
+            // the new interval starts with the requests that are still in flight
+            final long max = currentMax.getAndSet(inFlight.get());
+            previousMax = elapsed >= intervalNanos * 2 ? 0 : max;
+            intervalStart = now;
+        }
+        return Math.max(previousMax, currentMax.get());
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * A {@link PrintWriter} over the container's writer, that counts the bytes the characters written
+ * will be encoded as, and notes the time of the first write (or flush).
+ *
+ * The writer only sees characters, so the bytes are worked out from the response's character encoding:
+ * exactly for UTF-8 (from each character's code point range), 2 bytes a character for UTF-16, and 1 byte a
+ * character for everything else (ISO-8859-1, US-ASCII and the other single byte encodings).  Counting
+ * looks at each character once, and allocates nothing.
+ */
+public class CountingPrintWriter extends PrintWriter {
+
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+    private static final int SINGLE_BYTE = 0;
+    private static final int UTF_8 = 1;
+    private static final int UTF_16 = 2;
+
+    private final int encoding;
+    private long count;
+    private boolean written;
+    private long firstWriteTime;
+
+    public CountingPrintWriter(PrintWriter out, String characterEncoding) {
+        super(out);
+        this.encoding = encodingOf(characterEncoding);
+    }
+
+    private static int encodingOf(String characterEncoding) {
+        if(characterEncoding == null) {
+            // the servlet spec's default
+            return SINGLE_BYTE;
+        }
+        String name = characterEncoding.toUpperCase(Locale.ENGLISH);
+        if(name.equals("UTF-8") || name.equals("UTF8")) {
+            return UTF_8;
+        } else if(name.startsWith("UTF-16") || name.startsWith("UTF16")) {
+            return UTF_16;
+        } else {
+            return SINGLE_BYTE;
+        }
+    }
+
+    private int bytesOf(char c) {
+        switch(encoding) {
+            case UTF_8:
+                if(c < 0x80) {
+                    return 1;
+                } else if(c < 0x800 || (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)) {
+                    // each half of a surrogate pair is 2 of the pair's 4 bytes
+                    return 2;
+                } else {
+                    return 3;
+                }
+            case UTF_16:
+                return 2;
+            default:
+                return 1;
+        }
+    }
+
+    @Override
+    public void write(int c) {
+        noteWrite();
+        super.write(c);
+        count += bytesOf((char) c);
+    }
+
+    @Override
+    public void write(char[] buf, int off, int len) {
+        noteWrite();
+        super.write(buf, off, len);
+        if(encoding == SINGLE_BYTE) {
+            count += len;
+        } else {
+            for(int i = off; i < off + len; i++) {
+                count += bytesOf(buf[i]);
+            }
+        }
+    }
+
+    @Override
+    public void write(String s, int off, int len) {
+        noteWrite();
+        super.write(s, off, len);
+        if(encoding == SINGLE_BYTE) {
+            count += len;
+        } else {
+            for(int i = off; i < off + len; i++) {
+                count += bytesOf(s.charAt(i));
+            }
+        }
+    }
+
+    /**
+     * PrintWriter writes its line separator straight to the underlying writer, so write it through
+     * {@link #write(String, int, int)} to count it.
+     */
+    @Override
+    public void println() {
+        write(LINE_SEPARATOR, 0, LINE_SEPARATOR.length());
+    }
+
+    @Override
+    public void flush() {
+        noteWrite();
+        super.flush();
+    }
+
+    private void noteWrite() {
+        if(!written) {
+            written = true;
+            firstWriteTime = System.nanoTime();
+        }
+    }
+
+    /**
+     * True if anything has been written to, or flushed through, the writer
+     */
+    public boolean isWritten() {
+        return written;
+    }
+
+    /**
+     * The {@link System#nanoTime()} of the first write or flush, if {@link #isWritten()}
+     */
+    public long getFirstWriteTime() {
+        return firstWriteTime;
+    }
+
+    /**
+     * The number of bytes written
+     */
+    public long getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import javax.servlet.ServletOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * A {@link ServletOutputStream} that counts the bytes written to the container's output stream, and notes
+ * the time of the first write (or flush).  Counting is a field increment, so writes allocate nothing.
+ *
+ * The stream is built against the servlet 3.0 api.  Servlet 3.1 added two abstract methods for non-blocking
+ * io: isReady(), which is delegated to the container's stream by reflection; and setWriteListener(WriteListener),
+ * which cannot be declared without the 3.1 api.  So on a 3.1+ container (see {@link #isNonBlockingIoAvailable()})
+ * the stream must not be handed to a request that might use non-blocking io, i.e. one that supports async.
+ */
+public class CountingServletOutputStream extends ServletOutputStream {
+
+    // ServletOutputStream.isReady(), when running on a servlet 3.1+ container
+    private static final Method IS_READY = findIsReady();
+
+    private final ServletOutputStream out;
+    private long count;
+    private boolean written;
+    private long firstWriteTime;
+
+    public CountingServletOutputStream(ServletOutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        noteWrite();
+        out.write(b);
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+        noteWrite();
+        out.write(b);
+        count += b.length;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        noteWrite();
+        out.write(b, off, len);
+        count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        noteWrite();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Delegates servlet 3.1's ServletOutputStream.isReady() to the container's stream.  True on older containers,
+     * where writes always block.
+     */
+    public boolean isReady() {
+        if(IS_READY == null) {
+            return true;
+        }
+        try {
+            return (Boolean) IS_READY.invoke(out);
+        } catch (IllegalAccessException e) {
+            return true;
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if(cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * True if the container's servlet api is 3.1+, with non-blocking io; in which case a stream that a request
+     * sets a WriteListener on cannot be wrapped by this one.
+     */
+    public static boolean isNonBlockingIoAvailable() {
+        return IS_READY != null;
+    }
+
+    private static Method findIsReady() {
+        try {
+            return ServletOutputStream.class.getMethod("isReady");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private void noteWrite() {
+        if(!written) {
+            written = true;
+            firstWriteTime = System.nanoTime();
+        }
+    }
+
+    /**
+     * True if anything has been written to, or flushed through, the stream
+     */
+    public boolean isWritten() {
+        return written;
+    }
+
+    /**
+     * The {@link System#nanoTime()} of the first write or flush, if {@link #isWritten()}
+     */
+    public long getFirstWriteTime() {
+        return firstWriteTime;
+    }
+
+    /**
+     * The number of bytes written
+     */
+    public long getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An exponentially weighted moving average, ticked every 5 seconds, that gives the same rates as
+ * yammer's {@link com.yammer.metrics.stats.EWMA}; but that can be ticked any number of intervals
+ * at once.
+ *
+ * Ticking n intervals, over which the events are spread evenly at a rate r, moves the rate to
+ * {@code r + (rate - r) * (1 - alpha)^n}; so catching up after a long idle period costs the same
+ * as a single tick, rather than one tick for every interval that was missed.
+ */
+final class DecayingRate {
+
+    private static final int INTERVAL_SECONDS = 5;
+    private static final long INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(INTERVAL_SECONDS);
+
+    private final double alpha;
+    private final double retained;
+
+    private volatile boolean initialized = false;
+    // events per nanosecond
+    private volatile double rate = 0.0;
+
+    private DecayingRate(double alpha) {
+        this.alpha = alpha;
+        this.retained = 1 - alpha;
+    }
+
+    static DecayingRate oneMinute() {
+        return overMinutes(1);
+    }
+
+    static DecayingRate fiveMinutes() {
+        return overMinutes(5);
+    }
+
+    static DecayingRate fifteenMinutes() {
+        return overMinutes(15);
+    }
+
+    private static DecayingRate overMinutes(int minutes) {
+        return new DecayingRate(1 - Math.exp(-INTERVAL_SECONDS / 60.0 / minutes));
+    }
+
+    /**
+     * Ticks the given number of intervals, with the events spread evenly over them.
+     * Only called by a single thread at a time.
+     */
+    void tick(long ticks, long events) {
+        final double instantRate = events / (double) (ticks * INTERVAL_NANOS);
+        if(!initialized) {
+            // the first tick takes the instant rate, which the remaining ticks leave where it is
+            rate = instantRate;
+            initialized = true;
+        } else if(ticks == 1) {
+            rate += alpha * (instantRate - rate);
+        } else {
+            rate = instantRate + (rate - instantRate) * Math.pow(retained, ticks);
+        }
+    }
+
+    double rate(TimeUnit rateUnit) {
+        return rate * (double) rateUnit.toNanos(1);
+    }
+}
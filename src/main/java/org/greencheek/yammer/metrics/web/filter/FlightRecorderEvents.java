@@ -0,0 +1,66 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Emits a Flight Recorder event for each completed request (see {@link FlightRecorderRequestEvent}), or only for
+ * requests that took at least the threshold, so requests appear on the same timeline as the gc, lock and I/O
+ * events.  Requests that were not timed are not emitted.
+ *
+ * When Flight Recorder is not recording the event, the cost to a request is the threshold comparison and the
+ * event's enabled check.  On a jvm without Flight Recorder the events are not supported, and
+ * {@link #isSupported()} is false.
+ */
+public class FlightRecorderEvents {
+
+    private final long thresholdNanos;
+    private final boolean supported;
+
+    /**
+     * @param thresholdNanos the duration a request must take for its event to be emitted; 0 for every request
+     */
+    public FlightRecorderEvents(long thresholdNanos) {
+        this.thresholdNanos = Math.max(0, thresholdNanos);
+        this.supported = isFlightRecorderAvailable();
+    }
+
+    private static boolean isFlightRecorderAvailable() {
+        try {
+            FlightRecorderRequestEvent.enabled();
+            return true;
+        } catch(LinkageError e) {
+            // no jdk.jfr
+            return false;
+        } catch(SecurityException e) {
+            return false;
+        }
+    }
+
+    public boolean isSupported() {
+        return supported;
+    }
+
+    /**
+     * Emits the event for the completed request, if it took at least the threshold and the event is being recorded
+     */
+    public void record(HttpServletRequest request, int responseCode, long durationNanos) {
+        if(durationNanos >= thresholdNanos && FlightRecorderRequestEvent.enabled()) {
+            FlightRecorderRequestEvent.commit(request.getMethod(), request.getServletPath(), responseCode, durationNanos);
+        }
+    }
+}
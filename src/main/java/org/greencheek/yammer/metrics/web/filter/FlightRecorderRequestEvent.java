@@ -0,0 +1,70 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The Flight Recorder event emitted for a request, and the only class that refers to {@code jdk.jfr}; so that on
+ * jvms without Flight Recorder only this class fails to link, and {@link FlightRecorderEvents} can carry on without it.
+ *
+ * The event is committed when the request completes, so it is placed on the recording's timeline at the request's
+ * end; the request's duration is carried in the {@code requestDuration} field.
+ */
+@Name(FlightRecorderRequestEvent.NAME)
+@Label("HTTP Request")
+@Category("Response Code Filter")
+@Description("A request completed by the response code filter")
+@StackTrace(false)
+final class FlightRecorderRequestEvent extends Event {
+
+    static final String NAME = "org.greencheek.yammer.metrics.web.filter.Request";
+
+    // Only asked whether the event is enabled, which is a single static read once Flight Recorder is recording
+    private static final FlightRecorderRequestEvent ENABLED_CHECK = new FlightRecorderRequestEvent();
+
+    @Label("Method")
+    String method;
+
+    @Label("Path")
+    String path;
+
+    @Label("Status")
+    int status;
+
+    @Label("Request Duration")
+    @Timespan(Timespan.NANOSECONDS)
+    long requestDuration;
+
+    static boolean enabled() {
+        return ENABLED_CHECK.isEnabled();
+    }
+
+    static void commit(String method, String path, int status, long durationNanos) {
+        FlightRecorderRequestEvent event = new FlightRecorderRequestEvent();
+        event.method = method;
+        event.path = path;
+        event.status = status;
+        event.requestDuration = durationNanos;
+        event.commit();
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.ExtensibleTimer;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.stats.Snapshot;
+import org.HdrHistogram.Histogram;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link com.yammer.metrics.core.Timer} that records durations into an HdrHistogram {@link Recorder},
+ * rather than into yammer's exponentially decaying sample.
+ *
+ * Recording is a wait free update of the recorder's histogram (no lock, and no sample being thrown
+ * away), so the percentiles, and the max, come from every request.  The timer reports on the current and
+ * previous windows of {@code windowNanos} (see {@link HdrHistogramWindows}); so, like the decaying sample,
+ * it reports on recent requests.
+ *
+ * Durations are recorded between 1 microsecond and 1 hour (longer durations are recorded as 1 hour).
+ * The count and rates come from the given meter.
+ */
+public class HdrHistogramTimer extends ExtensibleTimer {
+
+    private static final long LOWEST_DISCERNIBLE_NANOS = TimeUnit.MICROSECONDS.toNanos(1);
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.HOURS.toNanos(1);
+
+    private final Meter meter;
+    private final StripedCounter sum = new StripedCounter();
+    private final HdrHistogramWindows windows;
+    private final TimeUnit durationUnit;
+    private final double nanosPerDurationUnit;
+
+    // guarded by this
+    private long sumAtLastClear;
+
+    public HdrHistogramTimer(Meter meter, TimeUnit durationUnit, TimeUnit rateUnit, int significantDigits,
+                             long windowNanos, Clock clock) {
+        super(durationUnit, rateUnit, clock);
+        this.meter = meter;
+        this.durationUnit = durationUnit;
+        this.nanosPerDurationUnit = durationUnit.toNanos(1);
+        this.windows = new HdrHistogramWindows(LOWEST_DISCERNIBLE_NANOS, HIGHEST_TRACKABLE_NANOS, significantDigits,
+                windowNanos, clock);
+    }
+
+    @Override
+    public void update(long duration, TimeUnit unit) {
+        final long nanos = unit.toNanos(duration);
+        if (nanos >= 0) {
+            windows.record(nanos);
+            sum.add(nanos);
+            meter.mark();
+        }
+    }
+
+    private double toDurationUnit(double nanos) {
+        return nanos / nanosPerDurationUnit;
+    }
+
+    @Override
+    public synchronized void clear() {
+        if(windows == null) {
+            // called by the Timer constructor, before this timer's fields are set
+            return;
+        }
+        windows.clear();
+        sumAtLastClear = sum.sum();
+    }
+
+    @Override
+    public long count() {
+        return meter.count();
+    }
+
+    @Override
+    public double fifteenMinuteRate() {
+        return meter.fifteenMinuteRate();
+    }
+
+    @Override
+    public double fiveMinuteRate() {
+        return meter.fiveMinuteRate();
+    }
+
+    @Override
+    public double meanRate() {
+        return meter.meanRate();
+    }
+
+    @Override
+    public double oneMinuteRate() {
+        return meter.oneMinuteRate();
+    }
+
+    @Override
+    public synchronized double max() {
+        Histogram histogram = windows.report();
+        return histogram.getTotalCount() == 0 ? 0.0 : toDurationUnit(histogram.getMaxValue());
+    }
+
+    @Override
+    public synchronized double min() {
+        Histogram histogram = windows.report();
+        return histogram.getTotalCount() == 0 ? 0.0 : toDurationUnit(histogram.getMinValue());
+    }
+
+    @Override
+    public synchronized double mean() {
+        Histogram histogram = windows.report();
+        return histogram.getTotalCount() == 0 ? 0.0 : toDurationUnit(histogram.getMean());
+    }
+
+    @Override
+    public synchronized double stdDev() {
+        Histogram histogram = windows.report();
+        return histogram.getTotalCount() == 0 ? 0.0 : toDurationUnit(histogram.getStdDeviation());
+    }
+
+    @Override
+    public synchronized double sum() {
+        return toDurationUnit(sum.sum() - sumAtLastClear);
+    }
+
+    @Override
+    public synchronized Snapshot getSnapshot() {
+        return new HdrSnapshot(windows.report().copy(), durationUnit);
+    }
+
+    @Override
+    public void stop() {
+        meter.stop();
+    }
+}
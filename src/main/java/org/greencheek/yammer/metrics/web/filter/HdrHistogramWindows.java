@@ -0,0 +1,100 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.core.Clock;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * The recording and reporting windows behind the HdrHistogram based metrics ({@link HdrHistogramTimer} and
+ * {@link HdrValueHistogram}).
+ *
+ * Recording is a wait free update of a {@link Recorder}.  When read, the recorder's interval histogram is
+ * taken and added to the current window.  Windows are {@code windowNanos} long, and the report is the current
+ * window plus the previous one; so, like yammer's decaying sample, it reports on recent values.
+ *
+ * Only {@link #record(long)} may be called concurrently; the owner synchronizes the other methods, and any use of
+ * the histogram returned by {@link #report()}.
+ */
+final class HdrHistogramWindows {
+
+    private final long highestTrackableValue;
+    private final Recorder recorder;
+    private final long windowNanos;
+    private final Clock clock;
+
+    // All guarded by the owner
+    private Histogram intervalHistogram;
+    private Histogram currentWindow;
+    private Histogram previousWindow;
+    private final Histogram report;
+    private long currentWindowStart;
+
+    /**
+     * Values above the highest trackable value are recorded as the highest trackable value
+     */
+    HdrHistogramWindows(long lowestDiscernibleValue, long highestTrackableValue, int significantDigits,
+                        long windowNanos, Clock clock) {
+        this.highestTrackableValue = highestTrackableValue;
+        this.windowNanos = windowNanos;
+        this.clock = clock;
+        this.recorder = new Recorder(lowestDiscernibleValue, highestTrackableValue, significantDigits);
+        this.currentWindow = new Histogram(lowestDiscernibleValue, highestTrackableValue, significantDigits);
+        this.previousWindow = new Histogram(lowestDiscernibleValue, highestTrackableValue, significantDigits);
+        this.report = new Histogram(lowestDiscernibleValue, highestTrackableValue, significantDigits);
+        this.currentWindowStart = clock.tick();
+    }
+
+    void record(long value) {
+        recorder.recordValue(value < highestTrackableValue ? value : highestTrackableValue);
+    }
+
+    /**
+     * Rolls the windows if the current one has expired, moves everything recorded since the last read
+     * into the current window, and returns the current and previous windows combined.
+     */
+    Histogram report() {
+        final long now = clock.tick();
+        final long elapsed = now - currentWindowStart;
+        if(elapsed >= windowNanos) {
+            Histogram expired = previousWindow;
+            previousWindow = currentWindow;
+            currentWindow = expired;
+            currentWindow.reset();
+            if(elapsed >= windowNanos * 2) {
+                // nothing has been read for over a window, so the previous window is stale as well
+                previousWindow.reset();
+            }
+            currentWindowStart = now;
+        }
+
+        // recordings since the last read are counted in the current window, so are reported for at least a window
+        intervalHistogram = recorder.getIntervalHistogram(intervalHistogram);
+        currentWindow.add(intervalHistogram);
+
+        report.reset();
+        report.add(previousWindow);
+        report.add(currentWindow);
+        return report;
+    }
+
+    void clear() {
+        recorder.reset();
+        currentWindow.reset();
+        previousWindow.reset();
+    }
+}
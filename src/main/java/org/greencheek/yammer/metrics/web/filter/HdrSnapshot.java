@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.stats.Snapshot;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link Snapshot} of a {@link HdrHistogramTimer} (or {@link HdrValueHistogram}), whose quantiles come from an HdrHistogram
+ * (holding nanosecond durations) rather than from a sample of the recorded values.
+ *
+ * Values are returned in the timer's duration unit.  {@link #getValues()} returns one value per
+ * distinct histogram bucket that has been recorded, rather than every recorded value.
+ */
+public class HdrSnapshot extends Snapshot {
+
+    private final Histogram histogram;
+    private final double nanosPerDurationUnit;
+
+    /**
+     * @param histogram a histogram owned by the snapshot, that will not be changed
+     */
+    public HdrSnapshot(Histogram histogram, TimeUnit durationUnit) {
+        super(new double[0]);
+        this.histogram = histogram;
+        this.nanosPerDurationUnit = durationUnit.toNanos(1);
+    }
+
+    @Override
+    public double getValue(double quantile) {
+        if (quantile < 0.0 || quantile > 1.0) {
+            throw new IllegalArgumentException(quantile + " is not in [0..1]");
+        }
+        if(histogram.getTotalCount() == 0) {
+            return 0.0;
+        }
+        return histogram.getValueAtPercentile(quantile * 100.0) / nanosPerDurationUnit;
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, histogram.getTotalCount());
+    }
+
+    @Override
+    public double[] getValues() {
+        int buckets = 0;
+        for(HistogramIterationValue ignored : histogram.recordedValues()) {
+            buckets++;
+        }
+        double[] values = new double[buckets];
+        int i = 0;
+        for(HistogramIterationValue value : histogram.recordedValues()) {
+            values[i++] = value.getValueIteratedTo() / nanosPerDurationUnit;
+        }
+        return values;
+    }
+
+    @Override
+    public void dump(File output) throws IOException {
+        final PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(output), "UTF-8"));
+        try {
+            for (double value : getValues()) {
+                writer.printf("%f\n", value);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
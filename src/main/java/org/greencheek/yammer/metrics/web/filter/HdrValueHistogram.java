@@ -0,0 +1,110 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.ExtensibleHistogram;
+import com.yammer.metrics.stats.Snapshot;
+import org.HdrHistogram.Histogram;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link com.yammer.metrics.core.Histogram} that records values into an HdrHistogram, rather than into yammer's
+ * sample; the value equivalent of {@link HdrHistogramTimer}.
+ *
+ * Recording is wait free and allocates nothing: an update of the recorder's histogram, and of the striped count and
+ * sum.  The statistics and snapshot come from the current and previous windows of {@code windowNanos} (see
+ * {@link HdrHistogramWindows}), while the count and sum are of every value since the histogram was last cleared.
+ *
+ * Values are recorded between 0 and 2^40 (larger values are recorded as 2^40).  Negative values are ignored.
+ */
+public class HdrValueHistogram extends ExtensibleHistogram {
+
+    private static final long HIGHEST_TRACKABLE_VALUE = 1L << 40;
+
+    private final StripedCounter count = new StripedCounter();
+    private final StripedCounter sum = new StripedCounter();
+    private final HdrHistogramWindows windows;
+
+    // guarded by this
+    private long countAtLastClear;
+    private long sumAtLastClear;
+
+    public HdrValueHistogram(int significantDigits, long windowNanos, Clock clock) {
+        this.windows = new HdrHistogramWindows(1, HIGHEST_TRACKABLE_VALUE, significantDigits, windowNanos, clock);
+    }
+
+    @Override
+    public void update(long value) {
+        if(value >= 0) {
+            windows.record(value);
+            count.increment();
+            sum.add(value);
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        if(windows == null) {
+            // called by the Histogram constructor, before this histogram's fields are set
+            return;
+        }
+        windows.clear();
+        countAtLastClear = count.sum();
+        sumAtLastClear = sum.sum();
+    }
+
+    @Override
+    public synchronized long count() {
+        return count.sum() - countAtLastClear;
+    }
+
+    @Override
+    public synchronized double max() {
+        Histogram histogram = windows.report();
+        return histogram.getTotalCount() == 0 ? 0.0 : histogram.getMaxValue();
+    }
+
+    @Override
+    public synchronized double min() {
+        Histogram histogram = windows.report();
+        return histogram.getTotalCount() == 0 ? 0.0 : histogram.getMinValue();
+    }
+
+    @Override
+    public synchronized double mean() {
+        Histogram histogram = windows.report();
+        return histogram.getTotalCount() == 0 ? 0.0 : histogram.getMean();
+    }
+
+    @Override
+    public synchronized double stdDev() {
+        Histogram histogram = windows.report();
+        return histogram.getTotalCount() == 0 ? 0.0 : histogram.getStdDeviation();
+    }
+
+    @Override
+    public synchronized double sum() {
+        return sum.sum() - sumAtLastClear;
+    }
+
+    @Override
+    public synchronized Snapshot getSnapshot() {
+        // the snapshot's unit conversion is from nanos, which leaves the values as they were recorded
+        return new HdrSnapshot(windows.report().copy(), TimeUnit.NANOSECONDS);
+    }
+}
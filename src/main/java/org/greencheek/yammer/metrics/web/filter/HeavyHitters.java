@@ -0,0 +1,351 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks the servlet paths that receive the most requests, per status class (1xx, 2xx, 3xx, 4xx, 5xx and unknown),
+ * in a fixed amount of memory however many distinct paths are requested.
+ *
+ * Each status class has a Space-Saving sketch (Metwally, Agrawal and El Abbadi) per stripe: a fixed number of
+ * counters, one per path being tracked.  A path that is not tracked takes over the counter with the smallest count,
+ * inheriting that count as its possible over count.  Any path requested more often than 1 / capacity of the requests
+ * is guaranteed to be tracked.  As with {@link StripedCounter} each thread updates the sketch of its own stripe, so
+ * request threads on different cores do not contend on the same lock; the update is a map lookup and a sift of a heap
+ * of capacity entries.  The stripes (and the status classes) are merged when a {@link Snapshot} is taken.
+ */
+public class HeavyHitters {
+
+    /**
+     * The status classes the paths are tracked for, in the order of their index
+     */
+    public static final String[] STATUS_CLASSES = ResponseCodeFilter.STATUS_CLASSES;
+
+    private static final String SERVLET_CONTEXT_ATTRIBUTE_PREFIX = HeavyHitters.class.getName() + '.';
+
+    private static final Comparator<Entry> BY_COUNT = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            if(a.count != b.count) {
+                return a.count > b.count ? -1 : 1;
+            }
+            return a.path.compareTo(b.path);
+        }
+    };
+
+    private final SpaceSaving[][] sketches;
+    private final int mask;
+    private final int top;
+
+    /**
+     * @param capacity the number of paths each sketch tracks
+     * @param top the number of paths reported in each of the snapshot's lists
+     */
+    public HeavyHitters(int capacity, int top) {
+        this(capacity, top, StripedCounter.defaultStripes());
+    }
+
+    HeavyHitters(int capacity, int top, int stripes) {
+        if(capacity < 1 || top < 1) {
+            throw new IllegalArgumentException("capacity and top must be at least 1");
+        }
+        int numberOfStripes = StripedCounter.stripesFor(stripes);
+        this.sketches = new SpaceSaving[STATUS_CLASSES.length][numberOfStripes];
+        for(int i = 0; i < sketches.length; i++) {
+            for(int j = 0; j < numberOfStripes; j++) {
+                sketches[i][j] = new SpaceSaving(capacity);
+            }
+        }
+        this.mask = numberOfStripes - 1;
+        this.top = top;
+    }
+
+    /**
+     * The servlet context attribute a filter's heavy hitters are published under
+     */
+    public static String getServletContextAttribute(String filterName) {
+        return SERVLET_CONTEXT_ATTRIBUTE_PREFIX + filterName;
+    }
+
+    /**
+     * Counts a request for the given path, against the status class of its response code
+     */
+    public void update(String path, int responseCode) {
+        final int response = responseCode / 100;
+        final int statusClass = (response >= 1 && response <= 5) ? response - 1 : 5;
+        sketches[statusClass][StripedCounter.currentThreadStripe(mask)].offer(path == null ? "" : path);
+    }
+
+    /**
+     * Takes a copy of the most requested paths: per status class, over all the requests (by volume), and over
+     * the 4xx and 5xx requests (by errors).  Each stripe is copied under its lock, so the copy is consistent
+     * per stripe but not across stripes.
+     */
+    public Snapshot snapshot() {
+        Merge volume = new Merge();
+        Merge errors = new Merge();
+        List<List<Entry>> byStatusClass = new ArrayList<List<Entry>>(STATUS_CLASSES.length);
+        for(int i = 0; i < sketches.length; i++) {
+            Merge statusClass = new Merge();
+            for(SpaceSaving sketch : sketches[i]) {
+                statusClass.add(sketch);
+            }
+            volume.add(statusClass);
+            if(i == 3 || i == 4) {
+                errors.add(statusClass);
+            }
+            byStatusClass.add(statusClass.top(top));
+        }
+        return new Snapshot(byStatusClass, volume.top(top), errors.top(top));
+    }
+
+    /**
+     * The most requested paths, at the time the snapshot was taken
+     */
+    public static final class Snapshot {
+        private final List<List<Entry>> byStatusClass;
+        private final List<Entry> byVolume;
+        private final List<Entry> byErrors;
+
+        Snapshot(List<List<Entry>> byStatusClass, List<Entry> byVolume, List<Entry> byErrors) {
+            this.byStatusClass = byStatusClass;
+            this.byVolume = byVolume;
+            this.byErrors = byErrors;
+        }
+
+        /**
+         * The most requested paths whose responses were in the given status class (i.e. 5xx), most requested first
+         */
+        public List<Entry> getTopPaths(String statusClass) {
+            for(int i = 0; i < STATUS_CLASSES.length; i++) {
+                if(STATUS_CLASSES[i].equals(statusClass)) {
+                    return byStatusClass.get(i);
+                }
+            }
+            throw new IllegalArgumentException("Unknown status class: " + statusClass);
+        }
+
+        /**
+         * The most requested paths, whatever their response, most requested first
+         */
+        public List<Entry> getTopPathsByVolume() {
+            return byVolume;
+        }
+
+        /**
+         * The paths with the most 4xx and 5xx responses, most first
+         */
+        public List<Entry> getTopPathsByErrors() {
+            return byErrors;
+        }
+    }
+
+    /**
+     * A path and its estimated count.  The estimate is never below the path's actual count, and is at most
+     * {@link #getMaxOverCount()} above it.
+     */
+    public static final class Entry {
+        private final String path;
+        private final long count;
+        private final long maxOverCount;
+
+        Entry(String path, long count, long maxOverCount) {
+            this.path = path;
+            this.count = count;
+            this.maxOverCount = maxOverCount;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMaxOverCount() {
+            return maxOverCount;
+        }
+
+        /**
+         * The number of requests the path is certain to have had
+         */
+        public long getGuaranteedCount() {
+            return count - maxOverCount;
+        }
+
+        @Override
+        public String toString() {
+            return path + '=' + count + "(+/-" + maxOverCount + ')';
+        }
+    }
+
+    /**
+     * Adds up the counts of a number of sketches.  A path missing from a full sketch may still have had up to that
+     * sketch's smallest count there, which is added to the path's over count.
+     */
+    private static final class Merge {
+        // path -> {count, over count, the smallest counts of the full sketches the path was in}
+        private final Map<String, long[]> counts = new HashMap<String, long[]>();
+        private long smallestCounts;
+
+        void add(SpaceSaving sketch) {
+            smallestCounts += sketch.copyTo(counts);
+        }
+
+        void add(Merge merge) {
+            for(Map.Entry<String, long[]> entry : merge.counts.entrySet()) {
+                long[] from = entry.getValue();
+                long[] to = counts.get(entry.getKey());
+                if(to == null) {
+                    to = new long[3];
+                    counts.put(entry.getKey(), to);
+                }
+                to[0] += from[0];
+                to[1] += from[1];
+                to[2] += from[2];
+            }
+            smallestCounts += merge.smallestCounts;
+        }
+
+        List<Entry> top(int top) {
+            List<Entry> entries = new ArrayList<Entry>(counts.size());
+            for(Map.Entry<String, long[]> entry : counts.entrySet()) {
+                long[] value = entry.getValue();
+                long overCount = value[1] + smallestCounts - value[2];
+                entries.add(new Entry(entry.getKey(), value[0] + smallestCounts - value[2], overCount));
+            }
+            Collections.sort(entries, BY_COUNT);
+            return Collections.unmodifiableList(entries.size() > top ? new ArrayList<Entry>(entries.subList(0, top)) : entries);
+        }
+    }
+
+    /**
+     * A single Space-Saving sketch.  The counters are kept in a min heap on their count, so the counter to replace
+     * is always at the top.
+     */
+    static final class SpaceSaving {
+        private final String[] paths;
+        private final long[] counts;
+        private final long[] overCounts;
+        // heap of counter slots, and each slot's position in the heap
+        private final int[] heap;
+        private final int[] positions;
+        private final Integer[] slots;
+        private final Map<String, Integer> slotsByPath;
+        private int size;
+
+        SpaceSaving(int capacity) {
+            this.paths = new String[capacity];
+            this.counts = new long[capacity];
+            this.overCounts = new long[capacity];
+            this.heap = new int[capacity];
+            this.positions = new int[capacity];
+            this.slots = new Integer[capacity];
+            for(int i = 0; i < capacity; i++) {
+                slots[i] = i;
+            }
+            this.slotsByPath = new HashMap<String, Integer>(capacity * 2);
+        }
+
+        synchronized void offer(String path) {
+            Integer slot = slotsByPath.get(path);
+            if(slot != null) {
+                counts[slot]++;
+                siftDown(positions[slot]);
+            } else if(size < paths.length) {
+                int newSlot = size++;
+                paths[newSlot] = path;
+                counts[newSlot] = 1;
+                overCounts[newSlot] = 0;
+                heap[newSlot] = newSlot;
+                positions[newSlot] = newSlot;
+                slotsByPath.put(path, slots[newSlot]);
+                siftUp(newSlot);
+            } else {
+                int smallest = heap[0];
+                slotsByPath.remove(paths[smallest]);
+                paths[smallest] = path;
+                overCounts[smallest] = counts[smallest];
+                counts[smallest]++;
+                slotsByPath.put(path, slots[smallest]);
+                siftDown(0);
+            }
+        }
+
+        /**
+         * Adds the counts of this sketch to the given merge counts
+         *
+         * @return the smallest count, if the sketch is full (otherwise any path not in it has not been seen)
+         */
+        synchronized long copyTo(Map<String, long[]> merged) {
+            long smallest = size == paths.length ? counts[heap[0]] : 0;
+            for(int i = 0; i < size; i++) {
+                long[] to = merged.get(paths[i]);
+                if(to == null) {
+                    to = new long[3];
+                    merged.put(paths[i], to);
+                }
+                to[0] += counts[i];
+                to[1] += overCounts[i];
+                to[2] += smallest;
+            }
+            return smallest;
+        }
+
+        private void siftUp(int position) {
+            int slot = heap[position];
+            while(position > 0) {
+                int parent = (position - 1) >>> 1;
+                if(counts[heap[parent]] <= counts[slot]) {
+                    break;
+                }
+                move(heap[parent], position);
+                position = parent;
+            }
+            move(slot, position);
+        }
+
+        private void siftDown(int position) {
+            int slot = heap[position];
+            int half = size >>> 1;
+            while(position < half) {
+                int child = (position << 1) + 1;
+                int right = child + 1;
+                if(right < size && counts[heap[right]] < counts[heap[child]]) {
+                    child = right;
+                }
+                if(counts[slot] <= counts[heap[child]]) {
+                    break;
+                }
+                move(heap[child], position);
+                position = child;
+            }
+            move(slot, position);
+        }
+
+        private void move(int slot, int position) {
+            heap[position] = slot;
+            positions[slot] = position;
+        }
+    }
+}
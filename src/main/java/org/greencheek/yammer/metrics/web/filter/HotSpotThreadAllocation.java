@@ -0,0 +1,49 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import java.lang.management.ThreadMXBean;
+
+/**
+ * The only class that refers to HotSpot's {@code com.sun.management.ThreadMXBean}; so that on other jvms
+ * only this class fails to link, and {@link ThreadResourceMeter} can carry on without it.
+ */
+final class HotSpotThreadAllocation {
+
+    private HotSpotThreadAllocation() {
+    }
+
+    /**
+     * Turns on thread allocation measurement if the bean supports it, returning true if it is on
+     */
+    static boolean enable(ThreadMXBean threads) {
+        if(!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return false;
+        }
+        com.sun.management.ThreadMXBean hotSpotThreads = (com.sun.management.ThreadMXBean) threads;
+        if(!hotSpotThreads.isThreadAllocatedMemorySupported()) {
+            return false;
+        }
+        if(!hotSpotThreads.isThreadAllocatedMemoryEnabled()) {
+            hotSpotThreads.setThreadAllocatedMemoryEnabled(true);
+        }
+        return hotSpotThreads.isThreadAllocatedMemoryEnabled();
+    }
+
+    static long allocatedBytes(ThreadMXBean threads, long threadId) {
+        return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(threadId);
+    }
+}
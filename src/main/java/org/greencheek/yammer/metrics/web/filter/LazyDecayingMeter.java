@@ -0,0 +1,109 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.core.Clock;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link StripedMeter} that has no tick thread.  Instead, whenever the meter is marked or read it
+ * checks how long it is since it last ticked, and ticks every 5 second interval that has elapsed in
+ * one step; spreading the events counted since the last tick evenly over those intervals.  A meter
+ * read after a day idle costs no more than one read after 5 seconds.  As a marked
+ * meter ticks as soon as an interval has passed, the events are only ever spread when they were counted
+ * directly on the meter's counter, or when the meter was idle (and there are none to spread).
+ *
+ * The rates are therefore the same as a ticked meter's, but a meter that is neither marked nor read
+ * costs nothing at all; and no scheduler thread has to wake up every 5 seconds for every meter.
+ * Marking costs one read of the clock on top of the striped increment.
+ */
+public class LazyDecayingMeter extends StripedMeter {
+
+    // The interval the EWMAs are ticked at
+    static final long TICK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final Clock clock;
+    private volatile long lastTick;
+
+    public LazyDecayingMeter(String eventType, TimeUnit rateUnit, Clock clock) {
+        this(new StripedCounter(), eventType, rateUnit, clock);
+    }
+
+    /**
+     * A meter over an existing counter.  Events counted directly on the counter are folded
+     * into the rates the next time the meter is marked or read.
+     */
+    public LazyDecayingMeter(StripedCounter count, String eventType, TimeUnit rateUnit, Clock clock) {
+        super(count, eventType, rateUnit, clock);
+        this.clock = clock;
+        this.lastTick = clock.tick();
+    }
+
+    private void tickIfNecessary() {
+        if(clock.tick() - lastTick >= TICK_INTERVAL_NANOS) {
+            catchUp();
+        }
+    }
+
+    private synchronized void catchUp() {
+        final long elapsed = clock.tick() - lastTick;
+        final long requiredTicks = elapsed / TICK_INTERVAL_NANOS;
+        if(requiredTicks > 0) {
+            super.tick(requiredTicks);
+        }
+        // keep to whole intervals, so ticks do not drift later each time
+        lastTick += requiredTicks * TICK_INTERVAL_NANOS;
+    }
+
+    /**
+     * Ticks as many times as needed to bring the rates up to date
+     */
+    @Override
+    protected void tick() {
+        tickIfNecessary();
+    }
+
+    @Override
+    public void mark() {
+        tickIfNecessary();
+        super.mark();
+    }
+
+    @Override
+    public void mark(long n) {
+        tickIfNecessary();
+        super.mark(n);
+    }
+
+    @Override
+    public double fifteenMinuteRate() {
+        tickIfNecessary();
+        return super.fifteenMinuteRate();
+    }
+
+    @Override
+    public double fiveMinuteRate() {
+        tickIfNecessary();
+        return super.fiveMinuteRate();
+    }
+
+    @Override
+    public double oneMinuteRate() {
+        tickIfNecessary();
+        return super.oneMinuteRate();
+    }
+}
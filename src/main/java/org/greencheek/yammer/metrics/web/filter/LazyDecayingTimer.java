@@ -0,0 +1,127 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.ExtensibleTimer;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.stats.Snapshot;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link com.yammer.metrics.core.Timer} with no tick thread.  Durations are recorded into the same
+ * biased histogram as yammer's timer; the count and rates come from the given meter (normally a
+ * {@link LazyDecayingMeter}).
+ */
+public class LazyDecayingTimer extends ExtensibleTimer {
+
+    private final Meter meter;
+    private final Histogram histogram = newBiasedHistogram();
+    private final double nanosPerDurationUnit;
+
+    public LazyDecayingTimer(Meter meter, TimeUnit durationUnit, TimeUnit rateUnit, Clock clock) {
+        super(durationUnit, rateUnit, clock);
+        this.meter = meter;
+        this.nanosPerDurationUnit = durationUnit.toNanos(1);
+    }
+
+    @Override
+    public void update(long duration, TimeUnit unit) {
+        final long nanos = unit.toNanos(duration);
+        if (nanos >= 0) {
+            histogram.update(nanos);
+            meter.mark();
+        }
+    }
+
+    private double toDurationUnit(double nanos) {
+        return nanos / nanosPerDurationUnit;
+    }
+
+    @Override
+    public void clear() {
+        // called by the Timer constructor, before the histogram is set
+        if(histogram != null) {
+            histogram.clear();
+        }
+    }
+
+    @Override
+    public long count() {
+        return histogram.count();
+    }
+
+    @Override
+    public double fifteenMinuteRate() {
+        return meter.fifteenMinuteRate();
+    }
+
+    @Override
+    public double fiveMinuteRate() {
+        return meter.fiveMinuteRate();
+    }
+
+    @Override
+    public double meanRate() {
+        return meter.meanRate();
+    }
+
+    @Override
+    public double oneMinuteRate() {
+        return meter.oneMinuteRate();
+    }
+
+    @Override
+    public double max() {
+        return toDurationUnit(histogram.max());
+    }
+
+    @Override
+    public double min() {
+        return toDurationUnit(histogram.min());
+    }
+
+    @Override
+    public double mean() {
+        return toDurationUnit(histogram.mean());
+    }
+
+    @Override
+    public double stdDev() {
+        return toDurationUnit(histogram.stdDev());
+    }
+
+    @Override
+    public double sum() {
+        return toDurationUnit(histogram.sum());
+    }
+
+    @Override
+    public Snapshot getSnapshot() {
+        final double[] values = histogram.getSnapshot().getValues();
+        for(int i = 0; i < values.length; i++) {
+            values[i] = toDurationUnit(values[i]);
+        }
+        return new Snapshot(values);
+    }
+
+    @Override
+    public void stop() {
+        meter.stop();
+    }
+}
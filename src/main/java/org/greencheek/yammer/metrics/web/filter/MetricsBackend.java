@@ -0,0 +1,87 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.Timer;
+
+/**
+ * Creates, registers and removes the filter's metrics; selected by the filter's
+ * {@value ResponseCodeFilter#CONFIG_PARAM_METRICS_BACKEND} init param.
+ *
+ * The filter only ever updates the metrics through yammer's metric types (which every reporter in the filter
+ * reads), but which implementations are created, and which registry they are registered in, is up to the
+ * backend.  Metrics are all created when the filter is initialised, and removed when it is destroyed; a backend
+ * can therefore be tuned for a fixed set of metrics, and never be on a request's path.
+ *
+ * An implementation named by class in the init param needs a public no argument constructor.
+ */
+public interface MetricsBackend {
+
+    /**
+     * Creates (or returns the already registered) meter, whose rates are per second
+     */
+    Meter newMeter(MetricName name, String eventType);
+
+    /**
+     * Creates (or returns the already registered) timer, of durations in milliseconds and rates per second
+     */
+    Timer newTimer(MetricName name);
+
+    /**
+     * Creates (or returns the already registered) histogram, that reports on recent values
+     */
+    Histogram newHistogram(MetricName name);
+
+    /**
+     * Creates (or returns the already registered) counter
+     */
+    Counter newCounter(MetricName name);
+
+    /**
+     * Registers the gauge, or returns the gauge already registered under the name
+     */
+    <T> Gauge<T> newGauge(MetricName name, Gauge<T> gauge);
+
+    /**
+     * Registers a metric the filter created itself (i.e. a striped meter), or returns the metric already
+     * registered under the name
+     */
+    <T extends Metric> T register(MetricName name, T metric);
+
+    /**
+     * Removes, and stops, the metric registered under the name
+     */
+    void removeMetric(MetricName name);
+
+    /**
+     * The registry the metrics can be listed from, i.e. by the prometheus exposition.  The filter also uses it for
+     * the tick threads of the meters it creates itself.
+     */
+    MetricsRegistry getRegistry();
+
+    /**
+     * Releases what the backend owns, once the filter has removed its metrics; i.e. a registry of its own, and the
+     * tick threads in it.  A backend over a shared registry must leave that registry running.
+     */
+    void shutdown();
+}
@@ -0,0 +1,422 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.core.*;
+import com.yammer.metrics.stats.Snapshot;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes a filter's metrics in the Prometheus text exposition format (version 0.0.4).
+ *
+ * Everything about a metric that does not change between scrapes (the # TYPE line, and each sample's name
+ * and labels) is rendered to bytes once, when the metric is first seen.  A scrape then only writes the
+ * current values, straight into a byte buffer that is reused between scrapes; so a scrape is a single pass
+ * over the filter's metrics, allocating little more than the timer and histogram snapshots.  The metrics
+ * are re-read from the filter's metric names whenever the filter has created more of them (status code
+ * meters and routes are created as they are first seen).
+ *
+ * Meters and counters are exposed as counters (name_total), gauges with numeric values as gauges, and
+ * timers (in seconds) and histograms as summaries.  Per route metrics are exposed as one family per scope,
+ * with the route as a label.
+ */
+public class PrometheusExposition {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final String SERVLET_CONTEXT_ATTRIBUTE_PREFIX = PrometheusExposition.class.getName() + '.';
+
+    private static final double[] QUANTILES = {0.5, 0.75, 0.95, 0.98, 0.99, 0.999};
+    private static final String[] QUANTILE_LABELS = {"0.5", "0.75", "0.95", "0.98", "0.99", "0.999"};
+
+    private static final int TYPE_COUNTER = 0;
+    private static final int TYPE_METERED = 1;
+    private static final int TYPE_GAUGE = 2;
+    private static final int TYPE_TIMER = 3;
+    private static final int TYPE_HISTOGRAM = 4;
+
+    private static final byte[] NAN = utf8("NaN");
+    private static final byte[] POSITIVE_INFINITY = utf8("+Inf");
+    private static final byte[] NEGATIVE_INFINITY = utf8("-Inf");
+
+    // the fractional digits written for a double (nanosecond precision for the timers, which are in seconds)
+    private static final int DECIMAL_PLACES = 9;
+    private static final long DECIMAL_SCALE = 1000000000;
+    // doubles at least this large are written with Double.toString, as their scaled digits do not fit in a long
+    private static final double LARGEST_FIXED_POINT = 1e9;
+
+    /**
+     * A metric, and the bytes of its type line and of its samples' names and labels
+     */
+    private static final class Entry {
+        final int type;
+        final Metric metric;
+        final byte[] typeLine;
+        // for counters, meters and gauges the single sample; for summaries each quantile, then _sum, then _count
+        final byte[][] samples;
+        // converts a timer's durations to seconds
+        final double scale;
+
+        Entry(int type, Metric metric, byte[] typeLine, byte[][] samples, double scale) {
+            this.type = type;
+            this.metric = metric;
+            this.typeLine = typeLine;
+            this.samples = samples;
+            this.scale = scale;
+        }
+    }
+
+    private final MetricsRegistry registry;
+    private final Map<String, MetricName> metricNames;
+
+    // guarded by this
+    private Entry[] entries = new Entry[0];
+    private int namesSeen = -1;
+    private boolean incomplete;
+    private byte[] buffer = new byte[8192];
+    private int length;
+
+    /**
+     * @param metricNames the filter's metric names, which may be added to after construction
+     */
+    public PrometheusExposition(MetricsRegistry registry, Map<String, MetricName> metricNames) {
+        this.registry = registry;
+        this.metricNames = metricNames;
+    }
+
+    /**
+     * The servlet context attribute a filter's exposition is published under
+     */
+    public static String getServletContextAttribute(String filterName) {
+        return SERVLET_CONTEXT_ATTRIBUTE_PREFIX + filterName;
+    }
+
+    /**
+     * Renders the current values of the metrics into the response
+     */
+    public synchronized void writeTo(HttpServletResponse response) throws IOException {
+        renderToBuffer();
+        response.setContentType(CONTENT_TYPE);
+        response.setContentLength(length);
+        response.getOutputStream().write(buffer, 0, length);
+    }
+
+    /**
+     * Renders the current values of the metrics, returning them as a string (for tests and debugging)
+     */
+    public synchronized String render() throws UnsupportedEncodingException {
+        renderToBuffer();
+        return new String(buffer, 0, length, "UTF-8");
+    }
+
+    private void renderToBuffer() {
+        if(incomplete || namesSeen != metricNames.size()) {
+            rebuild();
+        }
+        length = 0;
+        for(Entry entry : entries) {
+            if(entry.typeLine != null) {
+                append(entry.typeLine);
+            }
+            writeSamples(entry);
+        }
+    }
+
+    private void writeSamples(Entry entry) {
+        switch(entry.type) {
+            case TYPE_COUNTER:
+                writeSample(entry.samples[0], ((Counter) entry.metric).count());
+                break;
+            case TYPE_METERED:
+                writeSample(entry.samples[0], ((Metered) entry.metric).count());
+                break;
+            case TYPE_GAUGE:
+                writeSample(entry.samples[0], ((Number) ((Gauge) entry.metric).value()).doubleValue());
+                break;
+            case TYPE_TIMER:
+                final Timer timer = (Timer) entry.metric;
+                writeSummary(entry, timer.getSnapshot(), timer.sum(), timer.count());
+                break;
+            default:
+                final Histogram histogram = (Histogram) entry.metric;
+                writeSummary(entry, histogram.getSnapshot(), histogram.sum(), histogram.count());
+                break;
+        }
+    }
+
+    private void writeSummary(Entry entry, Snapshot snapshot, double sum, long count) {
+        for(int i = 0; i < QUANTILES.length; i++) {
+            writeSample(entry.samples[i], snapshot.getValue(QUANTILES[i]) * entry.scale);
+        }
+        writeSample(entry.samples[QUANTILES.length], sum * entry.scale);
+        writeSample(entry.samples[QUANTILES.length + 1], count);
+    }
+
+    private void writeSample(byte[] sample, long value) {
+        append(sample);
+        appendLong(value);
+        appendByte((byte) '\n');
+    }
+
+    private void writeSample(byte[] sample, double value) {
+        append(sample);
+        appendDouble(value);
+        appendByte((byte) '\n');
+    }
+
+    /**
+     * Re-reads the metrics for the filter's metric names, grouping them into families so that each family's
+     * type line is written once, before all of its samples.
+     */
+    private void rebuild() {
+        namesSeen = metricNames.size();
+        incomplete = false;
+        final Map<MetricName, Metric> metrics = registry.allMetrics();
+        final TreeMap<String, List<Entry>> families = new TreeMap<String, List<Entry>>();
+        for(MetricName name : metricNames.values()) {
+            final Metric metric = metrics.get(name);
+            if(metric == null) {
+                // named, but not yet registered
+                incomplete = true;
+                continue;
+            }
+            final Entry entry = createEntry(name, metric);
+            if(entry == null) {
+                continue;
+            }
+            final String family = familyName(name, metric);
+            List<Entry> entries = families.get(family);
+            if(entries == null) {
+                entries = new ArrayList<Entry>();
+                families.put(family, entries);
+            }
+            entries.add(entry);
+        }
+
+        final List<Entry> ordered = new ArrayList<Entry>();
+        for(List<Entry> family : families.values()) {
+            boolean first = true;
+            for(Entry entry : family) {
+                ordered.add(first ? entry : new Entry(entry.type, entry.metric, null, entry.samples, entry.scale));
+                first = false;
+            }
+        }
+        entries = ordered.toArray(new Entry[ordered.size()]);
+    }
+
+    private static boolean isRoute(MetricName name) {
+        return ResponseCodeFilter.METRIC_SCOPE_ROUTE_REQUESTS.equals(name.getScope())
+                || ResponseCodeFilter.METRIC_SCOPE_ROUTE_RESPONSES.equals(name.getScope());
+    }
+
+    private static String familyName(MetricName name, Metric metric) {
+        final String base = isRoute(name)
+                ? sanitise(name.getGroup() + '_' + name.getType() + '_' + name.getScope())
+                : sanitise(name.getGroup() + '_' + name.getType() + '_' + name.getName());
+        if(metric instanceof Timer) {
+            return base + "_seconds";
+        } else if(metric instanceof Metered || metric instanceof Counter) {
+            return base + "_total";
+        }
+        return base;
+    }
+
+    private static Entry createEntry(MetricName name, Metric metric) {
+        final String family = familyName(name, metric);
+        final String labels = labels(name);
+        if(metric instanceof Timer) {
+            final TimeUnit durationUnit = ((Timer) metric).durationUnit();
+            return new Entry(TYPE_TIMER, metric, typeLine(family, "summary"), summarySamples(family, labels),
+                    durationUnit.toNanos(1) / (double) TimeUnit.SECONDS.toNanos(1));
+        } else if(metric instanceof Metered) {
+            return new Entry(TYPE_METERED, metric, typeLine(family, "counter"), sample(family, labels), 1.0);
+        } else if(metric instanceof Counter) {
+            return new Entry(TYPE_COUNTER, metric, typeLine(family, "counter"), sample(family, labels), 1.0);
+        } else if(metric instanceof Histogram) {
+            return new Entry(TYPE_HISTOGRAM, metric, typeLine(family, "summary"), summarySamples(family, labels), 1.0);
+        } else if(metric instanceof Gauge && ((Gauge) metric).value() instanceof Number) {
+            return new Entry(TYPE_GAUGE, metric, typeLine(family, "gauge"), sample(family, labels), 1.0);
+        }
+        // gauges of other values can not be exposed
+        return null;
+    }
+
+    /**
+     * The labels of a sample, without the closing brace: the scope, or for per route metrics the route
+     * (and the response type of route response meters)
+     */
+    private static String labels(MetricName name) {
+        if(ResponseCodeFilter.METRIC_SCOPE_ROUTE_RESPONSES.equals(name.getScope())) {
+            final String route = name.getName();
+            final int responseType = route.lastIndexOf('.');
+            return "{route=\"" + escape(route.substring(0, responseType)) + "\",response=\""
+                    + escape(route.substring(responseType + 1)) + '"';
+        } else if(ResponseCodeFilter.METRIC_SCOPE_ROUTE_REQUESTS.equals(name.getScope())) {
+            return "{route=\"" + escape(name.getName()) + '"';
+        }
+        return "{scope=\"" + escape(name.getScope() == null ? "" : name.getScope()) + '"';
+    }
+
+    private static byte[] typeLine(String family, String type) {
+        return utf8("# TYPE " + family + ' ' + type + '\n');
+    }
+
+    private static byte[][] sample(String family, String labels) {
+        return new byte[][] {utf8(family + labels + "} ")};
+    }
+
+    private static byte[][] summarySamples(String family, String labels) {
+        final byte[][] samples = new byte[QUANTILES.length + 2][];
+        for(int i = 0; i < QUANTILES.length; i++) {
+            samples[i] = utf8(family + labels + ",quantile=\"" + QUANTILE_LABELS[i] + "\"} ");
+        }
+        samples[QUANTILES.length] = utf8(family + "_sum" + labels + "} ");
+        samples[QUANTILES.length + 1] = utf8(family + "_count" + labels + "} ");
+        return samples;
+    }
+
+    /**
+     * Replaces every character that is not allowed in a metric name with an underscore
+     */
+    static String sanitise(String name) {
+        final StringBuilder b = new StringBuilder(name.length());
+        for(int i = 0; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':' || (c >= '0' && c <= '9' && i > 0)) {
+                b.append(c);
+            } else {
+                b.append('_');
+            }
+        }
+        return b.toString();
+    }
+
+    private static String escape(String labelValue) {
+        final StringBuilder b = new StringBuilder(labelValue.length());
+        for(int i = 0; i < labelValue.length(); i++) {
+            final char c = labelValue.charAt(i);
+            if(c == '\\' || c == '"') {
+                b.append('\\').append(c);
+            } else if(c == '\n') {
+                b.append("\\n");
+            } else {
+                b.append(c);
+            }
+        }
+        return b.toString();
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch(UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if(length + extra > buffer.length) {
+            final byte[] larger = new byte[Math.max(buffer.length * 2, length + extra)];
+            System.arraycopy(buffer, 0, larger, 0, length);
+            buffer = larger;
+        }
+    }
+
+    private void append(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void appendByte(byte b) {
+        ensureCapacity(1);
+        buffer[length++] = b;
+    }
+
+    private void appendLong(long value) {
+        if(value == Long.MIN_VALUE) {
+            append(utf8(Long.toString(value)));
+            return;
+        }
+        // 19 digits and a sign
+        ensureCapacity(20);
+        if(value < 0) {
+            buffer[length++] = '-';
+            value = -value;
+        }
+        final int start = length;
+        do {
+            buffer[length++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while(value != 0);
+        // the digits were written least significant first
+        for(int i = start, j = length - 1; i < j; i++, j--) {
+            final byte digit = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = digit;
+        }
+    }
+
+    /**
+     * Writes a double with up to {@link #DECIMAL_PLACES} fractional digits, without creating a string
+     */
+    private void appendDouble(double value) {
+        if(Double.isNaN(value)) {
+            append(NAN);
+        } else if(Double.isInfinite(value)) {
+            append(value > 0 ? POSITIVE_INFINITY : NEGATIVE_INFINITY);
+        } else if(Math.abs(value) >= LARGEST_FIXED_POINT) {
+            append(utf8(Double.toString(value)));
+        } else {
+            if(value < 0) {
+                appendByte((byte) '-');
+                value = -value;
+            }
+            long scaled = Math.round(value * DECIMAL_SCALE);
+            appendLong(scaled / DECIMAL_SCALE);
+            long fraction = scaled % DECIMAL_SCALE;
+            if(fraction != 0) {
+                int digits = DECIMAL_PLACES;
+                while(fraction % 10 == 0) {
+                    fraction /= 10;
+                    digits--;
+                }
+                appendByte((byte) '.');
+                // leading zeros of the fraction
+                for(; digits > 1 && fraction < pow10(digits - 1); digits--) {
+                    appendByte((byte) '0');
+                }
+                appendLong(fraction);
+            }
+        }
+    }
+
+    private static long pow10(int exponent) {
+        long result = 1;
+        for(int i = 0; i < exponent; i++) {
+            result *= 10;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Serves the metrics of a {@link ResponseCodeFilter} (that has {@value ResponseCodeFilter#CONFIG_PARAM_PROMETHEUS_EXPOSITION}
+ * enabled) in the Prometheus text format.  The filter is found by its name, from the servlet's
+ * {@value #CONFIG_PARAM_FILTER_NAME} init param; defaulting to the filter's default name.
+ */
+public class PrometheusExpositionServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String CONFIG_PARAM_FILTER_NAME = "filter-name";
+
+    private volatile String attributeName;
+
+    @Override
+    public void init(ServletConfig config) throws ServletException {
+        super.init(config);
+        String filterName = config.getInitParameter(CONFIG_PARAM_FILTER_NAME);
+        if(filterName == null || filterName.trim().length() == 0) {
+            filterName = ResponseCodeFilter.DEFAULT_FILTER_NAME;
+        }
+        attributeName = PrometheusExposition.getServletContextAttribute(filterName.trim());
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        // looked up on each scrape, as the filter may be initialised (or re-initialised) after the servlet
+        final Object exposition = getServletContext().getAttribute(attributeName);
+        if(exposition instanceof PrometheusExposition) {
+            response.setHeader("Cache-Control", "must-revalidate,no-cache,no-store");
+            ((PrometheusExposition) exposition).writeTo(response);
+        } else {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The single background thread that drains a {@link RequestEventRing} into the metrics, so that
+ * request threads only pay for writing a record into the ring.
+ *
+ * Records are drained in batches.  When the ring is empty the thread parks, rather than spinning; for
+ * longer each time it finds the ring still empty (from 1 millisecond up to 100 milliseconds), so an idle
+ * filter only wakes the thread 10 times a second.  Request threads call {@link #published()} after
+ * offering a record, which unparks the thread if it is parked; so a request arriving at an idle filter is
+ * recorded straight away.  The wake up can be missed if the record is published just as the thread parks,
+ * in which case the record waits for the end of the park.  {@link #stop()} drains whatever is left in
+ * the ring before the thread exits.
+ */
+public class RequestEventAggregator implements Runnable {
+
+    private static final int BATCH_SIZE = 256;
+    private static final long MIN_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long MAX_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final RequestEventRing ring;
+    private final RequestEventRing.Handler handler;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile boolean parked;
+
+    public RequestEventAggregator(RequestEventRing ring, RequestEventRing.Handler handler, String threadName) {
+        this.ring = ring;
+        this.handler = handler;
+        this.thread = new Thread(this, threadName);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        long idleParkNanos = MIN_IDLE_PARK_NANOS;
+        while(running) {
+            if(drainSafely() > 0) {
+                idleParkNanos = MIN_IDLE_PARK_NANOS;
+                continue;
+            }
+            parked = true;
+            // checked again once parked is set, so a record published before a producer could see it is not left waiting
+            if(drainSafely() == 0) {
+                LockSupport.parkNanos(this, idleParkNanos);
+                idleParkNanos = Math.min(idleParkNanos * 2, MAX_IDLE_PARK_NANOS);
+            } else {
+                idleParkNanos = MIN_IDLE_PARK_NANOS;
+            }
+            parked = false;
+        }
+        // Record anything published before the filter was stopped
+        while(drainSafely() > 0) {
+        }
+    }
+
+    private int drainSafely() {
+        try {
+            return ring.drain(handler, BATCH_SIZE);
+        } catch (RuntimeException e) {
+            // a failing metric must not stop the thread; the record that failed is lost
+            return 1;
+        }
+    }
+
+    /**
+     * Called by a request thread after it has offered a record to the ring; wakes the thread if it is parked
+     */
+    public void published() {
+        if(parked) {
+            parked = false;
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Stops the thread, waiting for it to drain the records left in the ring
+     */
+    public void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isRunning() {
+        return thread.isAlive();
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock free, multiple producer single consumer ring buffer of completed request records.
+ *
+ * Each record is a fixed set of primitives (request method index, status code, duration, time to first byte,
+ * response bytes, route id and admin endpoint index) held in preallocated arrays, so offering a record allocates nothing.  Request
+ * threads claim a slot with a single compare and set of the tail sequence, write the record, and then
+ * publish it by (lazily) setting the slot's sequence; the single consumer drains published records in
+ * order, and hands the slot back by setting its sequence one lap ahead.
+ *
+ * When the ring is full {@link #offer} returns false rather than waiting for the consumer.
+ */
+public class RequestEventRing {
+
+    /**
+     * Receives the records drained from the ring
+     */
+    public interface Handler {
+        void onRequest(int methodIndex, int statusCode, long durationNanos, long firstByteNanos, long responseBytes,
+                       int routeId, int adminEndpoint);
+    }
+
+    // Number of ints per record
+    private static final int RECORD_INTS = 4;
+    private static final int METHOD = 0;
+    private static final int STATUS = 1;
+    private static final int ROUTE = 2;
+    private static final int ADMIN = 3;
+
+    // index of the tail sequence in the padded tail array, keeping it on its own cache line
+    private static final int TAIL = StripedCounter.CELL_PADDING;
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final int[] records;
+    private final long[] durations;
+    private final long[] firstByteDurations;
+    private final long[] responseBytes;
+    private final AtomicLongArray tail = new AtomicLongArray(TAIL * 2);
+
+    // Only read and written by the consumer
+    private long head;
+
+    /**
+     * @param capacity the number of records the ring holds, rounded up to a power of two
+     */
+    public RequestEventRing(int capacity) {
+        int size = 2;
+        while(size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        for(int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.records = new int[size * RECORD_INTS];
+        this.durations = new long[size];
+        this.firstByteDurations = new long[size];
+        this.responseBytes = new long[size];
+    }
+
+    /**
+     * Adds a record to the ring.  Returns false, without adding the record, if the ring is full.
+     */
+    public boolean offer(int methodIndex, int statusCode, long durationNanos, long firstByteNanos, long bytes,
+                         int routeId, int adminEndpoint) {
+        long position = tail.get(TAIL);
+        int slot;
+        for(;;) {
+            slot = (int) (position & mask);
+            final long difference = sequences.get(slot) - position;
+            if(difference == 0) {
+                if(tail.compareAndSet(TAIL, position, position + 1)) {
+                    break;
+                }
+                position = tail.get(TAIL);
+            } else if(difference < 0) {
+                // the consumer has not yet drained this slot's record from the previous lap
+                return false;
+            } else {
+                // another producer claimed the slot
+                position = tail.get(TAIL);
+            }
+        }
+
+        final int record = slot * RECORD_INTS;
+        records[record + METHOD] = methodIndex;
+        records[record + STATUS] = statusCode;
+        records[record + ROUTE] = routeId;
+        records[record + ADMIN] = adminEndpoint;
+        durations[slot] = durationNanos;
+        firstByteDurations[slot] = firstByteNanos;
+        responseBytes[slot] = bytes;
+        sequences.lazySet(slot, position + 1);
+        return true;
+    }
+
+    /**
+     * Passes up to {@code maxRecords} records to the handler, in the order they were published.
+     * Must only be called by the single consumer thread.
+     *
+     * @return the number of records drained
+     */
+    public int drain(Handler handler, int maxRecords) {
+        int drained = 0;
+        while(drained < maxRecords) {
+            final long position = head;
+            final int slot = (int) (position & mask);
+            if(sequences.get(slot) != position + 1) {
+                // not yet published
+                break;
+            }
+            final int record = slot * RECORD_INTS;
+            final int methodIndex = records[record + METHOD];
+            final int statusCode = records[record + STATUS];
+            final int routeId = records[record + ROUTE];
+            final int adminEndpoint = records[record + ADMIN];
+            final long durationNanos = durations[slot];
+            final long firstByteNanos = firstByteDurations[slot];
+            final long bytes = responseBytes[slot];
+            sequences.lazySet(slot, position + capacity);
+            // moved on before calling the handler, so a handler that throws does not leave the ring inconsistent
+            head = position + 1;
+            drained++;
+            handler.onRequest(methodIndex, statusCode, durationNanos, firstByteNanos, bytes, routeId, adminEndpoint);
+        }
+        return drained;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * The approximate number of records waiting to be drained
+     */
+    public int size() {
+        long size = tail.get(TAIL) - head;
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+}
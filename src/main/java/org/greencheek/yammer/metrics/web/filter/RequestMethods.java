@@ -0,0 +1,153 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Maps a request's HTTP method onto an index, from 0 to {@link #size()} - 1, with the last index
+ * being for any method that has not been registered ("other").
+ *
+ * The lookup is a hash of the method's length and its first and last characters (case folded)
+ * into a table built when the filter is initialised, followed by a single case insensitive
+ * comparison against the registered method in that slot.  So the cost of a lookup does not depend
+ * on how many methods are registered, or on where in the list a method is, and nothing is allocated.
+ */
+public class RequestMethods {
+
+    public static final String GET = "GET", POST = "POST", HEAD = "HEAD", PUT = "PUT", DELETE = "DELETE";
+
+    // The name of the index for the methods that have not been registered
+    public static final String OTHER = "other";
+
+    // The methods that always have their own timer, in index order
+    public static final List<String> DEFAULT_METHODS = Collections.unmodifiableList(
+            Arrays.asList(GET, POST, HEAD, PUT, DELETE));
+
+    private static final class Entry {
+        final String method;
+        final int index;
+        final Entry next;
+
+        Entry(String method, int index, Entry next) {
+            this.method = method;
+            this.index = index;
+            this.next = next;
+        }
+    }
+
+    private final List<String> methods;
+    private final List<String> methodsAndOther;
+    private final Entry[] table;
+    private final int mask;
+    private final int otherIndex;
+
+    /**
+     * Registers the default methods, followed by the given additional methods.
+     * Duplicates, and blank methods, are ignored.
+     */
+    public RequestMethods(List<String> additionalMethods) {
+        List<String> registered = new ArrayList<String>(DEFAULT_METHODS);
+        for(String method : additionalMethods) {
+            String normalised = method.trim().toUpperCase(Locale.ENGLISH);
+            if(normalised.length() > 0 && !registered.contains(normalised)) {
+                registered.add(normalised);
+            }
+        }
+
+        this.methods = Collections.unmodifiableList(registered);
+        this.otherIndex = registered.size();
+        List<String> withOther = new ArrayList<String>(registered);
+        withOther.add(OTHER);
+        this.methodsAndOther = Collections.unmodifiableList(withOther);
+
+        int tableSize = 16;
+        while(tableSize < registered.size() * 4) {
+            tableSize <<= 1;
+        }
+        this.table = new Entry[tableSize];
+        this.mask = tableSize - 1;
+
+        for(int i = 0; i < registered.size(); i++) {
+            String method = registered.get(i);
+            int slot = slot(method);
+            table[slot] = new Entry(method, i, table[slot]);
+        }
+    }
+
+    public RequestMethods() {
+        this(Collections.<String>emptyList());
+    }
+
+    private int slot(String method) {
+        final int length = method.length();
+        final int first = upperCase(method.charAt(0));
+        final int last = upperCase(method.charAt(length - 1));
+        return ((length * 31 + first) * 31 + last) & mask;
+    }
+
+    private static int upperCase(char c) {
+        return (c >= 'a' && c <= 'z') ? c - ('a' - 'A') : c;
+    }
+
+    /**
+     * Returns the index for the given request method, or {@link #otherIndex()} if the method is not registered.
+     */
+    public int indexOf(String method) {
+        if(method == null || method.length() == 0) {
+            return otherIndex;
+        }
+
+        for(Entry entry = table[slot(method)]; entry != null; entry = entry.next) {
+            if(entry.method.length() == method.length() && entry.method.equalsIgnoreCase(method)) {
+                return entry.index;
+            }
+        }
+        return otherIndex;
+    }
+
+    /**
+     * The index for methods that have not been registered
+     */
+    public int otherIndex() {
+        return otherIndex;
+    }
+
+    /**
+     * The number of indexes; the registered methods plus "other"
+     */
+    public int size() {
+        return otherIndex + 1;
+    }
+
+    /**
+     * The registered methods, in index order (upper case)
+     */
+    public List<String> getMethods() {
+        return methods;
+    }
+
+    /**
+     * The registered methods followed by {@value #OTHER}, so one name for each index
+     */
+    public List<String> getMethodsAndOther() {
+        return methodsAndOther;
+    }
+}
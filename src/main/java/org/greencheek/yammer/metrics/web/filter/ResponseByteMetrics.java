@@ -0,0 +1,55 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Meter;
+
+/**
+ * The size of response bodies, per request method and per response status class: a histogram of the
+ * bytes in each response, and a meter of the bytes per second.
+ */
+public class ResponseByteMetrics {
+
+    private final Histogram[] bytesForRequestMethods;
+    private final Meter[] throughputForRequestMethods;
+    private final Histogram[] bytesForResponses;
+    private final Meter[] throughputForResponses;
+
+    /**
+     * @param bytesForRequestMethods histograms indexed by request method index
+     * @param throughputForRequestMethods meters indexed by request method index
+     * @param bytesForResponses the 1xx, 2xx, 3xx, 4xx, 5xx and unknown response histograms
+     * @param throughputForResponses the 1xx, 2xx, 3xx, 4xx, 5xx and unknown response meters
+     */
+    public ResponseByteMetrics(Histogram[] bytesForRequestMethods, Meter[] throughputForRequestMethods,
+                               Histogram[] bytesForResponses, Meter[] throughputForResponses) {
+        this.bytesForRequestMethods = bytesForRequestMethods;
+        this.throughputForRequestMethods = throughputForRequestMethods;
+        this.bytesForResponses = bytesForResponses;
+        this.throughputForResponses = throughputForResponses;
+    }
+
+    public void update(int methodIndex, int responseCode, long bytes) {
+        bytesForRequestMethods[methodIndex].update(bytes);
+        throughputForRequestMethods[methodIndex].mark(bytes);
+
+        final int response = responseCode / 100;
+        final int responseIndex = (response >= 1 && response <= 5) ? response - 1 : 5;
+        bytesForResponses[responseIndex].update(bytes);
+        throughputForResponses[responseIndex].mark(bytes);
+    }
+}
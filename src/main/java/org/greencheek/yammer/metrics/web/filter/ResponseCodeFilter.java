@@ -15,12 +15,13 @@
  */
 package org.greencheek.yammer.metrics.web.filter;
 
-import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.*;
 import com.yammer.metrics.core.Timer;
 import com.yammer.metrics.util.RatioGauge;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
@@ -40,9 +41,6 @@ public class ResponseCodeFilter implements Filter
 
     public static final Class<ResponseCodeFilter> RESPONSE_CODE_FILTER_CLASS = ResponseCodeFilter.class;
 
-    private final static String GET = "GET", POST = "POST", HEAD = "HEAD", PUT = "PUT",
-            DELETE = "DELETE";
-
     private static final String DEFAULT_PING_ADMIN_URL ="/ping";
     private static final String DEFAULT_METRIC_ADMIN_URL ="/metrics";
     private static final String DEFAULT_HEALTH_ADMIN_URL ="/healthcheck";
@@ -55,6 +53,108 @@ public class ResponseCodeFilter implements Filter
     public static final String CONFIG_PARAM_THREAD_ADMIN_URL = "threads-endpoint";
     public static final String CONFIG_PARAM_MONITORING_GROUP_NAME = "monitoring-group-name";
     public static final String CONFIG_PARAM_MONITORING_TYPE_NAME = "monitoring-type-name";
+    public static final String CONFIG_PARAM_METER_TYPE = "meter-type";
+    public static final String CONFIG_PARAM_METRICS_BACKEND = "metrics-backend";
+    public static final String CONFIG_PARAM_TIMER_TYPE = "timer-type";
+    public static final String CONFIG_PARAM_HDR_TIMER_SIGNIFICANT_DIGITS = "hdr-timer-significant-digits";
+    public static final String CONFIG_PARAM_HDR_TIMER_WINDOW_SECONDS = "hdr-timer-window-seconds";
+    public static final String CONFIG_PARAM_STATUS_CODE_METRICS = "status-code-metrics";
+    public static final String CONFIG_PARAM_ADDITIONAL_REQUEST_METHODS = "additional-request-methods";
+    public static final String CONFIG_PARAM_ROUTE_METRICS = "route-metrics";
+    public static final String CONFIG_PARAM_ROUTE_PATTERNS = "route-patterns";
+    public static final String CONFIG_PARAM_ROUTE_MAX_ROUTES = "route-max-routes";
+    public static final String CONFIG_PARAM_ROUTE_MAX_CACHED_PATHS = "route-max-cached-paths";
+    public static final String CONFIG_PARAM_ROUTE_IDLE_SECONDS = "route-idle-seconds";
+    public static final String CONFIG_PARAM_TIMER_SAMPLING = "timer-sampling";
+    public static final String CONFIG_PARAM_TIMER_SAMPLING_INTERVAL = "timer-sampling-interval";
+    public static final String CONFIG_PARAM_TIMER_SAMPLING_RATE_THRESHOLD = "timer-sampling-rate-threshold";
+    public static final String CONFIG_PARAM_RESPONSE_BYTE_METRICS = "response-byte-metrics";
+    public static final String CONFIG_PARAM_RESPONSE_BYTE_METRICS_UNWRAPPED_PATHS = "response-byte-metrics-unwrapped-paths";
+    public static final String CONFIG_PARAM_TIME_TO_FIRST_BYTE_METRICS = "time-to-first-byte-metrics";
+    public static final String CONFIG_PARAM_THREAD_RESOURCE_METRICS = "thread-resource-metrics";
+    public static final String CONFIG_PARAM_STATUS_CLASS_TIMERS = "status-class-timers";
+    public static final String CONFIG_PARAM_PROMETHEUS_EXPOSITION = "prometheus-exposition";
+    public static final String CONFIG_PARAM_SHARED_COUNTERS_FILE = "shared-counters-file";
+    public static final String CONFIG_PARAM_SHARED_COUNTERS_INTERVAL_MILLIS = "shared-counters-interval-millis";
+    public static final String CONFIG_PARAM_ACCESS_LOG_DIRECTORY = "access-log-directory";
+    public static final String CONFIG_PARAM_ACCESS_LOG_SEGMENT_RECORDS = "access-log-segment-records";
+    public static final String CONFIG_PARAM_ACCESS_LOG_MAX_SEGMENTS = "access-log-max-segments";
+    public static final String CONFIG_PARAM_ACCESS_LOG_THREAD_BUFFER_RECORDS = "access-log-thread-buffer-records";
+    public static final String CONFIG_PARAM_ACCESS_LOG_MAX_PATHS = "access-log-max-paths";
+    public static final String CONFIG_PARAM_ACCESS_LOG_FLUSH_INTERVAL_MILLIS = "access-log-flush-interval-millis";
+    public static final String CONFIG_PARAM_HEAVY_HITTERS = "heavy-hitters";
+    public static final String CONFIG_PARAM_HEAVY_HITTERS_CAPACITY = "heavy-hitters-capacity";
+    public static final String CONFIG_PARAM_HEAVY_HITTERS_TOP = "heavy-hitters-top";
+    public static final String CONFIG_PARAM_SLOWEST_REQUESTS = "slowest-requests";
+    public static final String CONFIG_PARAM_SLOWEST_REQUESTS_SIZE = "slowest-requests-size";
+    public static final String CONFIG_PARAM_SLOWEST_REQUESTS_INTERVAL_SECONDS = "slowest-requests-interval-seconds";
+    public static final String CONFIG_PARAM_FLIGHT_RECORDER_EVENTS = "flight-recorder-events";
+    public static final String CONFIG_PARAM_FLIGHT_RECORDER_EVENTS_THRESHOLD_MILLIS = "flight-recorder-events-threshold-millis";
+    public static final String CONFIG_PARAM_CONCURRENCY_METRICS = "concurrency-metrics";
+    public static final String CONFIG_PARAM_CONCURRENCY_MAX_INTERVAL_SECONDS = "concurrency-max-interval-seconds";
+    public static final String CONFIG_PARAM_BACKGROUND_AGGREGATION = "background-aggregation";
+    public static final String CONFIG_PARAM_BACKGROUND_AGGREGATION_RING_SIZE = "background-aggregation-ring-size";
+    public static final String CONFIG_PARAM_BACKGROUND_AGGREGATION_RING_FULL_POLICY = "background-aggregation-ring-full-policy";
+
+    private static final int DEFAULT_ROUTE_MAX_ROUTES = 100;
+    private static final int DEFAULT_ROUTE_MAX_CACHED_PATHS = 1000;
+    private static final int DEFAULT_ROUTE_IDLE_SECONDS = 600;
+
+    // Values for the meter-type init param
+    public static final String METER_TYPE_DEFAULT = "default";
+    public static final String METER_TYPE_STRIPED = "striped";
+    public static final String METER_TYPE_LAZY = "lazy";
+
+    // Values for the metrics-backend init param
+    public static final String METRICS_BACKEND_YAMMER = "yammer";
+    public static final String METRICS_BACKEND_BUILTIN = "builtin";
+
+    // Values for the timer-type init param
+    public static final String TIMER_TYPE_DEFAULT = "default";
+    public static final String TIMER_TYPE_HDR = "hdr";
+
+    private static final int DEFAULT_HDR_TIMER_SIGNIFICANT_DIGITS = 2;
+    private static final int DEFAULT_HDR_TIMER_WINDOW_SECONDS = 60;
+
+    // Values for the background-aggregation-ring-full-policy init param
+    public static final String RING_FULL_POLICY_DROP = "drop";
+    public static final String RING_FULL_POLICY_INLINE = "inline";
+
+    private static final int DEFAULT_BACKGROUND_AGGREGATION_RING_SIZE = 8192;
+
+    private static final int DEFAULT_CONCURRENCY_MAX_INTERVAL_SECONDS = 60;
+    private static final int DEFAULT_SHARED_COUNTERS_INTERVAL_MILLIS = 1000;
+    private static final int DEFAULT_ACCESS_LOG_SEGMENT_RECORDS = 1024 * 1024;
+    private static final int DEFAULT_ACCESS_LOG_MAX_SEGMENTS = 10;
+    private static final int DEFAULT_ACCESS_LOG_THREAD_BUFFER_RECORDS = 1024;
+    private static final int DEFAULT_ACCESS_LOG_MAX_PATHS = 10000;
+    private static final int DEFAULT_ACCESS_LOG_FLUSH_INTERVAL_MILLIS = 100;
+    private static final int DEFAULT_HEAVY_HITTERS_CAPACITY = 64;
+    private static final int DEFAULT_HEAVY_HITTERS_TOP = 10;
+    private static final int DEFAULT_SLOWEST_REQUESTS_SIZE = 10;
+    private static final int DEFAULT_SLOWEST_REQUESTS_INTERVAL_SECONDS = 60;
+
+    private static final int DEFAULT_TIMER_SAMPLING_INTERVAL = 10;
+    private static final int DEFAULT_TIMER_SAMPLING_RATE_THRESHOLD = 1000;
+
+    /**
+     * The start time, and duration, of a request that is not being timed
+     */
+    protected static final long NOT_TIMED = -1;
+
+    /**
+     * The response bytes of a request whose response body is not being counted
+     */
+    protected static final long NOT_COUNTED = -1;
+
+    // Request attributes with which tomcat's default servlet hands a file to the connector to send, bypassing the response
+    private static final String TOMCAT_SENDFILE_START_ATTRIBUTE = "org.apache.tomcat.sendfile.start";
+    private static final String TOMCAT_SENDFILE_END_ATTRIBUTE = "org.apache.tomcat.sendfile.end";
+
+    // the admin endpoint index of requests that are not for an admin endpoint
+    private static final int NO_ADMIN_ENDPOINT = -1;
+    // the route id of requests when route metrics are not enabled
+    private static final int NO_ROUTE = -1;
 
     public String pingUrl;
     public String metricsUrl;
@@ -62,21 +162,36 @@ public class ResponseCodeFilter implements Filter
     public String threadUrl;
     public String monitoringGroupName;
     public String monitoringTypeName;
+    public String meterType;
+    public String timerType;
 
     private volatile String filterName;
 
+    // true if the container's response exposes getStatus() (servlet 3.0+), so it does not need wrapping
+    private boolean responseStatusAvailable;
+
 
+    // Maps the admin endpoint urls onto the index of their meter
+    private Map<String,Integer> adminEndpoints;
 
     // Requests for specifically monitoring metrics requests
-    private Map<String,Meter> adminMetrics;
+    private Meter[] adminMetrics;
+
+    // Maps the request method onto the index of its timer
+    private RequestMethods requestMethods;
+
+    // Timers for last requests, indexed by request method (other requests last)
+    private Timer[] timeTakenForRequestMethods;
+
+    // Timers per request method and response type, indexed by request method then by status / 100 - 1 (unknown
+    // responses last); null when not enabled
+    private Timer[][] timeTakenForRequestMethodsByResponseType;
 
-    // Timers for last requests.
-    private Timer timeTakenForGetsPerSecond;
-    private Timer timeTakenForPostPerSecond;
-    private Timer timeTakenForHeadPerSecond;
-    private Timer timeTakenForPutPerSecond;
-    private Timer timeTakenForDeletePerSecond;
-    private Timer timeTakenForOtherRequestTypesForSecond;
+    // Timers for the time to the first byte of the response, indexed by request method; null when not timing it
+    private Timer[] timeToFirstByteForRequestMethods;
+
+    // Creates and registers the metrics
+    private MetricsBackend metricsBackend;
 
     // The response types being output per second
     private Meter[] responses;
@@ -84,6 +199,59 @@ public class ResponseCodeFilter implements Filter
     // The number of requests per second being served
     private Meter requestsPerSecond;
 
+    // Counts of the individual status codes, when enabled
+    private StatusCodeCounters statusCodeCounters;
+
+    // Timers and response meters per route, when enabled
+    private RouteMetrics routeMetrics;
+
+    // The size of response bodies, when counting them
+    private ResponseByteMetrics responseByteMetrics;
+    // The requests whose responses are passed down the chain unwrapped even when counting, and are counted from
+    // what the container reports (null if none, or on servlet 2.5 where every response is wrapped)
+    private UrlPatterns unwrappedResponsePaths;
+
+    // The cpu time and allocation of requests per request method, and the cost of reading them, when enabled
+    // (and supported by the jvm).  An array is null when its reading is not supported.
+    private ThreadResourceMeter threadResourceMeter;
+    private Histogram[] cpuTimeForRequestMethods;
+    private Histogram[] allocatedBytesForRequestMethods;
+    private Histogram threadResourceOverhead;
+
+    // The requests in flight, and the concurrency requests arrived at, when enabled
+    private ConcurrencyTracker concurrencyTracker;
+    private Histogram concurrencyAtArrival;
+
+    // The servlet context the prometheus exposition of the metrics is published in, when enabled
+    private ServletContext expositionContext;
+
+    // The memory mapped file the counters are published to, when enabled
+    private volatile SharedCountersFile sharedCountersFile;
+
+    // The binary access log requests are appended to, when enabled
+    private volatile AccessLog accessLog;
+
+    // The most requested servlet paths per status class, when enabled
+    private volatile HeavyHitters heavyHitters;
+
+    // The slowest requests of each interval, when enabled
+    private volatile SlowestRequests slowestRequests;
+
+    // Emits a flight recorder event per request, when enabled and supported by the jvm
+    private FlightRecorderEvents flightRecorderEvents;
+
+    // The servlet context the heavy hitters and slowest requests are published to
+    private ServletContext servletContext;
+
+    // Decides which requests are timed, when sampling (null if every request is timed)
+    private TimerSampler timerSampler;
+
+    // When aggregating in the background, the ring the request threads record into, and the thread draining it
+    private RequestEventRing requestEventRing;
+    private RequestEventAggregator requestEventAggregator;
+    private boolean recordInlineWhenRingFull;
+    private StripedCounter ringFullRequests;
+
     // The ratio for the number of non success codes in the past 5,10,15 minutes
     private List<Gauge> nonSuccessCodes;
 
@@ -100,17 +268,42 @@ public class ResponseCodeFilter implements Filter
     public static final String METRIC_NAME_LOOKUP_4XX_RESPONSES = "4xx-responses";
     public static final String METRIC_NAME_LOOKUP_5XX_RESPONSES = "5xx-responses";
     public static final String METRIC_NAME_LOOKUP_UNKNOWN_RESPONSES = "unknown-responses";
+    // The status classes of responses, in the order of the index of their metrics (the response code / 100, less one)
+    public static final String[] STATUS_CLASSES = {"1xx", "2xx", "3xx", "4xx", "5xx", "unknown"};
     public static final String METRIC_NAME_LOOKUP_GET_REQUEST = "get-requests";
     public static final String METRIC_NAME_LOOKUP_HEAD_REQUEST = "head-requests";
     public static final String METRIC_NAME_LOOKUP_PUT_REQUEST = "put-requests";
     public static final String METRIC_NAME_LOOKUP_DELETE_REQUEST = "delete-requests";
     public static final String METRIC_NAME_LOOKUP_POST_REQUEST = "post-requests";
     public static final String METRIC_NAME_LOOKUP_OTHER_REQUEST = "other-requests";
+    public static final String METRIC_NAME_LOOKUP_RING_FULL_REQUESTS = "aggregation-ring-full-requests";
+    public static final String METRIC_NAME_LOOKUP_TIMER_SAMPLE_RATE = "timer-sample-rate";
+    // suffixes of the response body size histograms and meters, per request method and response type,
+    // i.e. get-response-bytes and 2xx-response-throughput
+    public static final String METRIC_NAME_LOOKUP_RESPONSE_BYTES_SUFFIX = "-response-bytes";
+    public static final String METRIC_NAME_LOOKUP_RESPONSE_THROUGHPUT_SUFFIX = "-response-throughput";
+    // suffix of the time to first byte timers per request method, i.e. get-time-to-first-byte
+    public static final String METRIC_NAME_LOOKUP_TIME_TO_FIRST_BYTE_SUFFIX = "-time-to-first-byte";
+    // suffixes of the per request method thread cpu time and allocation histograms, i.e. get-thread-cpu-nanos
+    public static final String METRIC_NAME_LOOKUP_THREAD_CPU_NANOS_SUFFIX = "-thread-cpu-nanos";
+    public static final String METRIC_NAME_LOOKUP_THREAD_ALLOCATED_BYTES_SUFFIX = "-thread-allocated-bytes";
+    public static final String METRIC_NAME_LOOKUP_THREAD_RESOURCE_OVERHEAD = "thread-resource-metrics-overhead-nanos";
+    public static final String METRIC_NAME_LOOKUP_ACCESS_LOG_DROPPED_RECORDS = "access-log-dropped-records";
+    public static final String METRIC_NAME_LOOKUP_REQUESTS_IN_FLIGHT = "requests-in-flight";
+    public static final String METRIC_NAME_LOOKUP_MAX_REQUESTS_IN_FLIGHT = "max-requests-in-flight";
+    public static final String METRIC_NAME_LOOKUP_REQUESTS_IN_FLIGHT_AT_ARRIVAL = "requests-in-flight-at-arrival";
+    // scopes of the per route timers and response meters
+    public static final String METRIC_SCOPE_ROUTE_REQUESTS = "route-requests";
+    public static final String METRIC_SCOPE_ROUTE_RESPONSES = "route-responses";
+    // suffix of the request method timers, i.e. patch-requests
+    public static final String METRIC_NAME_LOOKUP_REQUEST_METHOD_SUFFIX = "-requests";
+    // suffix of the individual status code meters, i.e. 404-responses
+    public static final String METRIC_NAME_LOOKUP_STATUS_CODE_RESPONSES_SUFFIX = "-responses";
 
 
     private ConcurrentHashMap<String,MetricName> metricNames = new ConcurrentHashMap<String, MetricName>();
 
-    private void createRequestBasedMetricName(String name) {
+    protected void createRequestBasedMetricName(String name) {
         createMetricName(name,"requests");
     }
 
@@ -119,7 +312,28 @@ public class ResponseCodeFilter implements Filter
     }
 
     private void createMetricName(String name,String type) {
-        metricNames.put(name,new MetricName(monitoringGroupName,monitoringTypeName, name, type));
+        createMetricName(name, name, type);
+    }
+
+    private void createMetricName(String lookupName,String name,String type) {
+        metricNames.put(lookupName,new MetricName(monitoringGroupName,monitoringTypeName, name, type));
+    }
+
+    /**
+     * Removes the metric with the given lookup name, and its name
+     */
+    private void removeMetric(String lookupName) {
+        MetricName name = metricNames.remove(lookupName);
+        if(name != null) {
+            metricsBackend.removeMetric(name);
+        }
+    }
+
+    /**
+     * The metric name created for the given lookup name
+     */
+    protected MetricName getMetricName(String lookupName) {
+        return metricNames.get(lookupName);
     }
 
     public String getMetricsGroupName() {
@@ -168,6 +382,30 @@ public class ResponseCodeFilter implements Filter
         return this.filterName;
     }
 
+    /**
+     * The most requested servlet paths per status class, or null if they are not being tracked
+     * (see {@link #CONFIG_PARAM_HEAVY_HITTERS})
+     */
+    public HeavyHitters getHeavyHitters() {
+        return heavyHitters;
+    }
+
+    /**
+     * The slowest requests of each interval, or null if they are not being kept
+     * (see {@link #CONFIG_PARAM_SLOWEST_REQUESTS})
+     */
+    public SlowestRequests getSlowestRequests() {
+        return slowestRequests;
+    }
+
+    /**
+     * The backend the filter's metrics are created and registered by
+     * (see {@link #CONFIG_PARAM_METRICS_BACKEND})
+     */
+    public MetricsBackend getMetricsBackend() {
+        return metricsBackend;
+    }
+
     private void setMonitoringGrouping(FilterConfig filterConfig) {
         String groupName = filterConfig.getInitParameter(CONFIG_PARAM_MONITORING_GROUP_NAME);
         if(groupName == null) monitoringGroupName = DEFAULT_MONITORING_GROUP_NAME;
@@ -186,30 +424,120 @@ public class ResponseCodeFilter implements Filter
         // Setup the monitoring grouping under which metrics are recorded
         setMonitoringGrouping(filterConfig);
 
+        // Work out if the status can be read from the response, without wrapping it
+        responseStatusAvailable = isResponseStatusAvailable(filterConfig.getServletContext());
+
         // Create the metrics when the filter is initialised
         createMetrics(filterConfig);
+
+        // The counters are only published to a memory mapped file if asked for
+        String sharedCountersPath = getInitParam(CONFIG_PARAM_SHARED_COUNTERS_FILE, "", filterConfig).trim();
+        if(sharedCountersPath.length() > 0) {
+            createSharedCountersFile(new File(sharedCountersPath), filterConfig);
+        } else {
+            sharedCountersFile = null;
+        }
+
+        // Requests are only written to the binary access log if asked for
+        String accessLogDirectory = getInitParam(CONFIG_PARAM_ACCESS_LOG_DIRECTORY, "", filterConfig).trim();
+        if(accessLogDirectory.length() > 0) {
+            createAccessLog(new File(accessLogDirectory), filterConfig);
+        } else {
+            accessLog = null;
+        }
+
+        servletContext = filterConfig.getServletContext();
+
+        // The most requested paths are only tracked if asked for
+        if(Boolean.parseBoolean(getInitParam(CONFIG_PARAM_HEAVY_HITTERS, "false", filterConfig))) {
+            heavyHitters = new HeavyHitters(getInitParamInt(CONFIG_PARAM_HEAVY_HITTERS_CAPACITY, DEFAULT_HEAVY_HITTERS_CAPACITY, filterConfig),
+                    getInitParamInt(CONFIG_PARAM_HEAVY_HITTERS_TOP, DEFAULT_HEAVY_HITTERS_TOP, filterConfig));
+            if(servletContext != null) {
+                servletContext.setAttribute(HeavyHitters.getServletContextAttribute(getFilterName()), heavyHitters);
+            }
+        } else {
+            heavyHitters = null;
+        }
+
+        // The slowest requests are only kept if asked for
+        if(Boolean.parseBoolean(getInitParam(CONFIG_PARAM_SLOWEST_REQUESTS, "false", filterConfig))) {
+            slowestRequests = new SlowestRequests(getInitParamInt(CONFIG_PARAM_SLOWEST_REQUESTS_SIZE, DEFAULT_SLOWEST_REQUESTS_SIZE, filterConfig),
+                    TimeUnit.SECONDS.toNanos(getInitParamInt(CONFIG_PARAM_SLOWEST_REQUESTS_INTERVAL_SECONDS,
+                            DEFAULT_SLOWEST_REQUESTS_INTERVAL_SECONDS, filterConfig)), getFilterName() + "-slowest-requests");
+            if(servletContext != null) {
+                servletContext.setAttribute(SlowestRequests.getServletContextAttribute(getFilterName()), slowestRequests);
+            }
+            slowestRequests.start();
+        } else {
+            slowestRequests = null;
+        }
+
+        // Flight recorder events are only emitted if asked for
+        if(Boolean.parseBoolean(getInitParam(CONFIG_PARAM_FLIGHT_RECORDER_EVENTS, "false", filterConfig))) {
+            FlightRecorderEvents events = new FlightRecorderEvents(TimeUnit.MILLISECONDS.toNanos(
+                    getInitParamInt(CONFIG_PARAM_FLIGHT_RECORDER_EVENTS_THRESHOLD_MILLIS, 0, filterConfig)));
+            flightRecorderEvents = events.isSupported() ? events : null;
+        } else {
+            flightRecorderEvents = null;
+        }
+
+        // The metrics are only published for the prometheus exposition servlet if asked for
+        if(Boolean.parseBoolean(getInitParam(CONFIG_PARAM_PROMETHEUS_EXPOSITION, "false", filterConfig))
+                && filterConfig.getServletContext() != null) {
+            expositionContext = filterConfig.getServletContext();
+            expositionContext.setAttribute(PrometheusExposition.getServletContextAttribute(getFilterName()),
+                    new PrometheusExposition(metricsBackend.getRegistry(), metricNames));
+        } else {
+            expositionContext = null;
+        }
     }
 
 
+    /**
+     * HttpServletResponse.getStatus() was only added in servlet 3.0.  Check the container's servlet version,
+     * and that the servlet api on the classpath has the method.
+     */
+    private boolean isResponseStatusAvailable(ServletContext servletContext) {
+        if(servletContext == null || servletContext.getMajorVersion() < 3) {
+            return false;
+        }
+        try {
+            HttpServletResponse.class.getMethod("getStatus");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    public boolean isResponseStatusAvailable() {
+        return responseStatusAvailable;
+    }
+
     public synchronized void createMetrics(FilterConfig filterConfig) {
         // setup the metric names
         createMetricNames();
 
+        // Which meter implementation the meters are created with
+        meterType = getInitParam(CONFIG_PARAM_METER_TYPE, METER_TYPE_DEFAULT, filterConfig);
+
+        // Which backend creates and registers the metrics
+        metricsBackend = createMetricsBackend(filterConfig);
+
         // create metrics that monitor the number of times an metric admin endpoint has
         // been hit
         createAdminEndPointMetrics(filterConfig);
 
         // Requests Handled Per Second
-        requestsPerSecond = Metrics.newMeter(metricNames.get(METRIC_NAME_LOOKUP_REQUESTS_PER_SECOND),"requests", TimeUnit.SECONDS);
+        requestsPerSecond = newMeter(METRIC_NAME_LOOKUP_REQUESTS_PER_SECOND, "requests");
 
         // The XXX responses per second
         this.responses = new Meter[]{
-                Metrics.newMeter(metricNames.get(METRIC_NAME_LOOKUP_1XX_RESPONSES), "responses", TimeUnit.SECONDS), // 1xx
-                Metrics.newMeter(metricNames.get(METRIC_NAME_LOOKUP_2XX_RESPONSES), "responses", TimeUnit.SECONDS), // 2xx
-                Metrics.newMeter(metricNames.get(METRIC_NAME_LOOKUP_3XX_RESPONSES), "responses", TimeUnit.SECONDS), // 3xx
-                Metrics.newMeter(metricNames.get(METRIC_NAME_LOOKUP_4XX_RESPONSES), "responses", TimeUnit.SECONDS), // 4xx
-                Metrics.newMeter(metricNames.get(METRIC_NAME_LOOKUP_5XX_RESPONSES), "responses", TimeUnit.SECONDS), // 5xx
-                Metrics.newMeter(metricNames.get(METRIC_NAME_LOOKUP_UNKNOWN_RESPONSES), "responses", TimeUnit.SECONDS) // unknown
+                newMeter(METRIC_NAME_LOOKUP_1XX_RESPONSES, "responses"), // 1xx
+                newMeter(METRIC_NAME_LOOKUP_2XX_RESPONSES, "responses"), // 2xx
+                newMeter(METRIC_NAME_LOOKUP_3XX_RESPONSES, "responses"), // 3xx
+                newMeter(METRIC_NAME_LOOKUP_4XX_RESPONSES, "responses"), // 4xx
+                newMeter(METRIC_NAME_LOOKUP_5XX_RESPONSES, "responses"), // 5xx
+                newMeter(METRIC_NAME_LOOKUP_UNKNOWN_RESPONSES, "responses") // unknown
         };
 
         nonSuccessCodes = new ArrayList<Gauge>(6);
@@ -218,21 +546,440 @@ public class ResponseCodeFilter implements Filter
         addRatioGauge(nonSuccessCodes,createNonSuccessRatio(requestsPerSecond, responses[3], "4xx"));
         addRatioGauge(nonSuccessCodes,createNonSuccessRatio(requestsPerSecond, responses[4], "5xx"));
 
-        timeTakenForGetsPerSecond = Metrics.newTimer(metricNames.get(METRIC_NAME_LOOKUP_GET_REQUEST), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
-        timeTakenForPostPerSecond = Metrics.newTimer(metricNames.get(METRIC_NAME_LOOKUP_POST_REQUEST), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
-        timeTakenForHeadPerSecond = Metrics.newTimer(metricNames.get(METRIC_NAME_LOOKUP_HEAD_REQUEST), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
-        timeTakenForPutPerSecond = Metrics.newTimer(metricNames.get(METRIC_NAME_LOOKUP_PUT_REQUEST), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
-        timeTakenForDeletePerSecond = Metrics.newTimer(metricNames.get(METRIC_NAME_LOOKUP_DELETE_REQUEST),TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
-        timeTakenForOtherRequestTypesForSecond = Metrics.newTimer(metricNames.get(METRIC_NAME_LOOKUP_OTHER_REQUEST), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+        // Individual status codes are only counted if asked for
+        if(Boolean.parseBoolean(getInitParam(CONFIG_PARAM_STATUS_CODE_METRICS, "false", filterConfig))) {
+            statusCodeCounters = new StatusCodeCounters(createStatusCodeMeterRegistrar());
+        } else {
+            statusCodeCounters = null;
+        }
+
+        // The time taken by requests, per request method
+        createRequestMethodTimers(filterConfig);
+
+        // The size of response bodies is only counted if asked for
+        if(Boolean.parseBoolean(getInitParam(CONFIG_PARAM_RESPONSE_BYTE_METRICS, "false", filterConfig))) {
+            responseByteMetrics = createResponseByteMetrics();
+        } else {
+            responseByteMetrics = null;
+        }
+        unwrappedResponsePaths = new UrlPatterns(getInitParamList(CONFIG_PARAM_RESPONSE_BYTE_METRICS_UNWRAPPED_PATHS, filterConfig));
+        if(!responseStatusAvailable || unwrappedResponsePaths.isEmpty()) {
+            unwrappedResponsePaths = null;
+        }
+
+        // The cpu time and allocation of requests are only measured if asked for, and supported by the jvm
+        if(Boolean.parseBoolean(getInitParam(CONFIG_PARAM_THREAD_RESOURCE_METRICS, "false", filterConfig))) {
+            createThreadResourceMetrics(new ThreadResourceMeter());
+        } else {
+            threadResourceMeter = null;
+        }
+
+        // Timers and response meters per route are only created if asked for
+        if(Boolean.parseBoolean(getInitParam(CONFIG_PARAM_ROUTE_METRICS, "false", filterConfig))) {
+            routeMetrics = new RouteMetrics(new RouteNormaliser(getInitParamList(CONFIG_PARAM_ROUTE_PATTERNS, filterConfig)),
+                    createRouteMetricsFactory(),
+                    getInitParamInt(CONFIG_PARAM_ROUTE_MAX_ROUTES, DEFAULT_ROUTE_MAX_ROUTES, filterConfig),
+                    getInitParamInt(CONFIG_PARAM_ROUTE_MAX_CACHED_PATHS, DEFAULT_ROUTE_MAX_CACHED_PATHS, filterConfig),
+                    TimeUnit.SECONDS.toNanos(getInitParamInt(CONFIG_PARAM_ROUTE_IDLE_SECONDS, DEFAULT_ROUTE_IDLE_SECONDS, filterConfig)),
+                    Clock.defaultClock());
+        } else {
+            routeMetrics = null;
+        }
+
+        // Only timing a sample of the requests is done if asked for
+        createTimerSampler(filterConfig);
+
+        // Concurrency is only tracked if asked for
+        if(Boolean.parseBoolean(getInitParam(CONFIG_PARAM_CONCURRENCY_METRICS, "false", filterConfig))) {
+            createConcurrencyMetrics(filterConfig);
+        } else {
+            concurrencyTracker = null;
+            concurrencyAtArrival = null;
+        }
+
+        // Recording into a ring buffer, drained by a background thread, is only done if asked for
+        if(Boolean.parseBoolean(getInitParam(CONFIG_PARAM_BACKGROUND_AGGREGATION, "false", filterConfig))) {
+            createBackgroundAggregation(filterConfig);
+        } else {
+            requestEventRing = null;
+            requestEventAggregator = null;
+        }
+    }
+
+    /**
+     * Creates the sampler selected by the {@value #CONFIG_PARAM_TIMER_SAMPLING} init param, and the gauge
+     * reporting the fraction of requests being timed.
+     */
+    private void createTimerSampler(FilterConfig filterConfig) {
+        String mode = getInitParam(CONFIG_PARAM_TIMER_SAMPLING, TimerSampler.MODE_NONE, filterConfig);
+        if(TimerSampler.MODE_FIXED.equalsIgnoreCase(mode)) {
+            timerSampler = TimerSampler.fixed(getInitParamInt(CONFIG_PARAM_TIMER_SAMPLING_INTERVAL, DEFAULT_TIMER_SAMPLING_INTERVAL, filterConfig));
+        } else if(TimerSampler.MODE_ADAPTIVE.equalsIgnoreCase(mode)) {
+            timerSampler = TimerSampler.adaptive(getInitParamInt(CONFIG_PARAM_TIMER_SAMPLING_RATE_THRESHOLD, DEFAULT_TIMER_SAMPLING_RATE_THRESHOLD, filterConfig),
+                    requestsPerSecond, Clock.defaultClock());
+        } else {
+            timerSampler = null;
+            return;
+        }
+
+        final TimerSampler sampler = timerSampler;
+        createRequestBasedMetricName(METRIC_NAME_LOOKUP_TIMER_SAMPLE_RATE);
+        metricsBackend.newGauge(metricNames.get(METRIC_NAME_LOOKUP_TIMER_SAMPLE_RATE), new Gauge<Double>() {
+            @Override
+            public Double value() {
+                return sampler.getSampleRate();
+            }
+        });
+    }
+
+    /**
+     * Maps the file the response type and request method counters are published to, and starts the thread that
+     * publishes them every {@value #CONFIG_PARAM_SHARED_COUNTERS_INTERVAL_MILLIS} (default 1000) milliseconds.
+     */
+    private void createSharedCountersFile(File file, FilterConfig filterConfig) throws ServletException {
+        List<String> methods = requestMethods.getMethodsAndOther();
+        long intervalNanos = TimeUnit.MILLISECONDS.toNanos(getInitParamInt(CONFIG_PARAM_SHARED_COUNTERS_INTERVAL_MILLIS,
+                DEFAULT_SHARED_COUNTERS_INTERVAL_MILLIS, filterConfig));
+        try {
+            sharedCountersFile = new SharedCountersFile(file, methods, responses, timeTakenForRequestMethods,
+                    intervalNanos, getFilterName() + "-shared-counters");
+        } catch(IOException e) {
+            throw new ServletException("Unable to map the shared counters file " + file, e);
+        }
+        sharedCountersFile.start();
+    }
+
+    /**
+     * Creates the binary access log in the given directory (its files named after the filter), and starts the
+     * thread that flushes it.  The records dropped because a thread's buffer was full are available as a gauge.
+     */
+    private void createAccessLog(File directory, FilterConfig filterConfig) throws ServletException {
+        List<String> methods = requestMethods.getMethodsAndOther();
+        try {
+            accessLog = new AccessLog(directory, getFilterName(), methods,
+                    getInitParamInt(CONFIG_PARAM_ACCESS_LOG_SEGMENT_RECORDS, DEFAULT_ACCESS_LOG_SEGMENT_RECORDS, filterConfig),
+                    getInitParamInt(CONFIG_PARAM_ACCESS_LOG_MAX_SEGMENTS, DEFAULT_ACCESS_LOG_MAX_SEGMENTS, filterConfig),
+                    getInitParamInt(CONFIG_PARAM_ACCESS_LOG_THREAD_BUFFER_RECORDS, DEFAULT_ACCESS_LOG_THREAD_BUFFER_RECORDS, filterConfig),
+                    getInitParamInt(CONFIG_PARAM_ACCESS_LOG_MAX_PATHS, DEFAULT_ACCESS_LOG_MAX_PATHS, filterConfig),
+                    TimeUnit.MILLISECONDS.toNanos(getInitParamInt(CONFIG_PARAM_ACCESS_LOG_FLUSH_INTERVAL_MILLIS,
+                            DEFAULT_ACCESS_LOG_FLUSH_INTERVAL_MILLIS, filterConfig)));
+        } catch(IOException e) {
+            throw new ServletException("Unable to create the access log in " + directory, e);
+        }
+        final AccessLog log = accessLog;
+        createRequestBasedMetricName(METRIC_NAME_LOOKUP_ACCESS_LOG_DROPPED_RECORDS);
+        metricsBackend.newGauge(metricNames.get(METRIC_NAME_LOOKUP_ACCESS_LOG_DROPPED_RECORDS), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return log.getDroppedRecords();
+            }
+        });
+        log.start();
+    }
+
+    /**
+     * Creates the per request method histograms of thread cpu time (i.e. get-thread-cpu-nanos) and allocated bytes
+     * (i.e. get-thread-allocated-bytes) for the readings the jvm supports, along with the histogram of the time spent
+     * taking the readings.  If the jvm supports neither reading, measuring is turned off and nothing is registered.
+     */
+    protected void createThreadResourceMetrics(ThreadResourceMeter meter) {
+        if(!meter.isSupported()) {
+            threadResourceMeter = null;
+            return;
+        }
+        List<String> methods = requestMethods.getMethodsAndOther();
+        cpuTimeForRequestMethods = meter.isCpuTimeSupported() ? new Histogram[requestMethods.size()] : null;
+        allocatedBytesForRequestMethods = meter.isAllocationSupported() ? new Histogram[requestMethods.size()] : null;
+        for(int i = 0; i < methods.size(); i++) {
+            String method = methods.get(i).toLowerCase(Locale.ENGLISH);
+            if(cpuTimeForRequestMethods != null) {
+                cpuTimeForRequestMethods[i] = newRequestHistogram(method + METRIC_NAME_LOOKUP_THREAD_CPU_NANOS_SUFFIX);
+            }
+            if(allocatedBytesForRequestMethods != null) {
+                allocatedBytesForRequestMethods[i] = newRequestHistogram(method + METRIC_NAME_LOOKUP_THREAD_ALLOCATED_BYTES_SUFFIX);
+            }
+        }
+        threadResourceOverhead = newRequestHistogram(METRIC_NAME_LOOKUP_THREAD_RESOURCE_OVERHEAD);
+        threadResourceMeter = meter;
+    }
+
+    private Histogram newRequestHistogram(String metricLookupName) {
+        createRequestBasedMetricName(metricLookupName);
+        return metricsBackend.newHistogram(metricNames.get(metricLookupName));
+    }
+
+    /**
+     * Creates the gauges of the requests in flight, and the most in flight per interval; and the histogram
+     * of the requests in flight when each request arrives.
+     */
+    private void createConcurrencyMetrics(FilterConfig filterConfig) {
+        final ConcurrencyTracker tracker = new ConcurrencyTracker(TimeUnit.SECONDS.toNanos(getInitParamInt(
+                CONFIG_PARAM_CONCURRENCY_MAX_INTERVAL_SECONDS, DEFAULT_CONCURRENCY_MAX_INTERVAL_SECONDS, filterConfig)), Clock.defaultClock());
+
+        createRequestBasedMetricName(METRIC_NAME_LOOKUP_REQUESTS_IN_FLIGHT);
+        createRequestBasedMetricName(METRIC_NAME_LOOKUP_MAX_REQUESTS_IN_FLIGHT);
+        createRequestBasedMetricName(METRIC_NAME_LOOKUP_REQUESTS_IN_FLIGHT_AT_ARRIVAL);
+        metricsBackend.newGauge(metricNames.get(METRIC_NAME_LOOKUP_REQUESTS_IN_FLIGHT), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return tracker.getInFlight();
+            }
+        });
+        metricsBackend.newGauge(metricNames.get(METRIC_NAME_LOOKUP_MAX_REQUESTS_IN_FLIGHT), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return tracker.getMaxInFlight();
+            }
+        });
+        concurrencyAtArrival = metricsBackend.newHistogram(metricNames.get(METRIC_NAME_LOOKUP_REQUESTS_IN_FLIGHT_AT_ARRIVAL));
+        concurrencyTracker = tracker;
+    }
+
+    /**
+     * Creates the ring buffer that request threads record into, and starts the thread that drains it
+     * into the metrics.  The number of requests that found the ring full is available as a gauge.
+     */
+    private void createBackgroundAggregation(FilterConfig filterConfig) {
+        recordInlineWhenRingFull = RING_FULL_POLICY_INLINE.equalsIgnoreCase(
+                getInitParam(CONFIG_PARAM_BACKGROUND_AGGREGATION_RING_FULL_POLICY, RING_FULL_POLICY_DROP, filterConfig));
+
+        ringFullRequests = new StripedCounter();
+        createRequestBasedMetricName(METRIC_NAME_LOOKUP_RING_FULL_REQUESTS);
+        metricsBackend.newGauge(metricNames.get(METRIC_NAME_LOOKUP_RING_FULL_REQUESTS), new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return ringFullRequests.sum();
+            }
+        });
+
+        requestEventRing = new RequestEventRing(getInitParamInt(CONFIG_PARAM_BACKGROUND_AGGREGATION_RING_SIZE,
+                DEFAULT_BACKGROUND_AGGREGATION_RING_SIZE, filterConfig));
+        requestEventAggregator = new RequestEventAggregator(requestEventRing, new RequestEventRing.Handler() {
+            @Override
+            public void onRequest(int methodIndex, int statusCode, long durationNanos, long firstByteNanos, long responseBytes,
+                                  int routeId, int adminEndpoint) {
+                recordRequest(methodIndex, statusCode, durationNanos, firstByteNanos, responseBytes,
+                        routeId == NO_ROUTE ? null : routeMetrics.getRoute(routeId), adminEndpoint);
+            }
+        }, getFilterName() + "-aggregator");
+        requestEventAggregator.start();
+    }
+
+    /**
+     * Creates the timer (i.e. "/users/{id}" in the route-requests scope) and the response meters
+     * (i.e. "/users/{id}.4xx-responses" in the route-responses scope) for a route; and removes them
+     * when the route is evicted.
+     */
+    private RouteMetrics.RouteFactory createRouteMetricsFactory() {
+        final String[] responseTypes = {METRIC_NAME_LOOKUP_1XX_RESPONSES, METRIC_NAME_LOOKUP_2XX_RESPONSES,
+                METRIC_NAME_LOOKUP_3XX_RESPONSES, METRIC_NAME_LOOKUP_4XX_RESPONSES,
+                METRIC_NAME_LOOKUP_5XX_RESPONSES, METRIC_NAME_LOOKUP_UNKNOWN_RESPONSES};
+        return new RouteMetrics.RouteFactory() {
+            @Override
+            public RouteMetrics.Route createRoute(String template) {
+                String timerName = METRIC_SCOPE_ROUTE_REQUESTS + ':' + template;
+                createMetricName(timerName, template, METRIC_SCOPE_ROUTE_REQUESTS);
+                Timer timer = newTimer(timerName);
+
+                Meter[] responseMeters = new Meter[responseTypes.length];
+                for(int i = 0; i < responseTypes.length; i++) {
+                    String meterName = METRIC_SCOPE_ROUTE_RESPONSES + ':' + template + '.' + responseTypes[i];
+                    createMetricName(meterName, template + '.' + responseTypes[i], METRIC_SCOPE_ROUTE_RESPONSES);
+                    responseMeters[i] = newMeter(meterName, "responses");
+                }
+                return new RouteMetrics.Route(template, timer, responseMeters);
+            }
+
+            @Override
+            public void removeRoute(RouteMetrics.Route route) {
+                String template = route.getTemplate();
+                removeMetric(METRIC_SCOPE_ROUTE_REQUESTS + ':' + template);
+                for(String responseType : responseTypes) {
+                    removeMetric(METRIC_SCOPE_ROUTE_RESPONSES + ':' + template + '.' + responseType);
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates a timer for each of the default request methods, and any additional methods given by the
+     * {@value #CONFIG_PARAM_ADDITIONAL_REQUEST_METHODS} init param, plus one for all other request methods.
+     */
+    private void createRequestMethodTimers(FilterConfig filterConfig) {
+        timerType = getInitParam(CONFIG_PARAM_TIMER_TYPE, TIMER_TYPE_DEFAULT, filterConfig);
+        int hdrSignificantDigits = getInitParamInt(CONFIG_PARAM_HDR_TIMER_SIGNIFICANT_DIGITS, DEFAULT_HDR_TIMER_SIGNIFICANT_DIGITS, filterConfig);
+        long hdrWindowNanos = TimeUnit.SECONDS.toNanos(getInitParamInt(CONFIG_PARAM_HDR_TIMER_WINDOW_SECONDS, DEFAULT_HDR_TIMER_WINDOW_SECONDS, filterConfig));
+
+        requestMethods = new RequestMethods(getInitParamList(CONFIG_PARAM_ADDITIONAL_REQUEST_METHODS, filterConfig));
+
+        // "other" included, its timer being METRIC_NAME_LOOKUP_OTHER_REQUEST
+        List<String> methods = requestMethods.getMethodsAndOther();
+        timeTakenForRequestMethods = new Timer[requestMethods.size()];
+        for(int i = 0; i < methods.size(); i++) {
+            String name = getRequestMethodMetricName(methods.get(i));
+            createRequestBasedMetricName(name);
+            timeTakenForRequestMethods[i] = newRequestMethodTimer(name, hdrSignificantDigits, hdrWindowNanos);
+        }
+
+        // The timers per request method and response type are only created if asked for
+        if(Boolean.parseBoolean(getInitParam(CONFIG_PARAM_STATUS_CLASS_TIMERS, "false", filterConfig))) {
+            timeTakenForRequestMethodsByResponseType = new Timer[requestMethods.size()][STATUS_CLASSES.length];
+            for(int i = 0; i < methods.size(); i++) {
+                for(int j = 0; j < STATUS_CLASSES.length; j++) {
+                    String name = getRequestMethodMetricName(methods.get(i) + "-" + STATUS_CLASSES[j]);
+                    createRequestBasedMetricName(name);
+                    timeTakenForRequestMethodsByResponseType[i][j] = newRequestMethodTimer(name, hdrSignificantDigits, hdrWindowNanos);
+                }
+            }
+        } else {
+            timeTakenForRequestMethodsByResponseType = null;
+        }
+
+        // The time to first byte timers are only created if asked for
+        if(Boolean.parseBoolean(getInitParam(CONFIG_PARAM_TIME_TO_FIRST_BYTE_METRICS, "false", filterConfig))) {
+            timeToFirstByteForRequestMethods = new Timer[requestMethods.size()];
+            for(int i = 0; i < methods.size(); i++) {
+                String name = methods.get(i).toLowerCase(Locale.ENGLISH) + METRIC_NAME_LOOKUP_TIME_TO_FIRST_BYTE_SUFFIX;
+                createRequestBasedMetricName(name);
+                timeToFirstByteForRequestMethods[i] = newRequestMethodTimer(name, hdrSignificantDigits, hdrWindowNanos);
+            }
+        } else {
+            timeToFirstByteForRequestMethods = null;
+        }
+    }
+
+    /**
+     * Creates (or returns the already registered) timer for the given metric name, using the
+     * timer implementation selected by the {@value #CONFIG_PARAM_TIMER_TYPE} init param.
+     */
+    private Timer newRequestMethodTimer(String metricLookupName, int hdrSignificantDigits, long hdrWindowNanos) {
+        if(TIMER_TYPE_HDR.equalsIgnoreCase(timerType)) {
+            return metricsBackend.register(metricNames.get(metricLookupName),
+                    new HdrHistogramTimer(newUnregisteredMeter("calls"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS,
+                            hdrSignificantDigits, hdrWindowNanos, Clock.defaultClock()));
+        } else {
+            return newTimer(metricLookupName);
+        }
+    }
+
+    /**
+     * Creates (or returns the already registered) yammer style timer for the given metric name.  When the
+     * meters are lazy the timer is too, so that it needs no tick thread.
+     */
+    protected Timer newTimer(String metricLookupName) {
+        MetricName name = metricNames.get(metricLookupName);
+        if(METER_TYPE_LAZY.equalsIgnoreCase(meterType)) {
+            return metricsBackend.register(name,
+                    new LazyDecayingTimer(newUnregisteredMeter("calls"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS, Clock.defaultClock()));
+        } else {
+            return metricsBackend.newTimer(name);
+        }
+    }
+
+    /**
+     * Creates the response body size histograms and meters for each request method that has a timer
+     * (i.e. get-response-bytes in the requests scope), and for each response type (i.e. 2xx-response-bytes
+     * in the responses scope).
+     */
+    private ResponseByteMetrics createResponseByteMetrics() {
+        List<String> methods = requestMethods.getMethodsAndOther();
+        Histogram[] bytesForRequestMethods = new Histogram[requestMethods.size()];
+        Meter[] throughputForRequestMethods = new Meter[requestMethods.size()];
+        for(int i = 0; i < methods.size(); i++) {
+            String method = methods.get(i).toLowerCase(Locale.ENGLISH);
+            String bytesName = method + METRIC_NAME_LOOKUP_RESPONSE_BYTES_SUFFIX;
+            String throughputName = method + METRIC_NAME_LOOKUP_RESPONSE_THROUGHPUT_SUFFIX;
+            createRequestBasedMetricName(bytesName);
+            createRequestBasedMetricName(throughputName);
+            bytesForRequestMethods[i] = metricsBackend.newHistogram(metricNames.get(bytesName));
+            throughputForRequestMethods[i] = newMeter(throughputName, "bytes");
+        }
+
+        Histogram[] bytesForResponses = new Histogram[STATUS_CLASSES.length];
+        Meter[] throughputForResponses = new Meter[STATUS_CLASSES.length];
+        for(int i = 0; i < STATUS_CLASSES.length; i++) {
+            String bytesName = STATUS_CLASSES[i] + METRIC_NAME_LOOKUP_RESPONSE_BYTES_SUFFIX;
+            String throughputName = STATUS_CLASSES[i] + METRIC_NAME_LOOKUP_RESPONSE_THROUGHPUT_SUFFIX;
+            createResponseBasedMetricName(bytesName);
+            createResponseBasedMetricName(throughputName);
+            bytesForResponses[i] = metricsBackend.newHistogram(metricNames.get(bytesName));
+            throughputForResponses[i] = newMeter(throughputName, "bytes");
+        }
+        return new ResponseByteMetrics(bytesForRequestMethods, throughputForRequestMethods, bytesForResponses, throughputForResponses);
+    }
+
+    /**
+     * The metric name of a request method's timer, i.e. get-requests
+     */
+    public static String getRequestMethodMetricName(String method) {
+        return method.toLowerCase(Locale.ENGLISH) + METRIC_NAME_LOOKUP_REQUEST_METHOD_SUFFIX;
     }
 
     private synchronized void createAdminEndPointMetrics(FilterConfig filterConfig) {
         readAdminConfigUrls(filterConfig);
-        adminMetrics = new HashMap<String, Meter>(4);
-        adminMetrics.put(pingUrl,Metrics.newMeter(metricNames.get(METRIC_NAME_LOOKUP_PING_MONITORING_REQUESTS),"requests", TimeUnit.SECONDS));
-        adminMetrics.put(threadUrl,Metrics.newMeter(metricNames.get(METRIC_NAME_LOOKUP_THREAD_MONITORING_REQUESTS), "requests", TimeUnit.SECONDS));
-        adminMetrics.put(metricsUrl,Metrics.newMeter(metricNames.get(METRIC_NAME_LOOKUP_METRICS_MONITORING_REQUESTS), "requests", TimeUnit.SECONDS));
-        adminMetrics.put(healthUrl,Metrics.newMeter(metricNames.get(METRIC_NAME_LOOKUP_HEALTH_MONITORING_REQUESTS), "requests", TimeUnit.SECONDS));
+        adminMetrics = new Meter[] {
+                newMeter(METRIC_NAME_LOOKUP_PING_MONITORING_REQUESTS, "requests"),
+                newMeter(METRIC_NAME_LOOKUP_THREAD_MONITORING_REQUESTS, "requests"),
+                newMeter(METRIC_NAME_LOOKUP_METRICS_MONITORING_REQUESTS, "requests"),
+                newMeter(METRIC_NAME_LOOKUP_HEALTH_MONITORING_REQUESTS, "requests")
+        };
+        adminEndpoints = new HashMap<String, Integer>(8);
+        adminEndpoints.put(pingUrl, 0);
+        adminEndpoints.put(threadUrl, 1);
+        adminEndpoints.put(metricsUrl, 2);
+        adminEndpoints.put(healthUrl, 3);
+    }
+
+    /**
+     * Creates the backend named by the {@value #CONFIG_PARAM_METRICS_BACKEND} init param: yammer's own metrics in the
+     * global registry (the default), the built in backend (whose timers and histograms use the hdr timer init params),
+     * or the {@link MetricsBackend} implementation with the given class name.
+     */
+    private MetricsBackend createMetricsBackend(FilterConfig filterConfig) {
+        String backend = getInitParam(CONFIG_PARAM_METRICS_BACKEND, METRICS_BACKEND_YAMMER, filterConfig).trim();
+        if(METRICS_BACKEND_YAMMER.equalsIgnoreCase(backend)) {
+            return new YammerMetricsBackend();
+        } else if(METRICS_BACKEND_BUILTIN.equalsIgnoreCase(backend)) {
+            return new BuiltinMetricsBackend(getInitParamInt(CONFIG_PARAM_HDR_TIMER_SIGNIFICANT_DIGITS, DEFAULT_HDR_TIMER_SIGNIFICANT_DIGITS, filterConfig),
+                    TimeUnit.SECONDS.toNanos(getInitParamInt(CONFIG_PARAM_HDR_TIMER_WINDOW_SECONDS, DEFAULT_HDR_TIMER_WINDOW_SECONDS, filterConfig)));
+        }
+        try {
+            return (MetricsBackend) Class.forName(backend, true, getClass().getClassLoader()).getDeclaredConstructor().newInstance();
+        } catch(InvocationTargetException e) {
+            throw new IllegalArgumentException("Unable to create the metrics backend " + backend, e.getCause());
+        } catch(Exception e) {
+            throw new IllegalArgumentException("Unable to create the metrics backend " + backend, e);
+        }
+    }
+
+    /**
+     * Creates (or returns the already registered) meter for the given metric name, using the
+     * meter implementation selected by the {@value #CONFIG_PARAM_METER_TYPE} init param.
+     */
+    protected Meter newMeter(String metricLookupName, String eventType) {
+        MetricName name = metricNames.get(metricLookupName);
+        if(METER_TYPE_STRIPED.equalsIgnoreCase(meterType) || METER_TYPE_LAZY.equalsIgnoreCase(meterType)) {
+            return metricsBackend.register(name, newUnregisteredMeter(eventType));
+        } else {
+            return metricsBackend.newMeter(name, eventType);
+        }
+    }
+
+    /**
+     * A meter that is not registered, i.e. for the rates of a timer.  Lazy if the meters are lazy,
+     * otherwise striped.
+     */
+    private Meter newUnregisteredMeter(String eventType) {
+        return newUnregisteredMeter(new StripedCounter(), eventType);
+    }
+
+    private Meter newUnregisteredMeter(StripedCounter count, String eventType) {
+        if(METER_TYPE_LAZY.equalsIgnoreCase(meterType)) {
+            return new LazyDecayingMeter(count, eventType, TimeUnit.SECONDS, Clock.defaultClock());
+        } else {
+            return new StripedMeter(count, metricsBackend.getRegistry().newScheduledThreadPool(2, "meter-tick"),
+                    eventType, TimeUnit.SECONDS, Clock.defaultClock());
+        }
     }
 
 
@@ -244,6 +991,21 @@ public class ResponseCodeFilter implements Filter
     }
 
 
+    /**
+     * Registers a meter for an individual status code, i.e. 404-responses, the first time the
+     * status code is seen.
+     */
+    private StatusCodeCounters.Listener createStatusCodeMeterRegistrar() {
+        return new StatusCodeCounters.Listener() {
+            @Override
+            public void statusCodeSeen(int statusCode, StripedCounter count) {
+                String name = statusCode + METRIC_NAME_LOOKUP_STATUS_CODE_RESPONSES_SUFFIX;
+                createResponseBasedMetricName(name);
+                metricsBackend.register(metricNames.get(name), newUnregisteredMeter(count, "responses"));
+            }
+        };
+    }
+
     private String getInitParam(String paramName,String defaultValue, FilterConfig filterConfig) {
         String parameterValue = filterConfig.getInitParameter(paramName);
         if(parameterValue==null || parameterValue.length()==0) {
@@ -253,6 +1015,22 @@ public class ResponseCodeFilter implements Filter
         }
     }
 
+    /**
+     * Splits a comma (or whitespace) separated init param into a list.  Empty if the param is not set.
+     */
+    private List<String> getInitParamList(String paramName, FilterConfig filterConfig) {
+        String parameterValue = getInitParam(paramName, "", filterConfig).trim();
+        if(parameterValue.length()==0) {
+            return Collections.emptyList();
+        } else {
+            return Arrays.asList(parameterValue.split("[,\\s]+"));
+        }
+    }
+
+    private int getInitParamInt(String paramName, int defaultValue, FilterConfig filterConfig) {
+        return Integer.parseInt(getInitParam(paramName, String.valueOf(defaultValue), filterConfig).trim());
+    }
+
     private Gauge[] createNonSuccessRatio(Meter requestsPerSecond,Meter responseCodeMeter, String responseCode) {
         String oneMin = "percent-" + responseCode + "-1m";
         String fiveMin = "percent-" + responseCode + "-5m";
@@ -262,8 +1040,8 @@ public class ResponseCodeFilter implements Filter
         createRequestBasedMetricName(fiveMin);
 
         return new Gauge[] {
-                Metrics.newGauge(metricNames.get(oneMin),createOneMinRatio(requestsPerSecond, responseCodeMeter)),
-                Metrics.newGauge(metricNames.get(fiveMin),createFiveMinRatio(requestsPerSecond, responseCodeMeter))
+                metricsBackend.newGauge(metricNames.get(oneMin),createOneMinRatio(requestsPerSecond, responseCodeMeter)),
+                metricsBackend.newGauge(metricNames.get(fiveMin),createFiveMinRatio(requestsPerSecond, responseCodeMeter))
         };
 
 
@@ -304,50 +1082,375 @@ public class ResponseCodeFilter implements Filter
 
     @Override
     public void destroy() {
-        MetricsRegistry reg = Metrics.defaultRegistry();
+        if(requestEventAggregator != null) {
+            requestEventAggregator.stop();
+        }
+        if(sharedCountersFile != null) {
+            sharedCountersFile.stop();
+        }
+        if(accessLog != null) {
+            accessLog.stop();
+        }
+        if(slowestRequests != null) {
+            slowestRequests.stop();
+        }
+        if(servletContext != null) {
+            if(heavyHitters != null) {
+                servletContext.removeAttribute(HeavyHitters.getServletContextAttribute(getFilterName()));
+            }
+            if(slowestRequests != null) {
+                servletContext.removeAttribute(SlowestRequests.getServletContextAttribute(getFilterName()));
+            }
+        }
+        if(expositionContext != null) {
+            expositionContext.removeAttribute(PrometheusExposition.getServletContextAttribute(getFilterName()));
+        }
         for(MetricName name : metricNames.values()) {
-            reg.removeMetric(name);
+            metricsBackend.removeMetric(name);
         }
-
+        // after the metrics are removed, as a backend's registry may own the striped meters' tick threads
+        metricsBackend.shutdown();
     }
 
     @Override
     public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
-        final StatusExposingServletResponse wrappedResponse =
-                new StatusExposingServletResponse((HttpServletResponse) response);
+        final ServletResponse filteredResponse = wrapResponseIfRequired(request, response);
 
-        final TimerContext context = getTimerForCurrentRequestMethodType(((HttpServletRequest)request).getMethod()).time();
+        final long startTime = startTiming();
+        requestArrived(startTime);
+        final long cpuTimeAtStart = threadCpuTime(startTime);
+        final long allocatedBytesAtStart = threadAllocatedBytes(startTime);
         try {
-            chain.doFilter(request, wrappedResponse);
+            chain.doFilter(request, filteredResponse);
         } finally {
-            context.stop();
-            updateResponseRate(wrappedResponse.getStatus());
-            updateAdminMetricsIfRequestMatched(((HttpServletRequest) request).getServletPath());
+            recordThreadResources((HttpServletRequest) request, cpuTimeAtStart, allocatedBytesAtStart);
+            requestDeparted();
+            final long duration = durationSince(startTime);
+            recordRequest((HttpServletRequest) request, getStatus(filteredResponse), duration,
+                    getTimeToFirstByte(filteredResponse, startTime, duration), getResponseBytes(request, filteredResponse));
         }
     }
 
-    protected void updateAdminMetricsIfRequestMatched(String path) {
-        if(adminMetrics.containsKey(path)) {
-            adminMetrics.get(path).mark();
+    /**
+     * Returns the current thread's cpu time at the start of a request, or {@link ThreadResourceMeter#UNSUPPORTED} when
+     * not measuring it.  Only timed requests are measured, so measuring follows timer sampling.
+     *
+     * @param startTime the request's start time, from {@link #startTiming()}
+     */
+    protected long threadCpuTime(long startTime) {
+        if(threadResourceMeter == null || startTime == NOT_TIMED) {
+            return ThreadResourceMeter.UNSUPPORTED;
         }
+        return threadResourceMeter.currentThreadCpuTime();
     }
 
-    protected Timer getTimerForCurrentRequestMethodType(String method) {
-        if (GET.equalsIgnoreCase(method)) {
-            return timeTakenForGetsPerSecond;
-        } else if (POST.equalsIgnoreCase(method)) {
-            return timeTakenForPostPerSecond;
-        } else if (PUT.equalsIgnoreCase(method)) {
-            return timeTakenForPutPerSecond;
-        } else if (HEAD.equalsIgnoreCase(method)) {
-            return timeTakenForHeadPerSecond;
-        } else if (DELETE.equalsIgnoreCase(method)) {
-            return timeTakenForDeletePerSecond;
+    /**
+     * Returns the current thread's allocated bytes at the start of a request, or {@link ThreadResourceMeter#UNSUPPORTED}
+     * when not measuring it.  Only timed requests are measured, so measuring follows timer sampling.
+     *
+     * @param startTime the request's start time, from {@link #startTiming()}
+     */
+    protected long threadAllocatedBytes(long startTime) {
+        if(threadResourceMeter == null || startTime == NOT_TIMED) {
+            return ThreadResourceMeter.UNSUPPORTED;
+        }
+        return threadResourceMeter.currentThreadAllocatedBytes();
+    }
+
+    /**
+     * Records the cpu time and allocation of a request, on the thread that ran it, from the readings taken by
+     * {@link #threadCpuTime(long)} and {@link #threadAllocatedBytes(long)} at its start.  The time taken to read
+     * them at the end is recorded, doubled for the readings at the start, as the overhead of measuring.
+     * These are recorded directly, rather than through the background aggregation ring.
+     */
+    protected void recordThreadResources(HttpServletRequest request, long cpuTimeAtStart, long allocatedBytesAtStart) {
+        if(cpuTimeAtStart == ThreadResourceMeter.UNSUPPORTED && allocatedBytesAtStart == ThreadResourceMeter.UNSUPPORTED) {
+            return;
+        }
+        final long readStart = System.nanoTime();
+        final long cpuTime = threadResourceMeter.currentThreadCpuTime();
+        final long allocatedBytes = threadResourceMeter.currentThreadAllocatedBytes();
+        threadResourceOverhead.update((System.nanoTime() - readStart) * 2);
+
+        final int methodIndex = requestMethods.indexOf(request.getMethod());
+        if(cpuTimeAtStart != ThreadResourceMeter.UNSUPPORTED) {
+            cpuTimeForRequestMethods[methodIndex].update(cpuTime - cpuTimeAtStart);
+        }
+        if(allocatedBytesAtStart != ThreadResourceMeter.UNSUPPORTED) {
+            allocatedBytesForRequestMethods[methodIndex].update(allocatedBytes - allocatedBytesAtStart);
+        }
+    }
+
+    /**
+     * Counts a request as in flight, when tracking concurrency.  The concurrency the request arrived at is
+     * added to the histogram if the request is being timed (so it is sampled along with the timers).
+     *
+     * @param startTime the request's start time, from {@link #startTiming()}
+     */
+    protected void requestArrived(long startTime) {
+        if(concurrencyTracker != null) {
+            final long concurrency = concurrencyTracker.arrive();
+            if(startTime != NOT_TIMED) {
+                concurrencyAtArrival.update(concurrency);
+            }
+        }
+    }
+
+    /**
+     * Counts a request, that {@link #requestArrived(long)} counted, as no longer in flight
+     */
+    protected void requestDeparted() {
+        if(concurrencyTracker != null) {
+            concurrencyTracker.depart();
+        }
+    }
+
+    /**
+     * Returns the start time of a request, or {@link #NOT_TIMED} if the request is not sampled for timing
+     */
+    protected long startTiming() {
+        if(timerSampler == null || timerSampler.sample()) {
+            return System.nanoTime();
+        } else {
+            return NOT_TIMED;
+        }
+    }
+
+    /**
+     * Returns the nanos since a start time returned by {@link #startTiming()}, or {@link #NOT_TIMED}
+     */
+    protected long durationSince(long startTime) {
+        if(startTime == NOT_TIMED) {
+            return NOT_TIMED;
+        } else {
+            return System.nanoTime() - startTime;
+        }
+    }
+
+    /**
+     * Records a completed request against all the metrics; the timers only if the request was timed
+     * (its duration is not {@link #NOT_TIMED}).  When aggregating in the background the
+     * request is reduced to a record in the ring buffer, which the aggregator thread records later.
+     */
+    protected void recordRequest(HttpServletRequest request, int responseCode, long durationNanos) {
+        recordRequest(request, responseCode, durationNanos, NOT_TIMED, NOT_COUNTED);
+    }
+
+    /**
+     * Records a completed request, as {@link #recordRequest(HttpServletRequest, int, long)}, along with the
+     * time to the first byte of its response (if it is not {@link #NOT_TIMED}) and the size of its response
+     * body (if it is not {@link #NOT_COUNTED})
+     */
+    protected void recordRequest(HttpServletRequest request, int responseCode, long durationNanos, long firstByteNanos,
+                                 long responseBytes) {
+        final int methodIndex = requestMethods.indexOf(request.getMethod());
+        final int adminEndpoint = getAdminEndpoint(request.getServletPath());
+        final RouteMetrics.Route route = routeMetrics == null ? null : routeMetrics.getRoute(request);
+
+        // done on the request thread, as the path is not carried by the ring
+        if(accessLog != null) {
+            accessLog.append(methodIndex, request.getServletPath(), responseCode, durationNanos);
+        }
+        if(heavyHitters != null) {
+            heavyHitters.update(request.getServletPath(), responseCode);
+        }
+        if(slowestRequests != null) {
+            slowestRequests.record(request, responseCode, durationNanos);
+        }
+        if(flightRecorderEvents != null) {
+            flightRecorderEvents.record(request, responseCode, durationNanos);
+        }
+
+        if(requestEventRing != null) {
+            if(requestEventRing.offer(methodIndex, responseCode, durationNanos, firstByteNanos, responseBytes,
+                    route == null ? NO_ROUTE : route.getId(), adminEndpoint)) {
+                requestEventAggregator.published();
+                return;
+            }
+            ringFullRequests.increment();
+            if(!recordInlineWhenRingFull) {
+                return;
+            }
+        }
+        recordRequest(methodIndex, responseCode, durationNanos, firstByteNanos, responseBytes, route, adminEndpoint);
+    }
+
+    private void recordRequest(int methodIndex, int responseCode, long durationNanos, long firstByteNanos, long responseBytes,
+                               RouteMetrics.Route route, int adminEndpoint) {
+        if(durationNanos != NOT_TIMED) {
+            timeTakenForRequestMethods[methodIndex].update(durationNanos, TimeUnit.NANOSECONDS);
+            if(sharedCountersFile != null) {
+                sharedCountersFile.recordLatency(methodIndex, durationNanos);
+            }
+            if(timeTakenForRequestMethodsByResponseType != null) {
+                final int response = responseCode / 100;
+                final int responseIndex = (response >= 1 && response <= 5) ? response - 1 : 5;
+                timeTakenForRequestMethodsByResponseType[methodIndex][responseIndex].update(durationNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+        if(firstByteNanos != NOT_TIMED && timeToFirstByteForRequestMethods != null) {
+            timeToFirstByteForRequestMethods[methodIndex].update(firstByteNanos, TimeUnit.NANOSECONDS);
+        }
+        if(responseBytes != NOT_COUNTED && responseByteMetrics != null) {
+            responseByteMetrics.update(methodIndex, responseCode, responseBytes);
+        }
+        updateResponseRate(responseCode);
+        if(adminEndpoint != NO_ADMIN_ENDPOINT) {
+            adminMetrics[adminEndpoint].mark();
+        }
+        if(route != null) {
+            route.update(responseCode, durationNanos);
+        }
+    }
+
+    /**
+     * Servlet 2.5 responses have to be wrapped to capture the status.  On servlet 3.0+ the container's own
+     * response is passed down the chain untouched, so the container can still recognise it (and use
+     * its fast paths for writing static content); unless the response body is being counted, or its first
+     * byte timed, which needs the wrapper's counting streams.  Requests matching the
+     * {@value #CONFIG_PARAM_RESPONSE_BYTE_METRICS_UNWRAPPED_PATHS} init param are never wrapped on servlet 3.0+, so
+     * the container can still send their (static) content with sendfile or from direct buffers.
+     */
+    protected ServletResponse wrapResponseIfRequired(ServletResponse response) {
+        return wrapResponseIfRequired(null, response);
+    }
+
+    /**
+     * As {@link #wrapResponseIfRequired(ServletResponse)}, but on servlet 3.1+ containers the output stream of a
+     * request that supports async is not wrapped, as the request may set a WriteListener on it; which the counting
+     * stream, built against the servlet 3.0 api, cannot pass on.  Writes through that stream are not counted or timed;
+     * the body is counted from its Content-Length instead.
+     */
+    protected ServletResponse wrapResponseIfRequired(ServletRequest request, ServletResponse response) {
+        if(responseStatusAvailable && !isWatchingResponseBody()) {
+            return response;
+        } else if(unwrappedResponsePaths != null && request instanceof HttpServletRequest
+                && unwrappedResponsePaths.matches((HttpServletRequest) request)) {
+            return response;
         } else {
-            return timeTakenForOtherRequestTypesForSecond;
+            boolean wrapOutputStream = request == null || !CountingServletOutputStream.isNonBlockingIoAvailable()
+                    || !request.isAsyncSupported();
+            return new StatusExposingServletResponse((HttpServletResponse) response, responseByteMetrics != null,
+                    timeToFirstByteForRequestMethods != null, wrapOutputStream);
         }
     }
 
+    /**
+     * True if the size of response bodies is being counted, or their first byte timed
+     */
+    protected boolean isWatchingResponseBody() {
+        return responseByteMetrics != null || timeToFirstByteForRequestMethods != null;
+    }
+
+    /**
+     * Returns the nanos from the start of a request to the first write, flush or commit of the response returned by
+     * {@link #wrapResponseIfRequired(ServletRequest, ServletResponse)}, or {@link #NOT_TIMED}.  A response that nothing
+     * was written to is only committed when the request completes, so its first byte is at the end of the request's
+     * duration.  A response whose output stream was handed out unwrapped, for servlet 3.1 non-blocking io, is not timed,
+     * as its writes were not seen.
+     *
+     * @param startTime the request's start time, from {@link #startTiming()}
+     * @param durationNanos the request's duration, from {@link #durationSince(long)}
+     */
+    protected long getTimeToFirstByte(ServletResponse response, long startTime, long durationNanos) {
+        if(timeToFirstByteForRequestMethods == null || startTime == NOT_TIMED
+                || !(response instanceof StatusExposingServletResponse)) {
+            return NOT_TIMED;
+        }
+        final StatusExposingServletResponse wrapper = (StatusExposingServletResponse) response;
+        if(wrapper.isOutputStreamUnwrapped()) {
+            return NOT_TIMED;
+        }
+        final long timeToFirstByte = wrapper.getTimeToFirstByte(startTime);
+        return timeToFirstByte < 0 ? durationNanos : Math.min(timeToFirstByte, durationNanos);
+    }
+
+    /**
+     * Returns the bytes in the body of a response returned by {@link #wrapResponseIfRequired(ServletRequest, ServletResponse)},
+     * or {@link #NOT_COUNTED}.  A response that was not wrapped (see
+     * {@value #CONFIG_PARAM_RESPONSE_BYTE_METRICS_UNWRAPPED_PATHS}) is counted from what the container reports: a file
+     * that tomcat sent itself with sendfile from the request's sendfile attributes, as it never passes through the
+     * response; otherwise the response's Content-Length header.  As is a wrapped response whose output stream was
+     * handed out unwrapped, for servlet 3.1 non-blocking io.
+     */
+    protected long getResponseBytes(ServletRequest request, ServletResponse response) {
+        if(responseByteMetrics == null) {
+            return NOT_COUNTED;
+        }
+        final Object sendfileStart = request.getAttribute(TOMCAT_SENDFILE_START_ATTRIBUTE);
+        final Object sendfileEnd = request.getAttribute(TOMCAT_SENDFILE_END_ATTRIBUTE);
+        if(sendfileStart instanceof Long && sendfileEnd instanceof Long) {
+            return (Long) sendfileEnd - (Long) sendfileStart;
+        }
+        if(response instanceof StatusExposingServletResponse) {
+            final long bytesWritten = ((StatusExposingServletResponse) response).getBytesWritten();
+            // the container's stream was handed out unwrapped (for non-blocking io), so fall back to the declared length
+            return bytesWritten == NOT_COUNTED ? getContentLength(response) : bytesWritten;
+        }
+        return getContentLength(response);
+    }
+
+    /**
+     * The Content-Length the response declared, or {@link #NOT_COUNTED} if it has none (or the container's servlet
+     * api cannot read response headers)
+     */
+    private long getContentLength(ServletResponse response) {
+        if(!responseStatusAvailable || !(response instanceof HttpServletResponse)) {
+            return NOT_COUNTED;
+        }
+        final String contentLength = ((HttpServletResponse) response).getHeader("Content-Length");
+        if(contentLength == null) {
+            return NOT_COUNTED;
+        }
+        try {
+            return Long.parseLong(contentLength.trim());
+        } catch(NumberFormatException e) {
+            return NOT_COUNTED;
+        }
+    }
+
+    /**
+     * Returns the status of a response returned by {@link #wrapResponseIfRequired(ServletResponse)}
+     */
+    protected int getStatus(ServletResponse response) {
+        if(response instanceof StatusExposingServletResponse) {
+            StatusExposingServletResponse wrapper = (StatusExposingServletResponse) response;
+            if(responseStatusAvailable) {
+                // only wrapped to count the body, so the container's own status is still the most accurate
+                return ((HttpServletResponse) wrapper.getResponse()).getStatus();
+            }
+            return wrapper.getStatus();
+        } else {
+            return ((HttpServletResponse) response).getStatus();
+        }
+    }
+
+    protected void updateAdminMetricsIfRequestMatched(String path) {
+        final int adminEndpoint = getAdminEndpoint(path);
+        if(adminEndpoint != NO_ADMIN_ENDPOINT) {
+            adminMetrics[adminEndpoint].mark();
+        }
+    }
+
+    /**
+     * The index of the admin endpoint meter for the given path, or {@value #NO_ADMIN_ENDPOINT}
+     */
+    private int getAdminEndpoint(String path) {
+        final Integer adminEndpoint = adminEndpoints.get(path);
+        return adminEndpoint == null ? NO_ADMIN_ENDPOINT : adminEndpoint;
+    }
+
+    /**
+     * The request methods that have their own timers, and the index of each method's timer
+     */
+    protected RequestMethods getRequestMethods() {
+        return requestMethods;
+    }
+
+    protected Timer getTimerForCurrentRequestMethodType(String method) {
+        return timeTakenForRequestMethods[requestMethods.indexOf(method)];
+    }
+
     protected void updateResponseRate(int responseCode) {
         final int response = responseCode / 100;
         if (response >= 1 && response <= 5) {
@@ -355,6 +1458,9 @@ public class ResponseCodeFilter implements Filter
         } else {
             responses[5].mark();
         }
+        if(statusCodeCounters != null) {
+            statusCodeCounters.record(responseCode);
+        }
         requestsPerSecond.mark();
     }
 
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.Timer;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Per route timers and response meters, where a route is the path template given by a {@link RouteNormaliser}.
+ *
+ * The number of routes is bounded: once {@code maxRoutes} routes have been created, requests for any new
+ * route are recorded against a single overflow route ({@value #OVERFLOW_ROUTE}); so that a flood of
+ * distinct paths cannot create an unbounded number of metrics.  So that the first paths seen (a scanner's
+ * 404s, say) do not hold the routes forever, a route that has not been used for {@code idleNanos} is
+ * evicted, and its metrics removed, when a new route needs its place.  Routes are swept for idleness
+ * (approximately least recently used, using a second chance sweep) at most once every {@code idleNanos},
+ * and only when they are all taken; so a route is evicted after being idle for one to two of them.
+ *
+ * Request paths are mapped to their route through a cache, keyed by the request uri, so that a path
+ * that has been seen before costs a single map lookup (no normalising, and no allocation).  The cache
+ * holds at most {@code maxCachedPaths} paths, evicting the least recently used (approximately, using a
+ * second chance sweep) when it is full.  A sweep evicts down to 7/8ths of {@code maxCachedPaths}, so that
+ * it is not run on every miss of a full cache; and a miss that finds another thread sweeping does not wait
+ * for it, leaving the cache briefly over its size.
+ */
+public class RouteMetrics {
+
+    public static final String OVERFLOW_ROUTE = "other-routes";
+
+    /**
+     * Creates the metrics for a newly seen route
+     */
+    public interface RouteFactory {
+        Route createRoute(String template);
+
+        /**
+         * Removes the metrics of a route that has been evicted
+         */
+        void removeRoute(Route route);
+    }
+
+    /**
+     * The metrics for a single route
+     */
+    public static class Route {
+        private final String template;
+        private final Timer timer;
+        private final Meter[] responses;
+        // set by RouteMetrics before the route is published
+        private int id;
+        // set when the route is used, and cleared by each sweep for idle routes
+        private volatile boolean referenced = true;
+        private volatile boolean evicted;
+
+        /**
+         * @param responses the 1xx, 2xx, 3xx, 4xx, 5xx and unknown response meters
+         */
+        public Route(String template, Timer timer, Meter[] responses) {
+            this.template = template;
+            this.timer = timer;
+            this.responses = responses;
+        }
+
+        /**
+         * Records a response against the route; timing it only if the duration is not negative (not timed)
+         */
+        public void update(int responseCode, long durationNanos) {
+            if(durationNanos >= 0) {
+                timer.update(durationNanos, TimeUnit.NANOSECONDS);
+            }
+            final int response = responseCode / 100;
+            if (response >= 1 && response <= 5) {
+                responses[response - 1].mark();
+            } else {
+                responses[5].mark();
+            }
+        }
+
+        public String getTemplate() {
+            return template;
+        }
+
+        /**
+         * The id of the route, from which {@link RouteMetrics#getRoute(int)} returns the route
+         */
+        public int getId() {
+            return id;
+        }
+
+        public Timer getTimer() {
+            return timer;
+        }
+
+        public Meter[] getResponses() {
+            return responses;
+        }
+    }
+
+    private static final class CachedPath {
+        final Route route;
+        // the idle route sweeps there had been when the path was cached, as a sweep may free a route for it
+        final int sweeps;
+        volatile boolean referenced;
+
+        CachedPath(Route route, int sweeps) {
+            this.route = route;
+            this.sweeps = sweeps;
+        }
+    }
+
+    private final RouteNormaliser normaliser;
+    private final RouteFactory factory;
+    private final int maxRoutes;
+    private final int maxCachedPaths;
+    // the number of cached paths a sweep evicts down to
+    private final int sweptCachedPaths;
+    private final long idleNanos;
+    private final Clock clock;
+
+    private final ConcurrentHashMap<String,Route> routes = new ConcurrentHashMap<String, Route>();
+    private final ConcurrentHashMap<String,CachedPath> pathCache = new ConcurrentHashMap<String, CachedPath>();
+    private final AtomicInteger cachedPaths = new AtomicInteger();
+    private final ReentrantLock cachedPathsEviction = new ReentrantLock();
+    private final Route overflowRoute;
+    // routes by id, the overflow route being id 0; an evicted route's id is given to the next new route
+    private final AtomicReferenceArray<Route> routesById;
+    private volatile int sweeps;
+
+    // guarded by this
+    private long lastSweep;
+
+    public RouteMetrics(RouteNormaliser normaliser, RouteFactory factory, int maxRoutes, int maxCachedPaths,
+                        long idleNanos, Clock clock) {
+        this.normaliser = normaliser;
+        this.factory = factory;
+        this.maxRoutes = Math.max(0, maxRoutes);
+        this.maxCachedPaths = Math.max(1, maxCachedPaths);
+        this.sweptCachedPaths = this.maxCachedPaths - this.maxCachedPaths / 8;
+        this.idleNanos = idleNanos;
+        this.clock = clock;
+        this.lastSweep = clock.tick();
+        this.routesById = new AtomicReferenceArray<Route>(this.maxRoutes + 1);
+        this.overflowRoute = factory.createRoute(OVERFLOW_ROUTE);
+        this.routesById.set(0, overflowRoute);
+    }
+
+    /**
+     * Returns the route the given request should be recorded against
+     */
+    public Route getRoute(HttpServletRequest request) {
+        final String uri = request.getRequestURI();
+        if(uri == null) {
+            return overflowRoute;
+        }
+
+        final CachedPath cached = pathCache.get(uri);
+        final Route route;
+        if(cached == null) {
+            route = cacheRoute(uri, request.getContextPath());
+        } else if(cached.route.evicted || (cached.route == overflowRoute && cached.sweeps != sweeps)) {
+            if(pathCache.remove(uri, cached)) {
+                cachedPaths.decrementAndGet();
+            }
+            route = cacheRoute(uri, request.getContextPath());
+        } else {
+            // only write when it changes, to save dirtying the cache line on every request
+            if(!cached.referenced) {
+                cached.referenced = true;
+            }
+            route = cached.route;
+        }
+        if(!route.referenced) {
+            route.referenced = true;
+        }
+        return route;
+    }
+
+    private Route cacheRoute(String uri, String contextPath) {
+        String path = uri;
+        if(contextPath != null && contextPath.length() > 0 && uri.startsWith(contextPath)) {
+            path = uri.substring(contextPath.length());
+        }
+
+        final int sweepsBefore = sweeps;
+        Route route = getOrCreateRoute(normaliser.normalise(path));
+        if(pathCache.putIfAbsent(uri, new CachedPath(route, sweepsBefore)) == null) {
+            if(cachedPaths.incrementAndGet() > maxCachedPaths) {
+                evictCachedPaths();
+            }
+        }
+        return route;
+    }
+
+    private Route getOrCreateRoute(String template) {
+        final Route route = routes.get(template);
+        return route == null ? createRoute(template) : route;
+    }
+
+    private synchronized Route createRoute(String template) {
+        Route route = routes.get(template);
+        if(route == null) {
+            if(routes.size() >= maxRoutes && !evictIdleRoutes()) {
+                return overflowRoute;
+            }
+            route = factory.createRoute(template);
+            route.id = freeId();
+            routesById.set(route.id, route);
+            routes.put(template, route);
+        }
+        return route;
+    }
+
+    /**
+     * Evicts the routes that have not been used since the last sweep, if it was at least {@code idleNanos} ago,
+     * returning true if any were.  Guarded by this.
+     */
+    private boolean evictIdleRoutes() {
+        final long now = clock.tick();
+        if(now - lastSweep < idleNanos) {
+            return false;
+        }
+        lastSweep = now;
+        sweeps++;
+        boolean evicted = false;
+        for(Iterator<Route> iterator = routes.values().iterator(); iterator.hasNext(); ) {
+            Route route = iterator.next();
+            if(route.referenced) {
+                route.referenced = false;
+            } else {
+                iterator.remove();
+                routesById.set(route.id, null);
+                route.evicted = true;
+                factory.removeRoute(route);
+                evicted = true;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * The lowest id not held by a route.  Guarded by this.
+     */
+    private int freeId() {
+        for(int id = 1; id < routesById.length(); id++) {
+            if(routesById.get(id) == null) {
+                return id;
+            }
+        }
+        throw new IllegalStateException("no free route id, with " + routes.size() + " routes");
+    }
+
+    /**
+     * Evicts paths that have not been used since the last sweep, giving those that have a second chance, until
+     * the cache is down to {@code sweptCachedPaths}.  Skipped if another thread is already sweeping.
+     */
+    private void evictCachedPaths() {
+        if(!cachedPathsEviction.tryLock()) {
+            return;
+        }
+        try {
+            while(cachedPaths.get() > sweptCachedPaths) {
+                Iterator<Map.Entry<String,CachedPath>> paths = pathCache.entrySet().iterator();
+                while(paths.hasNext() && cachedPaths.get() > sweptCachedPaths) {
+                    Map.Entry<String,CachedPath> path = paths.next();
+                    if(path.getValue().referenced) {
+                        path.getValue().referenced = false;
+                    } else if(pathCache.remove(path.getKey(), path.getValue())) {
+                        // only counted if it was not removed by a request finding its route evicted
+                        cachedPaths.decrementAndGet();
+                    }
+                }
+            }
+        } finally {
+            cachedPathsEviction.unlock();
+        }
+    }
+
+    /**
+     * Returns the route with the given id, or the overflow route if there is no such route (or it has been evicted)
+     */
+    public Route getRoute(int id) {
+        if(id > 0 && id < routesById.length()) {
+            Route route = routesById.get(id);
+            if(route != null) {
+                return route;
+            }
+        }
+        return overflowRoute;
+    }
+
+    public Route getOverflowRoute() {
+        return overflowRoute;
+    }
+
+    /**
+     * The number of routes that have been created, not including the overflow route
+     */
+    public int getNumberOfRoutes() {
+        return routes.size();
+    }
+
+    public int getNumberOfCachedPaths() {
+        return cachedPaths.get();
+    }
+}
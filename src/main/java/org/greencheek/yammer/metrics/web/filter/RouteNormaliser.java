@@ -0,0 +1,177 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Turns a request path into the route (path template) its metrics are recorded against.
+ *
+ * The path is matched against the configured templates, in order, where a <code>{name}</code>
+ * segment matches any single path segment, and a final <code>*</code> segment matches the rest of
+ * the path; i.e. <code>/users/{id}/orders</code> or <code>/static/*</code>.  If no template matches,
+ * the route is derived from the path by collapsing any numeric segment into <code>{id}</code>, and
+ * any uuid segment into <code>{uuid}</code>.
+ */
+public class RouteNormaliser {
+
+    public static final String ID_SEGMENT = "{id}";
+    public static final String UUID_SEGMENT = "{uuid}";
+
+    private static final String WILDCARD_SEGMENT = "*";
+
+    private final List<String> templates;
+    private final List<String[]> templateSegments;
+
+    public RouteNormaliser(List<String> templates) {
+        List<String> routes = new ArrayList<String>(templates.size());
+        List<String[]> segments = new ArrayList<String[]>(templates.size());
+        for(String template : templates) {
+            String route = template.trim();
+            if(route.length() > 0) {
+                routes.add(route);
+                segments.add(split(route));
+            }
+        }
+        this.templates = Collections.unmodifiableList(routes);
+        this.templateSegments = segments;
+    }
+
+    public RouteNormaliser() {
+        this(Collections.<String>emptyList());
+    }
+
+    public List<String> getTemplates() {
+        return templates;
+    }
+
+    /**
+     * Returns the route for the given path (which should not include the context path)
+     */
+    public String normalise(String path) {
+        String[] pathSegments = split(stripPathParameters(path));
+
+        for(int i = 0; i < templateSegments.size(); i++) {
+            if(matches(templateSegments.get(i), pathSegments)) {
+                return templates.get(i);
+            }
+        }
+        return derive(pathSegments);
+    }
+
+    private static boolean matches(String[] template, String[] path) {
+        for(int i = 0; i < template.length; i++) {
+            String segment = template[i];
+            if(i == template.length - 1 && WILDCARD_SEGMENT.equals(segment)) {
+                return true;
+            }
+            if(i >= path.length) {
+                return false;
+            }
+            if(!isVariable(segment) && !segment.equals(path[i])) {
+                return false;
+            }
+        }
+        return template.length == path.length;
+    }
+
+    private static boolean isVariable(String segment) {
+        return segment.length() > 2 && segment.charAt(0) == '{' && segment.charAt(segment.length() - 1) == '}';
+    }
+
+    private static String derive(String[] pathSegments) {
+        if(pathSegments.length == 0) {
+            return "/";
+        }
+        StringBuilder route = new StringBuilder();
+        for(String segment : pathSegments) {
+            route.append('/');
+            if(isNumeric(segment)) {
+                route.append(ID_SEGMENT);
+            } else if(isUuid(segment)) {
+                route.append(UUID_SEGMENT);
+            } else {
+                route.append(segment);
+            }
+        }
+        return route.toString();
+    }
+
+    static boolean isNumeric(String segment) {
+        for(int i = 0; i < segment.length(); i++) {
+            char c = segment.charAt(i);
+            if(c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return segment.length() > 0;
+    }
+
+    static boolean isUuid(String segment) {
+        if(segment.length() != 36) {
+            return false;
+        }
+        for(int i = 0; i < 36; i++) {
+            char c = segment.charAt(i);
+            if(i == 8 || i == 13 || i == 18 || i == 23) {
+                if(c != '-') {
+                    return false;
+                }
+            } else if(!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes any ;name=value path parameters, i.e. ;jsessionid=
+     */
+    private static String stripPathParameters(String path) {
+        if(path.indexOf(';') == -1) {
+            return path;
+        }
+        StringBuilder stripped = new StringBuilder(path.length());
+        boolean inParameter = false;
+        for(int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if(c == ';') {
+                inParameter = true;
+            } else if(c == '/') {
+                inParameter = false;
+            }
+            if(!inParameter) {
+                stripped.append(c);
+            }
+        }
+        return stripped.toString();
+    }
+
+    /**
+     * The non empty segments of the path
+     */
+    private static String[] split(String path) {
+        List<String> segments = new ArrayList<String>();
+        for(String segment : path.split("/")) {
+            if(segment.length() > 0) {
+                segments.add(segment);
+            }
+        }
+        return segments.toArray(new String[segments.size()]);
+    }
+}
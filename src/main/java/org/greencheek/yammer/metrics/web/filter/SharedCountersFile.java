@@ -0,0 +1,283 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.core.Metered;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Publishes the filter's counters to a memory mapped file, so that another process on the same host can read
+ * them straight from the page cache; with no requests to the application, and no serialisation.
+ *
+ * The counters are the requests per response type and per request method (the counts of the filter's own
+ * meters and request method timers), and a latency histogram of fixed buckets per request method.  Request
+ * threads only add to the latency buckets (one atomic increment of an in memory counter per timed request);
+ * a single daemon thread copies all the counters into the file every interval.  The file is written under a
+ * sequence lock, so a reader can tell when it has read a consistent copy.
+ *
+ * <h3>File layout</h3>
+ * All values are little endian.  Offsets are in bytes.
+ * <pre>
+ * header (64 bytes)
+ *   0   int   magic, 0x52434346 ("RCCF")
+ *   4   int   layout version, 1
+ *   8   long  sequence: odd while the counters are being written, even once they are consistent
+ *   16  long  time of the last publish, in milliseconds since the epoch
+ *   24  int   M, the number of request methods (the last is "other")
+ *   28  int   R, the number of response types (1xx, 2xx, 3xx, 4xx, 5xx, unknown)
+ *   32  int   B, the number of latency buckets
+ *   36  int   N, the bytes per request method name
+ *   40  24 bytes reserved, zero
+ * 64                  M names of N bytes each, lower case US-ASCII, padded with zero bytes
+ * 64 + M*N            B longs, the inclusive upper bound of each latency bucket in nanoseconds
+ *                     (the last bucket's bound is Long.MAX_VALUE)
+ * 64 + M*N + 8*B      R longs, the requests per response type
+ * then                M longs, the timed requests per request method
+ * then                M*B longs, the timed requests per latency bucket: method 0's B buckets, then method 1's...
+ * </pre>
+ * The file is only ever this size, and everything before the sequence-locked counters is written once,
+ * when the file is created.  The file is never truncated or rewritten in place: it is written under a temporary
+ * name alongside, then renamed over any previous file.  A reader that still has the previous file mapped keeps
+ * reading its last published counters (rather than faulting on a truncated mapping), so a reader should re-open
+ * the file when its publish time stops moving.
+ *
+ * <h3>Reading</h3>
+ * Read the sequence; if it is odd, try again.  Read the counters, then read the sequence again; if it has
+ * changed, the counters were being written while they were read, so try again.  The reader's loads must not be
+ * reordered around the sequence loads (i.e. in java, read the sequence with a volatile load or a fence).
+ */
+public class SharedCountersFile implements Runnable {
+
+    public static final int MAGIC = 0x52434346;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int METHOD_NAME_SIZE = 16;
+
+    public static final int MAGIC_OFFSET = 0;
+    public static final int VERSION_OFFSET = 4;
+    public static final int SEQUENCE_OFFSET = 8;
+    public static final int PUBLISH_TIME_OFFSET = 16;
+    public static final int METHOD_COUNT_OFFSET = 24;
+    public static final int RESPONSE_TYPE_COUNT_OFFSET = 28;
+    public static final int BUCKET_COUNT_OFFSET = 32;
+    public static final int METHOD_NAME_SIZE_OFFSET = 36;
+
+    /**
+     * The inclusive upper bounds of the latency buckets, in nanoseconds
+     */
+    public static final long[] LATENCY_BUCKET_BOUNDS = {
+            TimeUnit.MICROSECONDS.toNanos(1000), TimeUnit.MICROSECONDS.toNanos(2500),
+            TimeUnit.MILLISECONDS.toNanos(5), TimeUnit.MILLISECONDS.toNanos(10),
+            TimeUnit.MILLISECONDS.toNanos(25), TimeUnit.MILLISECONDS.toNanos(50),
+            TimeUnit.MILLISECONDS.toNanos(100), TimeUnit.MILLISECONDS.toNanos(250),
+            TimeUnit.MILLISECONDS.toNanos(500), TimeUnit.SECONDS.toNanos(1),
+            TimeUnit.MILLISECONDS.toNanos(2500), TimeUnit.SECONDS.toNanos(5),
+            TimeUnit.SECONDS.toNanos(10), Long.MAX_VALUE
+    };
+
+    private final MappedByteBuffer buffer;
+    private final Metered[] responses;
+    private final Metered[] requestMethods;
+    private final AtomicLongArray latencyBuckets;
+    private final int bucketCount = LATENCY_BUCKET_BOUNDS.length;
+    private final int countersOffset;
+    private final long intervalNanos;
+    private final Thread thread;
+
+    private volatile boolean running = true;
+    // the file's sequence; only written by the publishing thread
+    private long sequence;
+    // the target of the fences between the sequence and the counters (see fence())
+    private volatile long publishes;
+    // set once the buffer is unmapped (after the thread has stopped), after which it must not be touched
+    private boolean unmapped;
+
+    /**
+     * Creates the file, and writes its header.  An existing file is replaced (by renaming the new one over it),
+     * not truncated; so a process that has it mapped is not left with a mapping past the end of the file.
+     *
+     * @param methodNames the request method names, with "other" last
+     * @param responses the meters of the 1xx, 2xx, 3xx, 4xx, 5xx and unknown responses
+     * @param requestMethods the request method timers, indexed as the method names
+     */
+    public SharedCountersFile(File file, List<String> methodNames, Metered[] responses, Metered[] requestMethods,
+                              long intervalNanos, String threadName) throws IOException {
+        this.responses = responses;
+        this.requestMethods = requestMethods;
+        this.latencyBuckets = new AtomicLongArray(methodNames.size() * bucketCount);
+        this.intervalNanos = intervalNanos;
+        this.countersOffset = HEADER_SIZE + (methodNames.size() * METHOD_NAME_SIZE) + (bucketCount * 8);
+
+        final int size = countersOffset + ((responses.length + methodNames.size() + latencyBuckets.length()) * 8);
+        final File directory = file.getAbsoluteFile().getParentFile();
+        final File temporary = File.createTempFile("." + file.getName() + "-", ".tmp", directory);
+        try {
+            final RandomAccessFile raf = new RandomAccessFile(temporary, "rw");
+            try {
+                raf.setLength(size);
+                // the mapping stays valid once the file is closed, and once it is renamed
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } finally {
+                raf.close();
+            }
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            writeHeader(methodNames);
+            if(!temporary.renameTo(file)) {
+                MappedBuffers.unmap(buffer);
+                throw new IOException("Unable to rename " + temporary + " to " + file);
+            }
+        } finally {
+            // no longer exists, once renamed
+            temporary.delete();
+        }
+
+        this.thread = new Thread(this, threadName);
+        this.thread.setDaemon(true);
+    }
+
+    private void writeHeader(List<String> methodNames) {
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        buffer.putLong(SEQUENCE_OFFSET, 0);
+        buffer.putInt(METHOD_COUNT_OFFSET, methodNames.size());
+        buffer.putInt(RESPONSE_TYPE_COUNT_OFFSET, responses.length);
+        buffer.putInt(BUCKET_COUNT_OFFSET, bucketCount);
+        buffer.putInt(METHOD_NAME_SIZE_OFFSET, METHOD_NAME_SIZE);
+        int offset = HEADER_SIZE;
+        for(String name : methodNames) {
+            final String lowerCase = name.toLowerCase(Locale.ENGLISH);
+            for(int i = 0; i < METHOD_NAME_SIZE; i++) {
+                final char c = i < lowerCase.length() ? lowerCase.charAt(i) : 0;
+                buffer.put(offset + i, (byte) (c < 0x80 ? c : '?'));
+            }
+            offset += METHOD_NAME_SIZE;
+        }
+        for(long bound : LATENCY_BUCKET_BOUNDS) {
+            buffer.putLong(offset, bound);
+            offset += 8;
+        }
+        // the magic last, so a reader never sees a valid magic on a half written header
+        publishes = 0;
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Counts a timed request in its request method's latency bucket
+     */
+    public void recordLatency(int methodIndex, long durationNanos) {
+        int bucket = 0;
+        while(durationNanos > LATENCY_BUCKET_BOUNDS[bucket]) {
+            bucket++;
+        }
+        latencyBuckets.incrementAndGet((methodIndex * bucketCount) + bucket);
+    }
+
+    /**
+     * Copies the counters into the file.  Only called by the publishing thread (or once it has stopped).
+     */
+    void publish() {
+        if(unmapped) {
+            return;
+        }
+        buffer.putLong(SEQUENCE_OFFSET, sequence + 1);
+        // the odd sequence must be visible before any of the counters change
+        fence();
+        try {
+            int offset = countersOffset;
+            for(Metered response : responses) {
+                buffer.putLong(offset, response.count());
+                offset += 8;
+            }
+            for(Metered requestMethod : requestMethods) {
+                buffer.putLong(offset, requestMethod.count());
+                offset += 8;
+            }
+            for(int i = 0; i < latencyBuckets.length(); i++) {
+                buffer.putLong(offset, latencyBuckets.get(i));
+                offset += 8;
+            }
+            buffer.putLong(PUBLISH_TIME_OFFSET, System.currentTimeMillis());
+        } finally {
+            // even again, even if a metric failed, so readers are never locked out; and only once the
+            // counters are visible
+            fence();
+            sequence += 2;
+            buffer.putLong(SEQUENCE_OFFSET, sequence);
+        }
+    }
+
+    /**
+     * A full (StoreLoad) fence: a volatile write then a volatile read.  Plain stores before the write cannot
+     * move after it, plain stores after the read cannot move before it, and the write and the read are not
+     * reordered; so no store to the file crosses the fence.
+     */
+    private void fence() {
+        publishes = sequence;
+        if(publishes != sequence) {
+            throw new IllegalStateException("The shared counters file is being published by more than one thread");
+        }
+    }
+
+    @Override
+    public void run() {
+        while(running) {
+            publishSafely();
+            LockSupport.parkNanos(this, intervalNanos);
+        }
+    }
+
+    private void publishSafely() {
+        try {
+            publish();
+        } catch(RuntimeException e) {
+            // a failing metric must not stop the thread
+        }
+    }
+
+    /**
+     * Stops the publishing thread, publishes the final counts, and unmaps the file.  The file is left for readers.
+     * If the thread has not stopped within 5 seconds, neither the final publish nor the unmapping happen, and the
+     * mapping is released when this is garbage collected.
+     */
+    public void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if(!thread.isAlive() && !unmapped) {
+            publishSafely();
+            unmapped = true;
+            MappedBuffers.unmap(buffer);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Keeps the slowest requests of each interval: their request method, servlet path, status, duration and start time.
+ *
+ * A request is only considered if its duration beats the threshold, the duration of the slowest request so far that
+ * would be pushed out; so once the interval has seen its first few requests, the cost to almost every request is a
+ * single comparison against a volatile long.  A request that does beat it takes a lock, and replaces the fastest of
+ * the kept requests in a heap.  A daemon thread ends each interval, keeping its requests as the last interval, and
+ * starts the next with no threshold.
+ */
+public class SlowestRequests implements Runnable {
+
+    private static final String SERVLET_CONTEXT_ATTRIBUTE_PREFIX = SlowestRequests.class.getName() + '.';
+
+    private static final Comparator<SlowRequest> SLOWEST_FIRST = new Comparator<SlowRequest>() {
+        @Override
+        public int compare(SlowRequest a, SlowRequest b) {
+            return a.durationNanos < b.durationNanos ? 1 : (a.durationNanos == b.durationNanos ? 0 : -1);
+        }
+    };
+
+    private final long intervalNanos;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    // The duration a request has to beat to be kept
+    private volatile long threshold;
+
+    // guarded by this: a min heap on duration
+    private final SlowRequest[] slowest;
+    private int size;
+    private long intervalStartMillis;
+
+    private volatile Snapshot lastInterval;
+
+    /**
+     * @param numberOfRequests the number of requests kept per interval
+     */
+    public SlowestRequests(int numberOfRequests, long intervalNanos, String threadName) {
+        if(numberOfRequests < 1) {
+            throw new IllegalArgumentException("numberOfRequests must be at least 1");
+        }
+        this.slowest = new SlowRequest[numberOfRequests];
+        this.intervalNanos = intervalNanos;
+        this.intervalStartMillis = System.currentTimeMillis();
+        this.lastInterval = new Snapshot(intervalStartMillis, intervalStartMillis, Collections.<SlowRequest>emptyList());
+        this.thread = new Thread(this, threadName);
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * The servlet context attribute a filter's slowest requests are published under
+     */
+    public static String getServletContextAttribute(String filterName) {
+        return SERVLET_CONTEXT_ATTRIBUTE_PREFIX + filterName;
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Keeps the completed request if it is one of the slowest of the interval
+     */
+    public void record(HttpServletRequest request, int responseCode, long durationNanos) {
+        if(durationNanos > threshold) {
+            offer(request, responseCode, durationNanos);
+        }
+    }
+
+    private synchronized void offer(HttpServletRequest request, int responseCode, long durationNanos) {
+        // another request may have raised the threshold since it was read
+        if(durationNanos <= threshold) {
+            return;
+        }
+        final SlowRequest slowRequest = new SlowRequest(request.getMethod(), request.getServletPath(), responseCode,
+                durationNanos, System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(durationNanos));
+        if(size < slowest.length) {
+            siftUp(size++, slowRequest);
+            if(size == slowest.length) {
+                threshold = slowest[0].durationNanos;
+            }
+        } else {
+            siftDown(0, slowRequest);
+            threshold = slowest[0].durationNanos;
+        }
+    }
+
+    /**
+     * The slowest requests of the last completed interval
+     */
+    public Snapshot getLastInterval() {
+        return lastInterval;
+    }
+
+    /**
+     * The slowest requests of the interval in progress
+     */
+    public synchronized Snapshot getCurrentInterval() {
+        return snapshot(System.currentTimeMillis());
+    }
+
+    /**
+     * Ends the current interval, keeping its slowest requests as the last interval
+     */
+    synchronized void endInterval() {
+        final long now = System.currentTimeMillis();
+        lastInterval = snapshot(now);
+        Arrays.fill(slowest, null);
+        size = 0;
+        threshold = 0;
+        intervalStartMillis = now;
+    }
+
+    private Snapshot snapshot(long endMillis) {
+        List<SlowRequest> requests = new ArrayList<SlowRequest>(Arrays.asList(slowest).subList(0, size));
+        Collections.sort(requests, SLOWEST_FIRST);
+        return new Snapshot(intervalStartMillis, endMillis, Collections.unmodifiableList(requests));
+    }
+
+    @Override
+    public void run() {
+        long intervalEnd = System.nanoTime() + intervalNanos;
+        while(running) {
+            LockSupport.parkNanos(this, intervalEnd - System.nanoTime());
+            if(running && System.nanoTime() - intervalEnd >= 0) {
+                endInterval();
+                intervalEnd += intervalNanos;
+            }
+        }
+    }
+
+    /**
+     * Stops the interval thread.  The requests kept so far remain readable.
+     */
+    public void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void siftUp(int position, SlowRequest request) {
+        while(position > 0) {
+            int parent = (position - 1) >>> 1;
+            if(slowest[parent].durationNanos <= request.durationNanos) {
+                break;
+            }
+            slowest[position] = slowest[parent];
+            position = parent;
+        }
+        slowest[position] = request;
+    }
+
+    private void siftDown(int position, SlowRequest request) {
+        int half = size >>> 1;
+        while(position < half) {
+            int child = (position << 1) + 1;
+            int right = child + 1;
+            if(right < size && slowest[right].durationNanos < slowest[child].durationNanos) {
+                child = right;
+            }
+            if(request.durationNanos <= slowest[child].durationNanos) {
+                break;
+            }
+            slowest[position] = slowest[child];
+            position = child;
+        }
+        slowest[position] = request;
+    }
+
+    /**
+     * The slowest requests of an interval, slowest first
+     */
+    public static final class Snapshot {
+        private final long startTimeMillis;
+        private final long endTimeMillis;
+        private final List<SlowRequest> requests;
+
+        Snapshot(long startTimeMillis, long endTimeMillis, List<SlowRequest> requests) {
+            this.startTimeMillis = startTimeMillis;
+            this.endTimeMillis = endTimeMillis;
+            this.requests = requests;
+        }
+
+        public long getStartTimeMillis() {
+            return startTimeMillis;
+        }
+
+        public long getEndTimeMillis() {
+            return endTimeMillis;
+        }
+
+        public List<SlowRequest> getRequests() {
+            return requests;
+        }
+    }
+
+    /**
+     * A completed request
+     */
+    public static final class SlowRequest {
+        private final String method;
+        private final String path;
+        private final int status;
+        private final long durationNanos;
+        private final long startTimeMillis;
+
+        SlowRequest(String method, String path, int status, long durationNanos, long startTimeMillis) {
+            this.method = method;
+            this.path = path;
+            this.status = status;
+            this.durationNanos = durationNanos;
+            this.startTimeMillis = startTimeMillis;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        public long getStartTimeMillis() {
+            return startTimeMillis;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Lists the slowest requests of a {@link ResponseCodeFilter} (that has {@value ResponseCodeFilter#CONFIG_PARAM_SLOWEST_REQUESTS}
+ * enabled) as plain text, one request per line: duration in milliseconds, request method, status, start time (epoch
+ * milliseconds) and servlet path, separated by tabs.  The last completed interval is listed, or the interval in progress
+ * when the {@value #PARAM_INTERVAL} request parameter is {@value #INTERVAL_CURRENT}.  The filter is found by its name,
+ * from the servlet's {@value #CONFIG_PARAM_FILTER_NAME} init param; defaulting to the filter's default name.
+ */
+public class SlowestRequestsServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String CONFIG_PARAM_FILTER_NAME = "filter-name";
+    public static final String PARAM_INTERVAL = "interval";
+    public static final String INTERVAL_CURRENT = "current";
+
+    private volatile String attributeName;
+
+    @Override
+    public void init(ServletConfig config) throws ServletException {
+        super.init(config);
+        String filterName = config.getInitParameter(CONFIG_PARAM_FILTER_NAME);
+        if(filterName == null || filterName.trim().length() == 0) {
+            filterName = ResponseCodeFilter.DEFAULT_FILTER_NAME;
+        }
+        attributeName = SlowestRequests.getServletContextAttribute(filterName.trim());
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        // looked up on each request, as the filter may be initialised (or re-initialised) after the servlet
+        final Object slowestRequests = getServletContext().getAttribute(attributeName);
+        if(!(slowestRequests instanceof SlowestRequests)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        final SlowestRequests.Snapshot snapshot = INTERVAL_CURRENT.equals(request.getParameter(PARAM_INTERVAL))
+                ? ((SlowestRequests) slowestRequests).getCurrentInterval()
+                : ((SlowestRequests) slowestRequests).getLastInterval();
+
+        response.setHeader("Cache-Control", "must-revalidate,no-cache,no-store");
+        response.setContentType("text/plain");
+        response.setCharacterEncoding("UTF-8");
+        final PrintWriter writer = response.getWriter();
+        writer.print("# interval ");
+        writer.print(snapshot.getStartTimeMillis());
+        writer.print(" to ");
+        writer.print(snapshot.getEndTimeMillis());
+        writer.print('\n');
+        for(SlowestRequests.SlowRequest slowRequest : snapshot.getRequests()) {
+            writer.print(slowRequest.getDurationNanos() / 1000000.0);
+            writer.print('\t');
+            writer.print(slowRequest.getMethod());
+            writer.print('\t');
+            writer.print(slowRequest.getStatus());
+            writer.print('\t');
+            writer.print(slowRequest.getStartTimeMillis());
+            writer.print('\t');
+            writer.print(slowRequest.getPath());
+            writer.print('\n');
+        }
+        writer.flush();
+    }
+}
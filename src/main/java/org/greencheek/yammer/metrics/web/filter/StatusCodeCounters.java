@@ -0,0 +1,103 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts every individual status code from {@value #MIN_STATUS_CODE} to {@value #MAX_STATUS_CODE}.
+ *
+ * The counts are held in a single preallocated array, indexed by the status code, with one
+ * row of codes per stripe (see {@link StripedCounter}); so recording a status code is an
+ * index calculation and an atomic add, with no map lookup and no allocation.
+ *
+ * The first time a status code is recorded the {@link Listener} is told about it (once), and
+ * given a {@link StripedCounter} view over that code's cells; so that a metric is only
+ * registered for the status codes that are actually being returned.
+ */
+public class StatusCodeCounters {
+
+    public static final int MIN_STATUS_CODE = 100;
+    public static final int MAX_STATUS_CODE = 599;
+
+    private static final int NUMBER_OF_STATUS_CODES = MAX_STATUS_CODE - MIN_STATUS_CODE + 1;
+
+    // Length of a stripe's row of codes; a multiple of the cache line, so rows never share a line
+    private static final int ROW_LENGTH = 512;
+
+    /**
+     * Told about each status code the first time it is recorded
+     */
+    public interface Listener {
+        void statusCodeSeen(int statusCode, StripedCounter count);
+    }
+
+    private final AtomicLongArray cells;
+    private final int mask;
+    private final Listener listener;
+
+    // Racy reads are fine, a stale false just goes through the synchronized check in markSeen
+    private final boolean[] seen = new boolean[NUMBER_OF_STATUS_CODES];
+
+    public StatusCodeCounters(Listener listener) {
+        this(StripedCounter.defaultStripes(), listener);
+    }
+
+    public StatusCodeCounters(int stripes, Listener listener) {
+        int numberOfStripes = StripedCounter.stripesFor(stripes);
+        this.mask = numberOfStripes - 1;
+        this.listener = listener;
+        // The extra row at the front keeps the first row off the line holding the array header
+        this.cells = new AtomicLongArray((numberOfStripes + 1) * ROW_LENGTH);
+    }
+
+    /**
+     * Records the given status code.  Status codes outside of
+     * {@value #MIN_STATUS_CODE} to {@value #MAX_STATUS_CODE} are ignored.
+     */
+    public void record(int statusCode) {
+        final int index = statusCode - MIN_STATUS_CODE;
+        if(index < 0 || index >= NUMBER_OF_STATUS_CODES) {
+            return;
+        }
+        cells.getAndIncrement(((StripedCounter.currentThreadStripe(mask) + 1) * ROW_LENGTH) + index);
+        if(!seen[index]) {
+            markSeen(index);
+        }
+    }
+
+    private synchronized void markSeen(int index) {
+        if(!seen[index]) {
+            listener.statusCodeSeen(index + MIN_STATUS_CODE, counterFor(index));
+            seen[index] = true;
+        }
+    }
+
+    private StripedCounter counterFor(int index) {
+        return new StripedCounter(cells, ROW_LENGTH + index, ROW_LENGTH, mask + 1);
+    }
+
+    /**
+     * The number of times the given status code has been recorded
+     */
+    public long count(int statusCode) {
+        final int index = statusCode - MIN_STATUS_CODE;
+        if(index < 0 || index >= NUMBER_OF_STATUS_CODES) {
+            return 0;
+        }
+        return counterFor(index).sum();
+    }
+}
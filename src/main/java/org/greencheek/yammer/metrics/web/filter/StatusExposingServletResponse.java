@@ -1,28 +1,93 @@
 package org.greencheek.yammer.metrics.web.filter;
 
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
 import java.io.IOException;
+import java.io.PrintWriter;
 
 public class StatusExposingServletResponse extends HttpServletResponseWrapper {
         private int httpStatus;
 
+        // When counting, or timing the first byte, the response body is written through counting streams
+        private final boolean countBytes;
+        private final boolean timeFirstByte;
+        // false when the output stream is handed out as is, as the request may use servlet 3.1 non-blocking io
+        private final boolean wrapOutputStream;
+        // set once the container's output stream has been handed out unwrapped, so the body is not all counted
+        private boolean outputStreamUnwrapped;
+        // set when the response is committed other than by writing the body
+        private boolean committed;
+        private long commitTime;
+        private CountingServletOutputStream countingOutputStream;
+        private CountingPrintWriter countingWriter;
+
         public StatusExposingServletResponse(HttpServletResponse response) {
+            this(response, false);
+        }
+
+        /**
+         * @param countBytes if the bytes written to the response's output stream, or writer, should be counted
+         */
+        public StatusExposingServletResponse(HttpServletResponse response, boolean countBytes) {
+            this(response, countBytes, false);
+        }
+
+        /**
+         * @param countBytes if the bytes written to the response's output stream, or writer, should be counted
+         * @param timeFirstByte if the time of the first write, flush or commit of the response should be noted
+         */
+        public StatusExposingServletResponse(HttpServletResponse response, boolean countBytes, boolean timeFirstByte) {
+            this(response, countBytes, timeFirstByte, true);
+        }
+
+        /**
+         * @param countBytes if the bytes written to the response's output stream, or writer, should be counted
+         * @param timeFirstByte if the time of the first write, flush or commit of the response should be noted
+         * @param wrapOutputStream if false, the container's output stream is returned as is (and writes to it are
+         *                         neither counted nor timed); see {@link CountingServletOutputStream}
+         */
+        public StatusExposingServletResponse(HttpServletResponse response, boolean countBytes, boolean timeFirstByte,
+                                             boolean wrapOutputStream) {
             super(response);
+            this.countBytes = countBytes;
+            this.timeFirstByte = timeFirstByte;
+            this.wrapOutputStream = wrapOutputStream;
         }
 
         @Override
         public void sendError(int sc) throws IOException {
             httpStatus = sc;
+            noteCommit();
             super.sendError(sc);
         }
 
         @Override
         public void sendError(int sc, String msg) throws IOException {
             httpStatus = sc;
+            noteCommit();
             super.sendError(sc, msg);
         }
 
+        @Override
+        public void sendRedirect(String location) throws IOException {
+            noteCommit();
+            super.sendRedirect(location);
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            noteCommit();
+            super.flushBuffer();
+        }
+
+        private void noteCommit() {
+            if(timeFirstByte && !committed) {
+                committed = true;
+                commitTime = System.nanoTime();
+            }
+        }
+
         @Override
         public void setStatus(int sc) {
             httpStatus = sc;
@@ -32,4 +97,83 @@ public class StatusExposingServletResponse extends HttpServletResponseWrapper {
         public int getStatus() {
             return httpStatus;
         }
-    }
\ No newline at end of file
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if(!countBytes && !timeFirstByte) {
+                return super.getOutputStream();
+            }
+            if(!wrapOutputStream) {
+                outputStreamUnwrapped = true;
+                return super.getOutputStream();
+            }
+            if(countingOutputStream == null) {
+                countingOutputStream = new CountingServletOutputStream(super.getOutputStream());
+            }
+            return countingOutputStream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if(!countBytes && !timeFirstByte) {
+                return super.getWriter();
+            }
+            if(countingWriter == null) {
+                countingWriter = new CountingPrintWriter(super.getWriter(), getCharacterEncoding());
+            }
+            return countingWriter;
+        }
+
+        /**
+         * True if the container's output stream was handed out unwrapped, so writes to it were neither counted nor
+         * timed
+         */
+        public boolean isOutputStreamUnwrapped() {
+            return outputStreamUnwrapped;
+        }
+
+        /**
+         * The bytes written to the response body through the wrapper, or -1 if the wrapper is not counting (or
+         * handed out the container's output stream unwrapped, so could not see everything written)
+         */
+        public long getBytesWritten() {
+            if(!countBytes || outputStreamUnwrapped) {
+                return -1;
+            }
+            long bytes = 0;
+            if(countingOutputStream != null) {
+                bytes += countingOutputStream.getCount();
+            }
+            if(countingWriter != null) {
+                bytes += countingWriter.getCount();
+            }
+            return bytes;
+        }
+    
+        /**
+         * The nanos from the given {@link System#nanoTime()} start time to the first write, flush or commit of the
+         * response, or -1 if there has been none (or the wrapper is not timing the first byte)
+         */
+        public long getTimeToFirstByte(long startTime) {
+            if(!timeFirstByte) {
+                return -1;
+            }
+            boolean seen = false;
+            long first = 0;
+            if(committed) {
+                seen = true;
+                first = commitTime;
+            }
+            if(countingOutputStream != null && countingOutputStream.isWritten()
+                    && (!seen || countingOutputStream.getFirstWriteTime() - first < 0)) {
+                seen = true;
+                first = countingOutputStream.getFirstWriteTime();
+            }
+            if(countingWriter != null && countingWriter.isWritten()
+                    && (!seen || countingWriter.getFirstWriteTime() - first < 0)) {
+                seen = true;
+                first = countingWriter.getFirstWriteTime();
+            }
+            return seen ? Math.max(0, first - startTime) : -1;
+        }
+    }
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that spreads its updates over a number of cells, so that request threads
+ * running on different cores do not all contend on a single AtomicLong (in the same
+ * way as jdk8's LongAdder, but without requiring jdk8).
+ *
+ * Each thread always updates the same cell, chosen from its thread id.  Cells are padded
+ * so that no two cells share a cache line.  Reading the value sums all the cells, so reads
+ * are more expensive than writes; which is the right way round for request metrics.
+ *
+ * A counter can also be a view over cells that live in a larger, shared array
+ * (see {@link StatusCodeCounters}).
+ */
+public class StripedCounter {
+
+    // Number of longs between cells: 128 bytes, which also covers the adjacent line prefetch
+    static final int CELL_PADDING = 16;
+
+    private static final int MAX_STRIPES = 64;
+
+    private static final int DEFAULT_STRIPES = stripesFor(Runtime.getRuntime().availableProcessors());
+
+    private final AtomicLongArray cells;
+    private final int firstCell;
+    private final int stride;
+    private final int mask;
+
+    public StripedCounter() {
+        this(DEFAULT_STRIPES);
+    }
+
+    public StripedCounter(int stripes) {
+        // The extra cell at the front keeps the first cell off the line holding the array header
+        this(new AtomicLongArray((stripesFor(stripes) + 1) * CELL_PADDING), CELL_PADDING, CELL_PADDING, stripesFor(stripes));
+    }
+
+    /**
+     * A counter whose cells are at {@code firstCell + (stripe * stride)} in the given array.
+     * The number of stripes must be a power of two.
+     */
+    StripedCounter(AtomicLongArray cells, int firstCell, int stride, int stripes) {
+        this.cells = cells;
+        this.firstCell = firstCell;
+        this.stride = stride;
+        this.mask = stripes - 1;
+    }
+
+    /**
+     * The number of stripes used by default: the number of processors, rounded up to a power of two
+     */
+    static int defaultStripes() {
+        return DEFAULT_STRIPES;
+    }
+
+    /**
+     * Rounds the given number of stripes up to a power of two, between 1 and {@value #MAX_STRIPES}
+     */
+    static int stripesFor(int stripes) {
+        int numberOfStripes = 1;
+        while(numberOfStripes < stripes && numberOfStripes < MAX_STRIPES) {
+            numberOfStripes <<= 1;
+        }
+        return numberOfStripes;
+    }
+
+    /**
+     * Returns the stripe, between 0 and mask, that the current thread should update.
+     */
+    static int currentThreadStripe(int mask) {
+        long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return (int)(id >>> 32) & mask;
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long x) {
+        cells.getAndAdd(firstCell + (currentThreadStripe(mask) * stride), x);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for(int i = 0; i <= mask; i++) {
+            sum += cells.get(firstCell + (i * stride));
+        }
+        return sum;
+    }
+
+    public int stripes() {
+        return mask + 1;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.ExtensibleMeter;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link com.yammer.metrics.core.Meter} that counts in a {@link StripedCounter}, rather than
+ * the single AtomicLong (and the three EWMA AtomicLongs) that a yammer Meter updates on
+ * every mark.
+ *
+ * The request threads only ever touch the striped cells.  Every 5 seconds the meter tick thread
+ * sums the cells, and folds the events seen since the previous tick into the 1, 5 and 15 minute
+ * rates; so the EWMAs are only ever updated by a single thread.
+ */
+public class StripedMeter extends ExtensibleMeter {
+
+    private final StripedCounter count;
+    private final DecayingRate m1Rate = DecayingRate.oneMinute();
+    private final DecayingRate m5Rate = DecayingRate.fiveMinutes();
+    private final DecayingRate m15Rate = DecayingRate.fifteenMinutes();
+
+    private final TimeUnit rateUnit;
+    private final Clock clock;
+    private final long startTime;
+
+    // The count at the last tick.  Only read and written by the (single) thread ticking.
+    private long countAtLastTick;
+
+    public StripedMeter(ScheduledExecutorService tickThread, String eventType, TimeUnit rateUnit, Clock clock) {
+        this(new StripedCounter(), tickThread, eventType, rateUnit, clock);
+    }
+
+    /**
+     * A meter over an existing counter, which may also be incremented directly
+     */
+    public StripedMeter(StripedCounter count, ScheduledExecutorService tickThread, String eventType, TimeUnit rateUnit, Clock clock) {
+        super(tickThread, eventType, rateUnit, clock);
+        this.count = count;
+        this.rateUnit = rateUnit;
+        this.clock = clock;
+        this.startTime = clock.tick();
+    }
+
+    /**
+     * A meter over an existing counter that has no tick thread, for subclasses that call {@link #tick()} themselves
+     */
+    protected StripedMeter(StripedCounter count, String eventType, TimeUnit rateUnit, Clock clock) {
+        super(eventType, rateUnit, clock);
+        this.count = count;
+        this.rateUnit = rateUnit;
+        this.clock = clock;
+        this.startTime = clock.tick();
+    }
+
+    @Override
+    protected void tick() {
+        tick(1);
+    }
+
+    /**
+     * Ticks the rates the given number of times, spreading the events counted since the last tick
+     * evenly over those ticks.  Costs the same however many ticks are taken.
+     */
+    protected void tick(long ticks) {
+        final long currentCount = count.sum();
+        final long uncounted = currentCount - countAtLastTick;
+        countAtLastTick = currentCount;
+
+        m1Rate.tick(ticks, uncounted);
+        m5Rate.tick(ticks, uncounted);
+        m15Rate.tick(ticks, uncounted);
+    }
+
+    @Override
+    public void mark() {
+        count.increment();
+    }
+
+    @Override
+    public void mark(long n) {
+        count.add(n);
+    }
+
+    @Override
+    public long count() {
+        return count.sum();
+    }
+
+    @Override
+    public double fifteenMinuteRate() {
+        return m15Rate.rate(rateUnit);
+    }
+
+    @Override
+    public double fiveMinuteRate() {
+        return m5Rate.rate(rateUnit);
+    }
+
+    @Override
+    public double meanRate() {
+        final long currentCount = count();
+        if (currentCount == 0) {
+            return 0.0;
+        } else {
+            final long elapsed = (clock.tick() - startTime);
+            return convertNsRate(currentCount / (double) elapsed);
+        }
+    }
+
+    @Override
+    public double oneMinuteRate() {
+        return m1Rate.rate(rateUnit);
+    }
+
+    private double convertNsRate(double ratePerNs) {
+        return ratePerNs * (double) rateUnit.toNanos(1);
+    }
+}
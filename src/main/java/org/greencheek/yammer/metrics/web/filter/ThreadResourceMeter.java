@@ -0,0 +1,111 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Reads the cpu time used, and the bytes allocated, by the current thread; so the difference between
+ * readings at the start and end of a request is the cpu and allocation of the request.
+ *
+ * Cpu time comes from the standard {@link ThreadMXBean}, and is only read if the jvm supports (and
+ * allows enabling) thread cpu time.  Allocated bytes come from HotSpot's extension of the bean, which
+ * is only touched through {@link HotSpotThreadAllocation}; so on a jvm without it that class fails to
+ * link, and allocation is simply not read.  A reading that is not supported is {@link #UNSUPPORTED}.
+ */
+public class ThreadResourceMeter {
+
+    public static final long UNSUPPORTED = -1;
+
+    private final ThreadMXBean threads;
+    private final boolean cpuTimeSupported;
+    private final boolean allocationSupported;
+
+    public ThreadResourceMeter() {
+        this(ManagementFactory.getThreadMXBean());
+    }
+
+    public ThreadResourceMeter(ThreadMXBean threads) {
+        this.threads = threads;
+        this.cpuTimeSupported = enableCpuTime(threads);
+        this.allocationSupported = enableAllocation(threads);
+    }
+
+    private static boolean enableCpuTime(ThreadMXBean threads) {
+        try {
+            if(!threads.isCurrentThreadCpuTimeSupported()) {
+                return false;
+            }
+            if(!threads.isThreadCpuTimeEnabled()) {
+                threads.setThreadCpuTimeEnabled(true);
+            }
+            return threads.isThreadCpuTimeEnabled();
+        } catch(UnsupportedOperationException e) {
+            return false;
+        } catch(SecurityException e) {
+            return false;
+        }
+    }
+
+    private static boolean enableAllocation(ThreadMXBean threads) {
+        try {
+            return HotSpotThreadAllocation.enable(threads);
+        } catch(LinkageError e) {
+            // not a HotSpot jvm
+            return false;
+        } catch(UnsupportedOperationException e) {
+            return false;
+        } catch(SecurityException e) {
+            return false;
+        }
+    }
+
+    public boolean isCpuTimeSupported() {
+        return cpuTimeSupported;
+    }
+
+    public boolean isAllocationSupported() {
+        return allocationSupported;
+    }
+
+    /**
+     * True if either reading is supported
+     */
+    public boolean isSupported() {
+        return cpuTimeSupported || allocationSupported;
+    }
+
+    /**
+     * The cpu time, in nanos, used by the current thread; or {@link #UNSUPPORTED}
+     */
+    public long currentThreadCpuTime() {
+        if(!cpuTimeSupported) {
+            return UNSUPPORTED;
+        }
+        return threads.getCurrentThreadCpuTime();
+    }
+
+    /**
+     * The bytes allocated by the current thread; or {@link #UNSUPPORTED}
+     */
+    public long currentThreadAllocatedBytes() {
+        if(!allocationSupported) {
+            return UNSUPPORTED;
+        }
+        return HotSpotThreadAllocation.allocatedBytes(threads, Thread.currentThread().getId());
+    }
+}
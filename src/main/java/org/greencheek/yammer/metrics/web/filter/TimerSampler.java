@@ -0,0 +1,131 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.Metered;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which requests are timed, so that at very high request rates not every request pays for
+ * reading the clock twice and updating a timer.  Requests that are not timed are still counted by
+ * the meters.
+ *
+ * In the fixed mode 1 in every {@code interval} requests is timed.  In the adaptive mode every request
+ * is timed until the request rate passes {@code rateThreshold} requests a second; above that, the
+ * interval is raised so that roughly {@code rateThreshold} requests a second are timed.  The adaptive
+ * interval is recalculated at most once a second, by a timed request, from the count of the given
+ * requests meter.
+ *
+ * Each thread counts down in its own (padded) cell, so deciding costs no shared writes.  The cells are
+ * not atomic: two threads sharing a cell can occasionally lose a count, which only nudges the sampling.
+ */
+public class TimerSampler {
+
+    // Values of the sampling mode
+    public static final String MODE_NONE = "none";
+    public static final String MODE_FIXED = "fixed";
+    public static final String MODE_ADAPTIVE = "adaptive";
+
+    private static final long ADJUST_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final boolean adaptive;
+    private final long rateThreshold;
+    private final Metered requests;
+    private final Clock clock;
+
+    private final long[] countdowns;
+    private final int mask;
+
+    private volatile int interval;
+
+    // guards the adaptive recalculation
+    private final AtomicLong lastAdjust;
+    private volatile long countAtLastAdjust;
+
+    /**
+     * Times 1 in every {@code interval} requests
+     */
+    public static TimerSampler fixed(int interval) {
+        return new TimerSampler(false, interval, 0, null, Clock.defaultClock());
+    }
+
+    /**
+     * Times every request until the rate of the given meter passes {@code rateThreshold} a second
+     */
+    public static TimerSampler adaptive(long rateThreshold, Metered requests, Clock clock) {
+        return new TimerSampler(true, 1, rateThreshold, requests, clock);
+    }
+
+    private TimerSampler(boolean adaptive, int interval, long rateThreshold, Metered requests, Clock clock) {
+        this.adaptive = adaptive;
+        this.interval = Math.max(1, interval);
+        this.rateThreshold = Math.max(1, rateThreshold);
+        this.requests = requests;
+        this.clock = clock;
+        int stripes = StripedCounter.defaultStripes();
+        this.mask = stripes - 1;
+        this.countdowns = new long[(stripes + 1) * StripedCounter.CELL_PADDING];
+        this.lastAdjust = new AtomicLong(clock.tick());
+        this.countAtLastAdjust = requests == null ? 0 : requests.count();
+    }
+
+    /**
+     * Returns true if the current request should be timed
+     */
+    public boolean sample() {
+        final int cell = StripedCounter.CELL_PADDING * (1 + StripedCounter.currentThreadStripe(mask));
+        final long remaining = countdowns[cell] - 1;
+        if(remaining > 0) {
+            countdowns[cell] = remaining;
+            return false;
+        }
+        countdowns[cell] = interval;
+        if(adaptive) {
+            adjustIfNecessary();
+        }
+        return true;
+    }
+
+    private void adjustIfNecessary() {
+        final long now = clock.tick();
+        final long last = lastAdjust.get();
+        final long elapsed = now - last;
+        if(elapsed < ADJUST_INTERVAL_NANOS || !lastAdjust.compareAndSet(last, now)) {
+            return;
+        }
+        final long count = requests.count();
+        final double ratePerSecond = (count - countAtLastAdjust) * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+        countAtLastAdjust = count;
+        interval = (int) Math.min(Integer.MAX_VALUE, Math.max(1, (long) Math.ceil(ratePerSecond / rateThreshold)));
+    }
+
+    /**
+     * The current interval between timed requests
+     */
+    public int getInterval() {
+        return interval;
+    }
+
+    /**
+     * The fraction of requests currently being timed, between 0 and 1
+     */
+    public double getSampleRate() {
+        return 1.0 / interval;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Matches requests against url patterns, as a servlet mapping does: <code>/static/*</code> matches any path under
+ * <code>/static</code>, <code>*.css</code> any path with that extension, and any other pattern only that exact path.
+ * Paths are matched within the application, i.e. after the context path.  Matching allocates nothing.
+ */
+public class UrlPatterns {
+
+    private final String[] prefixes;
+    private final String[] extensions;
+    private final String[] exactPaths;
+
+    public UrlPatterns(List<String> patterns) {
+        List<String> prefixList = new ArrayList<String>();
+        List<String> extensionList = new ArrayList<String>();
+        List<String> exactList = new ArrayList<String>();
+        for(String pattern : patterns) {
+            String trimmed = pattern.trim();
+            if(trimmed.length() == 0) {
+                continue;
+            }
+            if(trimmed.endsWith("/*")) {
+                // matches the directory itself, as well as everything under it
+                prefixList.add(trimmed.substring(0, trimmed.length() - 1));
+                exactList.add(trimmed.substring(0, trimmed.length() - 2));
+            } else if(trimmed.startsWith("*.")) {
+                extensionList.add(trimmed.substring(1));
+            } else {
+                exactList.add(trimmed);
+            }
+        }
+        this.prefixes = prefixList.toArray(new String[prefixList.size()]);
+        this.extensions = extensionList.toArray(new String[extensionList.size()]);
+        this.exactPaths = exactList.toArray(new String[exactList.size()]);
+    }
+
+    /**
+     * True if no patterns were given, so nothing matches
+     */
+    public boolean isEmpty() {
+        return prefixes.length == 0 && extensions.length == 0 && exactPaths.length == 0;
+    }
+
+    public boolean matches(HttpServletRequest request) {
+        final String uri = request.getRequestURI();
+        if(uri == null) {
+            return false;
+        }
+        final String contextPath = request.getContextPath();
+        final int offset = contextPath == null ? 0 : contextPath.length();
+        for(String prefix : prefixes) {
+            if(uri.startsWith(prefix, offset)) {
+                return true;
+            }
+        }
+        for(String extension : extensions) {
+            if(uri.endsWith(extension)) {
+                return true;
+            }
+        }
+        final int length = uri.length() - offset;
+        for(String exactPath : exactPaths) {
+            if(exactPath.length() == length && uri.startsWith(exactPath, offset)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
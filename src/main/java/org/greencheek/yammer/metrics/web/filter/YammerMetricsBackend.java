@@ -0,0 +1,94 @@
+/*
+ * Copyright 2012 dominictootell
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.RegistryAccess;
+import com.yammer.metrics.core.Timer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link MetricsBackend} that creates yammer's own metric implementations, in a yammer registry.  By default
+ * that is the global {@link Metrics#defaultRegistry()}, where the filter has always registered its metrics; a
+ * subclass can pass the registry shared with the application's other instrumentation.
+ */
+public class YammerMetricsBackend implements MetricsBackend {
+
+    private final MetricsRegistry registry;
+
+    public YammerMetricsBackend() {
+        this(Metrics.defaultRegistry());
+    }
+
+    public YammerMetricsBackend(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public Meter newMeter(MetricName name, String eventType) {
+        return registry.newMeter(name, eventType, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public Timer newTimer(MetricName name) {
+        return registry.newTimer(name, TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public Histogram newHistogram(MetricName name) {
+        return registry.newHistogram(name, true);
+    }
+
+    @Override
+    public Counter newCounter(MetricName name) {
+        return registry.newCounter(name);
+    }
+
+    @Override
+    public <T> Gauge<T> newGauge(MetricName name, Gauge<T> gauge) {
+        return registry.newGauge(name, gauge);
+    }
+
+    @Override
+    public <T extends Metric> T register(MetricName name, T metric) {
+        return RegistryAccess.getOrAdd(registry, name, metric);
+    }
+
+    @Override
+    public void removeMetric(MetricName name) {
+        registry.removeMetric(name);
+    }
+
+    @Override
+    public MetricsRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Does nothing, as the registry is shared
+     */
+    @Override
+    public void shutdown() {
+    }
+}
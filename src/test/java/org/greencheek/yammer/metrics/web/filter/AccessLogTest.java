@@ -0,0 +1,169 @@
+package org.greencheek.yammer.metrics.web.filter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.*;
+import org.greencheek.yammer.metrics.web.filter.utils.StatusChains;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that requests are written to the binary access log segments, and read back
+ */
+public class AccessLogTest {
+
+    private File directory;
+    private ResponseCodeFilter filter;
+
+    private final List<String> records = new ArrayList<String>();
+    private final AccessLogReader.Handler collector = new AccessLogReader.Handler() {
+        @Override
+        public void onRecord(long timestampMillis, String method, String path, int status, long durationNanos) {
+            records.add(method + " " + path + " " + status);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("access-log", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        for(File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private void send(String method, String path, int status) {
+        MockHttpServletRequest request = StatusChains.request(method, path, status);
+        request.setServletPath(path);
+        StatusChains.send(filter, request, StatusChains.sendStatusChain());
+    }
+
+    @Test
+    public void testRequestsAreReadBackAcrossSegments() throws Exception {
+        MockFilterConfig config = new MockFilterConfig(new MockServletContext(), "access-log-filter");
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_ACCESS_LOG_DIRECTORY, directory.getPath());
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_ACCESS_LOG_SEGMENT_RECORDS, "4");
+        // only the final flush, when the filter is destroyed
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_ACCESS_LOG_FLUSH_INTERVAL_MILLIS, "3600000");
+        filter = new ResponseCodeFilter();
+        filter.init(config);
+
+        for(int i = 0; i < 5; i++) {
+            send("GET", "/users", 200);
+            send("POST", "/orders", 503);
+        }
+        filter.destroy();
+
+        assertEquals(10, new AccessLogReader(directory, "access-log-filter").read(collector));
+        assertEquals("GET /users 200", records.get(0));
+        assertEquals("POST /orders 503", records.get(9));
+        assertEquals("10 records of 4 per segment", 3,
+                AccessLog.listFiles(directory, "access-log-filter", AccessLog.RUN_PATTERN + '-' + AccessLog.SEGMENT_PATTERN, AccessLog.SEGMENT_SUFFIX).length);
+    }
+
+    @Test
+    public void testPathsBeyondTheLimitAreRecordedAsOther() throws Exception {
+        // the other path counts towards the limit
+        AccessLog log = new AccessLog(directory, "limited", Arrays.asList("GET", "other"), 16, 1, 16, 3, TimeUnit.HOURS.toNanos(1));
+        log.append(0, "/a", 200, 1);
+        log.append(0, "/b", 200, 1);
+        log.append(0, "/c", 200, 1);
+        log.append(1, "/a", 404, -1);
+        log.stop();
+
+        new AccessLogReader(directory, "limited").read(collector);
+        assertEquals(Arrays.asList("GET /a 200", "GET /b 200", "GET (other) 200", "other /a 404"), records);
+    }
+
+    @Test
+    public void testPathLimitHoldsWhenThreadsSeeNewPathsAtOnce() throws Exception {
+        final AccessLog log = new AccessLog(directory, "racing", Arrays.asList("GET", "other"), 1024, 1, 128, 10, TimeUnit.HOURS.toNanos(1));
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int t = 0; t < 8; t++) {
+            final int thread = t;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch(InterruptedException e) {
+                        return;
+                    }
+                    for(int i = 0; i < 100; i++) {
+                        log.append(0, "/" + thread + "/" + i, 200, 1);
+                    }
+                }
+            }));
+        }
+        for(Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for(Thread thread : threads) {
+            thread.join();
+        }
+        log.stop();
+
+        assertEquals(800, new AccessLogReader(directory, "racing").read(collector));
+        Set<String> paths = new HashSet<String>();
+        for(String record : records) {
+            paths.add(record.split(" ")[1]);
+        }
+        assertTrue("at most 9 paths, and the other path, but was " + paths.size(), paths.size() <= 10);
+        assertTrue(paths.contains(AccessLog.OTHER_PATH));
+    }
+
+    @Test
+    public void testAppendsAfterStopAreIgnored() throws Exception {
+        AccessLog log = new AccessLog(directory, "stopped", Arrays.asList("GET", "other"), 16, 1, 16, 10, TimeUnit.HOURS.toNanos(1));
+        log.append(0, "/a", 200, 1);
+        log.stop();
+        log.append(0, "/a", 200, 1);
+        log.stop();
+
+        assertEquals(0, log.getDroppedRecords());
+        assertEquals(1, new AccessLogReader(directory, "stopped").read(collector));
+    }
+
+    @Test
+    public void testFullThreadBufferDropsRecords() throws Exception {
+        AccessLog log = new AccessLog(directory, "dropping", Arrays.asList("GET", "other"), 16, 1, 2, 10, TimeUnit.HOURS.toNanos(1));
+        log.append(0, "/a", 200, 1);
+        log.append(0, "/a", 200, 1);
+        log.append(0, "/a", 200, 1);
+        assertEquals(1, log.getDroppedRecords());
+        log.stop();
+
+        assertEquals(2, new AccessLogReader(directory, "dropping").read(collector));
+    }
+
+    @Test
+    public void testOnlyTheNewestSegmentsAreKept() throws Exception {
+        AccessLog log = new AccessLog(directory, "rolling", Arrays.asList("GET", "other"), 2, 2, 16, 10, TimeUnit.HOURS.toNanos(1));
+        for(int i = 0; i < 10; i++) {
+            log.append(0, "/a", 200 + i, 1);
+        }
+        log.stop();
+
+        assertEquals(4, new AccessLogReader(directory, "rolling").read(collector));
+        assertTrue(records.contains("GET /a 209"));
+    }
+}
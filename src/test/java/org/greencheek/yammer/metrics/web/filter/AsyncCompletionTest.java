@@ -0,0 +1,203 @@
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Timer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.*;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.greencheek.yammer.metrics.web.filter.utils.AsyncContexts.asyncContext;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that only requests that go async are given a listener, and are recorded exactly once however
+ * the container calls the listener
+ */
+public class AsyncCompletionTest {
+
+    private AsyncResponseCodeFilter filter;
+    private MockHttpServletRequest request;
+    private MockHttpServletResponse response;
+    private AsyncEvent event;
+    private List<AsyncListener> listeners;
+
+    @Before
+    public void setUp() throws Exception {
+        filter = new AsyncResponseCodeFilter();
+        filter.init(new MockFilterConfig(new MockServletContext(), "async-completion-filter"));
+
+        request = new MockHttpServletRequest("GET", "/");
+        response = new MockHttpServletResponse();
+        listeners = new ArrayList<AsyncListener>();
+        event = new AsyncEvent(asyncContext(request, response, listeners));
+    }
+
+    @After
+    public void tearDown() {
+        filter.destroy();
+    }
+
+    @Test
+    public void testCompleteIsOnlyRecordedOnce() throws Exception {
+        AsyncResponseCodeFilter.AsyncMetricsRequestResponseListener listener = filter.new AsyncMetricsRequestResponseListener(request, response, filter.startTiming(), System.nanoTime());
+        listener.onComplete(event);
+        listener.onComplete(event);
+
+        assertEquals(1, meter(ResponseCodeFilter.METRIC_NAME_LOOKUP_REQUESTS_PER_SECOND, "requests").count());
+        assertEquals(1, timer(ResponseCodeFilter.METRIC_NAME_LOOKUP_GET_REQUEST).count());
+    }
+
+    @Test
+    public void testTimeoutIsCountedOnceAndTheRequestRecordedOnce() throws Exception {
+        AsyncResponseCodeFilter.AsyncMetricsRequestResponseListener listener = filter.new AsyncMetricsRequestResponseListener(request, response, filter.startTiming(), System.nanoTime());
+        listener.onTimeout(event);
+        listener.onTimeout(event);
+        // the container completes the timed out request with an error
+        response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        listener.onComplete(event);
+
+        assertEquals(1, meter(AsyncResponseCodeFilter.METRIC_NAME_LOOKUP_ASYNC_TIMEOUTS, "requests").count());
+        assertEquals(1, timer(AsyncResponseCodeFilter.METRIC_NAME_LOOKUP_ASYNC_TIMED_OUT_REQUESTS).count());
+        assertEquals(1, meter(ResponseCodeFilter.METRIC_NAME_LOOKUP_REQUESTS_PER_SECOND, "requests").count());
+        assertEquals(1, meter(ResponseCodeFilter.METRIC_NAME_LOOKUP_5XX_RESPONSES, "responses").count());
+    }
+
+    @Test
+    public void testErrorIsCountedOnceAndTheRequestRecordedOnce() throws Exception {
+        AsyncResponseCodeFilter.AsyncMetricsRequestResponseListener listener = filter.new AsyncMetricsRequestResponseListener(request, response, filter.startTiming(), System.nanoTime());
+        listener.onError(event);
+        listener.onError(event);
+        listener.onComplete(event);
+
+        assertEquals(1, meter(AsyncResponseCodeFilter.METRIC_NAME_LOOKUP_ASYNC_ERRORS, "requests").count());
+        assertEquals(0, meter(AsyncResponseCodeFilter.METRIC_NAME_LOOKUP_ASYNC_TIMEOUTS, "requests").count());
+        assertEquals(1, meter(ResponseCodeFilter.METRIC_NAME_LOOKUP_REQUESTS_PER_SECOND, "requests").count());
+    }
+
+    @Test
+    public void testSyncRequestIsRecordedWithoutAListener() throws Exception {
+        AsyncAwareRequest syncRequest = new AsyncAwareRequest(listeners);
+        filter.doFilter(syncRequest, response, new MockFilterChain());
+
+        assertEquals(0, listeners.size());
+        assertEquals(1, meter(AsyncResponseCodeFilter.METRIC_NAME_LOOKUP_SYNC_PATH_REQUESTS, "requests").count());
+        assertEquals(0, meter(AsyncResponseCodeFilter.METRIC_NAME_LOOKUP_ASYNC_PATH_REQUESTS, "requests").count());
+        assertEquals(1, meter(ResponseCodeFilter.METRIC_NAME_LOOKUP_REQUESTS_PER_SECOND, "requests").count());
+    }
+
+    @Test
+    public void testAsyncRequestIsRecordedWhenItCompletes() throws Exception {
+        final AsyncAwareRequest asyncRequest = new AsyncAwareRequest(listeners);
+        filter.doFilter(asyncRequest, response, new MockFilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) {
+                asyncRequest.asyncStarted = true;
+            }
+        });
+
+        assertEquals(1, listeners.size());
+        assertEquals(1, meter(AsyncResponseCodeFilter.METRIC_NAME_LOOKUP_ASYNC_PATH_REQUESTS, "requests").count());
+        assertEquals(0, meter(ResponseCodeFilter.METRIC_NAME_LOOKUP_REQUESTS_PER_SECOND, "requests").count());
+
+        listeners.get(0).onComplete(event);
+        assertEquals(1, meter(ResponseCodeFilter.METRIC_NAME_LOOKUP_REQUESTS_PER_SECOND, "requests").count());
+    }
+
+    @Test
+    public void testAsyncTimeIsSplitBetweenTheContainerAndTheWait() throws Exception {
+        final AsyncAwareRequest asyncRequest = new AsyncAwareRequest(listeners);
+        filter.doFilter(asyncRequest, response, new MockFilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) {
+                asyncRequest.asyncStarted = true;
+                sleep(20);
+            }
+        });
+        Gauge inFlight = (Gauge) Metrics.defaultRegistry().allMetrics().get(new MetricName(filter.monitoringGroupName,
+                filter.monitoringTypeName, AsyncResponseCodeFilter.METRIC_NAME_LOOKUP_ASYNC_REQUESTS_IN_FLIGHT, "requests"));
+        assertEquals(1L, inFlight.value());
+
+        sleep(40);
+        listeners.get(0).onComplete(event);
+        assertEquals(0L, inFlight.value());
+
+        Timer container = timer("get" + AsyncResponseCodeFilter.METRIC_NAME_LOOKUP_ASYNC_CONTAINER_SUFFIX);
+        Timer wait = timer("get" + AsyncResponseCodeFilter.METRIC_NAME_LOOKUP_ASYNC_WAIT_SUFFIX);
+        Timer total = timer("get" + AsyncResponseCodeFilter.METRIC_NAME_LOOKUP_ASYNC_TOTAL_SUFFIX);
+        assertEquals(1, container.count());
+        assertEquals(1, wait.count());
+        assertEquals(1, total.count());
+        assertTrue("container time should include the chain", container.max() >= 20);
+        assertTrue("wait should include the time in async", wait.max() >= 40);
+        assertEquals(container.max() + wait.max(), total.max(), 0.001);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    public void testAsyncDispatchIsNotRecordedAgain() throws Exception {
+        AsyncAwareRequest dispatchedRequest = new AsyncAwareRequest(listeners);
+        dispatchedRequest.dispatcherType = DispatcherType.ASYNC;
+        filter.doFilter(dispatchedRequest, response, new MockFilterChain());
+
+        assertEquals(0, listeners.size());
+        assertEquals(0, meter(ResponseCodeFilter.METRIC_NAME_LOOKUP_REQUESTS_PER_SECOND, "requests").count());
+    }
+
+    private Meter meter(String name, String scope) {
+        return (Meter) Metrics.defaultRegistry().allMetrics().get(
+                new MetricName(filter.monitoringGroupName, filter.monitoringTypeName, name, scope));
+    }
+
+    private Timer timer(String name) {
+        return (Timer) Metrics.defaultRegistry().allMetrics().get(
+                new MetricName(filter.monitoringGroupName, filter.monitoringTypeName, name, "requests"));
+    }
+
+    /**
+     * The spring mock request predates servlet 3, so add the async methods the filter calls
+     */
+    private static class AsyncAwareRequest extends MockHttpServletRequest {
+        boolean asyncStarted;
+        DispatcherType dispatcherType = DispatcherType.REQUEST;
+        private final AsyncContext asyncContext;
+
+        AsyncAwareRequest(List<AsyncListener> listeners) {
+            super("GET", "/");
+            asyncContext = asyncContext(this, new MockHttpServletResponse(), listeners);
+        }
+
+        public boolean isAsyncStarted() {
+            return asyncStarted;
+        }
+
+        public DispatcherType getDispatcherType() {
+            return dispatcherType;
+        }
+
+        public AsyncContext getAsyncContext() {
+            return asyncContext;
+        }
+    }
+}
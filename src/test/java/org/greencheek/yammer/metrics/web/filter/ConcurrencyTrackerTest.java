@@ -0,0 +1,87 @@
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.MetricName;
+import org.junit.Test;
+import org.springframework.mock.web.*;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the in flight request count, the max per interval, and the filter's concurrency metrics
+ */
+public class ConcurrencyTrackerTest {
+
+    @Test
+    public void testInFlightAndMax() {
+        MovableClock clock = new MovableClock();
+        ConcurrencyTracker tracker = new ConcurrencyTracker(TimeUnit.SECONDS.toNanos(60), clock);
+
+        assertEquals(1, tracker.arrive());
+        assertEquals(2, tracker.arrive());
+        assertEquals(3, tracker.arrive());
+        tracker.depart();
+        tracker.depart();
+
+        assertEquals(1, tracker.getInFlight());
+        assertEquals(3, tracker.getMaxInFlight());
+
+        // the previous interval's max is still reported
+        clock.now += TimeUnit.SECONDS.toNanos(60);
+        assertEquals(3, tracker.getMaxInFlight());
+
+        // then only the request still in flight
+        clock.now += TimeUnit.SECONDS.toNanos(60);
+        assertEquals(1, tracker.getMaxInFlight());
+    }
+
+    @Test
+    public void testFilterTracksRequestsInFlight() throws Exception {
+        MockFilterConfig config = new MockFilterConfig(new MockServletContext());
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_CONCURRENCY_METRICS, "true");
+
+        final ResponseCodeFilter filter = new ResponseCodeFilter();
+        filter.init(config);
+        try {
+            final Gauge inFlight = (Gauge) Metrics.defaultRegistry().allMetrics().get(
+                    new MetricName(filter.monitoringGroupName, filter.monitoringTypeName, ResponseCodeFilter.METRIC_NAME_LOOKUP_REQUESTS_IN_FLIGHT, "requests"));
+            final long[] inFlightDuringRequest = new long[1];
+
+            filter.doFilter(new MockHttpServletRequest("GET", "/"), new MockHttpServletResponse(), new MockFilterChain() {
+                @Override
+                public void doFilter(ServletRequest request, ServletResponse response) {
+                    inFlightDuringRequest[0] = (Long) inFlight.value();
+                }
+            });
+
+            Gauge maxInFlight = (Gauge) Metrics.defaultRegistry().allMetrics().get(
+                    new MetricName(filter.monitoringGroupName, filter.monitoringTypeName, ResponseCodeFilter.METRIC_NAME_LOOKUP_MAX_REQUESTS_IN_FLIGHT, "requests"));
+            Histogram atArrival = (Histogram) Metrics.defaultRegistry().allMetrics().get(
+                    new MetricName(filter.monitoringGroupName, filter.monitoringTypeName, ResponseCodeFilter.METRIC_NAME_LOOKUP_REQUESTS_IN_FLIGHT_AT_ARRIVAL, "requests"));
+
+            assertEquals(1L, inFlightDuringRequest[0]);
+            assertEquals(0L, inFlight.value());
+            assertEquals(1L, maxInFlight.value());
+            assertEquals(1, atArrival.count());
+            assertEquals(1.0, atArrival.max(), 0.0);
+        } finally {
+            filter.destroy();
+        }
+    }
+
+    private static class MovableClock extends Clock {
+        long now = 0;
+
+        @Override
+        public long tick() {
+            return now;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package org.greencheek.yammer.metrics.web.filter;
+
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.*;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that a flight recorder event is emitted per request while recording, only over the threshold when one is set
+ */
+public class FlightRecorderEventsTest {
+
+    private static final long SLOW_REQUEST_MILLIS = 50;
+
+    private ResponseCodeFilter filter;
+    private File recordingFile;
+
+    private final FilterChain chain = new FilterChain() {
+        @Override
+        public void doFilter(ServletRequest request, ServletResponse response) {
+            if(((MockHttpServletRequest) request).getServletPath().equals("/slow")) {
+                try {
+                    Thread.sleep(SLOW_REQUEST_MILLIS);
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            ((HttpServletResponse) response).setStatus(404);
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        Assume.assumeTrue(FlightRecorder.isAvailable());
+        recordingFile = File.createTempFile("requests", ".jfr");
+    }
+
+    @After
+    public void tearDown() {
+        if(filter != null) {
+            filter.destroy();
+        }
+        if(recordingFile != null) {
+            recordingFile.delete();
+        }
+    }
+
+    private void send(String path) throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", path);
+        request.setServletPath(path);
+        filter.doFilter(request, new MockHttpServletResponse(), chain);
+    }
+
+    private List<RecordedEvent> recordRequests(MockFilterConfig config) throws Exception {
+        filter = new ResponseCodeFilter();
+        filter.init(config);
+
+        // not recording yet
+        send("/before");
+        Recording recording = new Recording();
+        recording.enable(FlightRecorderRequestEvent.NAME);
+        recording.start();
+        send("/fast");
+        send("/slow");
+        recording.stop();
+        recording.dump(recordingFile.toPath());
+        recording.close();
+
+        List<RecordedEvent> events = new ArrayList<RecordedEvent>();
+        for(RecordedEvent event : RecordingFile.readAllEvents(recordingFile.toPath())) {
+            if(event.getEventType().getName().equals(FlightRecorderRequestEvent.NAME)) {
+                events.add(event);
+            }
+        }
+        return events;
+    }
+
+    @Test
+    public void testEveryRequestIsEmittedWhileRecording() throws Exception {
+        MockFilterConfig config = new MockFilterConfig(new MockServletContext());
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_FLIGHT_RECORDER_EVENTS, "true");
+
+        List<RecordedEvent> events = recordRequests(config);
+        assertEquals(2, events.size());
+        assertEquals("GET", events.get(0).getString("method"));
+        assertEquals("/fast", events.get(0).getString("path"));
+        assertEquals(404, events.get(0).getInt("status"));
+        assertTrue(events.get(1).getDuration("requestDuration").toMillis() >= SLOW_REQUEST_MILLIS);
+    }
+
+    @Test
+    public void testOnlyRequestsOverTheThresholdAreEmitted() throws Exception {
+        MockFilterConfig config = new MockFilterConfig(new MockServletContext());
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_FLIGHT_RECORDER_EVENTS, "true");
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_FLIGHT_RECORDER_EVENTS_THRESHOLD_MILLIS, String.valueOf(SLOW_REQUEST_MILLIS / 2));
+
+        List<RecordedEvent> events = recordRequests(config);
+        assertEquals(1, events.size());
+        assertEquals("/slow", events.get(0).getString("path"));
+    }
+}
@@ -0,0 +1,110 @@
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.stats.Snapshot;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.*;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the HdrHistogram backed timer, and that the filter registers it for the request method timers
+ */
+public class HdrHistogramTimerTest {
+
+    private ScheduledExecutorService tickThread;
+    private MovableClock clock;
+
+    @Before
+    public void setUp() {
+        tickThread = Executors.newSingleThreadScheduledExecutor();
+        clock = new MovableClock();
+    }
+
+    @After
+    public void tearDown() {
+        tickThread.shutdownNow();
+    }
+
+    private HdrHistogramTimer newTimer() {
+        return new HdrHistogramTimer(new StripedMeter(tickThread, "calls", TimeUnit.SECONDS, clock),
+                TimeUnit.MILLISECONDS, TimeUnit.SECONDS, 2, TimeUnit.SECONDS.toNanos(60), clock);
+    }
+
+    @Test
+    public void testPercentilesComeFromEveryRecordedValue() {
+        HdrHistogramTimer timer = newTimer();
+        for(int i=1;i<=1000;i++) {
+            timer.update(i, TimeUnit.MILLISECONDS);
+        }
+
+        Snapshot snapshot = timer.getSnapshot();
+        assertEquals(1000, timer.count());
+        assertEquals(1000, snapshot.size());
+        assertEquals(500.0, snapshot.getMedian(), 5.0);
+        assertEquals(990.0, snapshot.get99thPercentile(), 10.0);
+        assertEquals(1000.0, timer.max(), 10.0);
+        assertEquals(1.0, timer.min(), 0.01);
+        assertEquals(500.5, timer.mean(), 5.0);
+        assertEquals(500500.0, timer.sum(), 0.0);
+    }
+
+    @Test
+    public void testOldWindowsAreDropped() {
+        HdrHistogramTimer timer = newTimer();
+        timer.update(900, TimeUnit.MILLISECONDS);
+        assertEquals(900.0, timer.max(), 9.0);
+
+        // the window holding 900ms becomes the previous window, and so is still reported
+        clock.now += TimeUnit.SECONDS.toNanos(60);
+        timer.update(10, TimeUnit.MILLISECONDS);
+        assertEquals(900.0, timer.max(), 9.0);
+
+        // now only the window holding 10ms remains
+        clock.now += TimeUnit.SECONDS.toNanos(60);
+        assertEquals(10.0, timer.max(), 0.1);
+
+        clock.now += TimeUnit.SECONDS.toNanos(120);
+        assertEquals(0, timer.getSnapshot().size());
+        assertEquals(2, timer.count());
+    }
+
+    @Test
+    public void testFilterRegistersHdrTimersForRequestMethods() throws Exception {
+        MockFilterConfig config = new MockFilterConfig(new MockServletContext());
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_TIMER_TYPE, ResponseCodeFilter.TIMER_TYPE_HDR);
+
+        ResponseCodeFilter filter = new ResponseCodeFilter();
+        filter.init(config);
+        try {
+            filter.doFilter(new MockHttpServletRequest("GET", "/"), new MockHttpServletResponse(), new MockFilterChain());
+
+            Metric get = Metrics.defaultRegistry().allMetrics().get(
+                    new MetricName(filter.monitoringGroupName, filter.monitoringTypeName, ResponseCodeFilter.METRIC_NAME_LOOKUP_GET_REQUEST, "requests"));
+
+            assertTrue("get timer should be hdr backed", get instanceof HdrHistogramTimer);
+            assertEquals(1, ((HdrHistogramTimer) get).count());
+        } finally {
+            filter.destroy();
+        }
+    }
+
+    private static class MovableClock extends Clock {
+        long now = 0;
+
+        @Override
+        public long tick() {
+            return now;
+        }
+    }
+}
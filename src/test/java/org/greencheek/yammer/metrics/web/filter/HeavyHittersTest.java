@@ -0,0 +1,113 @@
+package org.greencheek.yammer.metrics.web.filter;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.mock.web.*;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the most requested paths are tracked per status class, within their error bounds, in fixed memory
+ */
+public class HeavyHittersTest {
+
+    private ResponseCodeFilter filter;
+
+    @After
+    public void tearDown() {
+        if(filter != null) {
+            filter.destroy();
+        }
+    }
+
+    @Test
+    public void testHeavyPathsAreFoundAmongManyDistinctPaths() {
+        HeavyHitters heavyHitters = new HeavyHitters(16, 3, 1);
+        Random random = new Random(1);
+        for(int i = 0; i < 10000; i++) {
+            heavyHitters.update("/noise/" + random.nextInt(100000), 200);
+            if(i % 4 == 0) {
+                heavyHitters.update("/popular", 200);
+            }
+            if(i % 10 == 0) {
+                heavyHitters.update("/broken", 500);
+            }
+        }
+
+        HeavyHitters.Snapshot snapshot = heavyHitters.snapshot();
+        List<HeavyHitters.Entry> byVolume = snapshot.getTopPathsByVolume();
+        assertEquals(3, byVolume.size());
+        assertEquals("/popular", byVolume.get(0).getPath());
+        assertTrue("the estimate should never be below the actual count", byVolume.get(0).getCount() >= 2500);
+        assertTrue(byVolume.get(0).getGuaranteedCount() <= 2500);
+
+        List<HeavyHitters.Entry> serverErrors = snapshot.getTopPaths("5xx");
+        assertEquals(1, serverErrors.size());
+        assertEquals("/broken", serverErrors.get(0).getPath());
+        assertEquals("the 5xx sketch never filled up, so the count is exact", 1000, serverErrors.get(0).getCount());
+        assertEquals(0, serverErrors.get(0).getMaxOverCount());
+        assertEquals("/broken", snapshot.getTopPathsByErrors().get(0).getPath());
+        assertEquals(1000, snapshot.getTopPathsByErrors().get(0).getCount());
+        assertTrue(snapshot.getTopPaths("4xx").isEmpty());
+    }
+
+    @Test
+    public void testStripesAreMerged() throws Exception {
+        final HeavyHitters heavyHitters = new HeavyHitters(4, 2, 4);
+        Thread[] threads = new Thread[4];
+        for(int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for(int j = 0; j < 1000; j++) {
+                        heavyHitters.update("/shared", 404);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+
+        HeavyHitters.Entry shared = heavyHitters.snapshot().getTopPaths("4xx").get(0);
+        assertEquals("/shared", shared.getPath());
+        assertEquals(4000, shared.getCount());
+    }
+
+    @Test
+    public void testFilterPublishesTheHeavyHitters() throws Exception {
+        MockServletContext context = new MockServletContext();
+        MockFilterConfig config = new MockFilterConfig(context, "heavy-hitters-filter");
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_HEAVY_HITTERS, "true");
+        filter = new ResponseCodeFilter();
+        filter.init(config);
+
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/missing");
+        request.setServletPath("/missing");
+        filter.doFilter(request, new MockHttpServletResponse(), new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) {
+                ((HttpServletResponse) response).setStatus(404);
+            }
+        });
+
+        HeavyHitters heavyHitters = (HeavyHitters) context.getAttribute(HeavyHitters.getServletContextAttribute("heavy-hitters-filter"));
+        assertSame(filter.getHeavyHitters(), heavyHitters);
+        assertEquals("/missing", heavyHitters.snapshot().getTopPathsByErrors().get(0).getPath());
+
+        filter.destroy();
+        filter = null;
+        assertNull(context.getAttribute(HeavyHitters.getServletContextAttribute("heavy-hitters-filter")));
+    }
+}
@@ -0,0 +1,166 @@
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.*;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the tick free meters and timers decay the same as ticked ones, and that the filter registers them
+ */
+public class LazyDecayingMeterTest {
+
+    private ScheduledExecutorService tickThread;
+    private MovableClock clock;
+
+    @Before
+    public void setUp() {
+        tickThread = Executors.newSingleThreadScheduledExecutor();
+        clock = new MovableClock();
+    }
+
+    @After
+    public void tearDown() {
+        tickThread.shutdownNow();
+    }
+
+    @Test
+    public void testRatesOnlyMoveOnceAnIntervalHasPassed() {
+        LazyDecayingMeter meter = new LazyDecayingMeter("requests", TimeUnit.SECONDS, clock);
+        meter.mark(50);
+        assertEquals(0.0, meter.oneMinuteRate(), 0.0);
+
+        clock.now += TimeUnit.SECONDS.toNanos(5);
+        // first tick of an EWMA is the number of events over the 5 second interval
+        assertEquals(10.0, meter.oneMinuteRate(), 0.0001);
+        assertEquals(10.0, meter.fiveMinuteRate(), 0.0001);
+        assertEquals(10.0, meter.fifteenMinuteRate(), 0.0001);
+    }
+
+    @Test
+    public void testIdleMeterDecaysAsIfTicked() {
+        LazyDecayingMeter lazy = new LazyDecayingMeter("requests", TimeUnit.SECONDS, clock);
+        StripedMeter ticked = new StripedMeter(tickThread, "requests", TimeUnit.SECONDS, clock);
+        ticked.stop();
+
+        lazy.mark(100);
+        ticked.mark(100);
+        clock.now += TimeUnit.SECONDS.toNanos(5);
+        ticked.tick();
+        assertEquals(ticked.oneMinuteRate(), lazy.oneMinuteRate(), 0.000001);
+
+        // a minute with no marks, and no reads
+        clock.now += TimeUnit.SECONDS.toNanos(60);
+        for(int i = 0; i < 12; i++) {
+            ticked.tick();
+        }
+
+        assertEquals(ticked.oneMinuteRate(), lazy.oneMinuteRate(), 0.000001);
+        assertEquals(ticked.fiveMinuteRate(), lazy.fiveMinuteRate(), 0.000001);
+        assertEquals(ticked.fifteenMinuteRate(), lazy.fifteenMinuteRate(), 0.000001);
+        assertEquals(100, lazy.count());
+    }
+
+    @Test
+    public void testLongIdlePeriodDecaysInOneStep() {
+        LazyDecayingMeter lazy = new LazyDecayingMeter("requests", TimeUnit.SECONDS, clock);
+        StripedMeter ticked = new StripedMeter(tickThread, "requests", TimeUnit.SECONDS, clock);
+        ticked.stop();
+
+        lazy.mark(1000);
+        ticked.mark(1000);
+        clock.now += TimeUnit.SECONDS.toNanos(5);
+        ticked.tick();
+        assertEquals(ticked.fifteenMinuteRate(), lazy.fifteenMinuteRate(), 0.000001);
+
+        // an hour idle, is 720 ticks
+        clock.now += TimeUnit.HOURS.toNanos(1);
+        for(int i = 0; i < 720; i++) {
+            ticked.tick();
+        }
+        assertEquals(ticked.oneMinuteRate(), lazy.oneMinuteRate(), 0.000001);
+        assertEquals(ticked.fiveMinuteRate(), lazy.fiveMinuteRate(), 0.000001);
+        assertEquals(ticked.fifteenMinuteRate(), lazy.fifteenMinuteRate(), 0.000001);
+
+        // a year idle has decayed the rates away, and the meter still counts from there
+        clock.now += TimeUnit.DAYS.toNanos(365);
+        assertEquals(0.0, lazy.fifteenMinuteRate(), 0.000001);
+        lazy.mark(50);
+        clock.now += TimeUnit.SECONDS.toNanos(5);
+        assertEquals(10.0 * (1 - Math.exp(-5 / 60.0)), lazy.oneMinuteRate(), 0.000001);
+        assertEquals(1050, lazy.count());
+    }
+
+    @Test
+    public void testCountsOnTheCounterAreSpreadOverMissedIntervals() {
+        StripedCounter counter = new StripedCounter();
+        LazyDecayingMeter meter = new LazyDecayingMeter(counter, "responses", TimeUnit.SECONDS, clock);
+
+        counter.add(600);
+        clock.now += TimeUnit.SECONDS.toNanos(60);
+
+        // 50 events in each of 12 intervals, is a steady 10 a second
+        assertEquals(10.0, meter.fifteenMinuteRate(), 0.0001);
+    }
+
+    @Test
+    public void testTimerRecordsInDurationUnits() {
+        LazyDecayingTimer timer = new LazyDecayingTimer(new LazyDecayingMeter("calls", TimeUnit.SECONDS, clock),
+                TimeUnit.MILLISECONDS, TimeUnit.SECONDS, clock);
+        timer.update(10, TimeUnit.MILLISECONDS);
+        timer.update(30, TimeUnit.MILLISECONDS);
+
+        assertEquals(2, timer.count());
+        assertEquals(10.0, timer.min(), 0.0);
+        assertEquals(30.0, timer.max(), 0.0);
+        assertEquals(20.0, timer.mean(), 0.0);
+        assertEquals(30.0, timer.getSnapshot().getValue(1.0), 0.0);
+
+        clock.now += TimeUnit.SECONDS.toNanos(5);
+        assertEquals(0.4, timer.oneMinuteRate(), 0.0001);
+    }
+
+    @Test
+    public void testFilterRegistersLazyMetersAndTimers() throws Exception {
+        MockFilterConfig config = new MockFilterConfig(new MockServletContext());
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_METER_TYPE, ResponseCodeFilter.METER_TYPE_LAZY);
+
+        ResponseCodeFilter filter = new ResponseCodeFilter();
+        filter.init(config);
+        try {
+            filter.doFilter(new MockHttpServletRequest("GET", "/"), new MockHttpServletResponse(), new MockFilterChain());
+
+            Metric requests = Metrics.defaultRegistry().allMetrics().get(
+                    new MetricName(filter.monitoringGroupName, filter.monitoringTypeName, ResponseCodeFilter.METRIC_NAME_LOOKUP_REQUESTS_PER_SECOND, "requests"));
+            Metric get = Metrics.defaultRegistry().allMetrics().get(
+                    new MetricName(filter.monitoringGroupName, filter.monitoringTypeName, ResponseCodeFilter.METRIC_NAME_LOOKUP_GET_REQUEST, "requests"));
+
+            assertTrue("requestsPerSecond meter should be lazy", requests instanceof LazyDecayingMeter);
+            assertTrue("get timer should be lazy", get instanceof LazyDecayingTimer);
+            assertEquals(1, ((LazyDecayingMeter) requests).count());
+            assertEquals(1, ((LazyDecayingTimer) get).count());
+        } finally {
+            filter.destroy();
+        }
+    }
+
+    private static class MovableClock extends Clock {
+        long now = 0;
+
+        @Override
+        public long tick() {
+            return now;
+        }
+    }
+}
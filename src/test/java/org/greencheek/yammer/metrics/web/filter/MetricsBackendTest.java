@@ -0,0 +1,165 @@
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.Timer;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.mock.web.*;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that the metrics are created and registered by the backend chosen by the filter's init param
+ */
+public class MetricsBackendTest {
+
+    private ResponseCodeFilter filter;
+
+    /**
+     * A backend named by class, registering in a registry shared with other instrumentation
+     */
+    public static class SharedRegistryBackend extends YammerMetricsBackend {
+        static final MetricsRegistry SHARED_REGISTRY = new MetricsRegistry();
+
+        public SharedRegistryBackend() {
+            super(SHARED_REGISTRY);
+        }
+    }
+
+    /**
+     * A backend named by class, that cannot be created
+     */
+    public static class FailingBackend extends YammerMetricsBackend {
+        public FailingBackend() {
+            throw new IllegalStateException("no registry");
+        }
+    }
+
+    @After
+    public void tearDown() {
+        if(filter != null) {
+            filter.destroy();
+        }
+    }
+
+    private MetricName name(String name, String scope) {
+        return new MetricName(filter.monitoringGroupName, filter.monitoringTypeName, name, scope);
+    }
+
+    private void initFilter(String backend) throws Exception {
+        MockFilterConfig config = new MockFilterConfig(new MockServletContext());
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_METRICS_BACKEND, backend);
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_RESPONSE_BYTE_METRICS, "true");
+        filter = new ResponseCodeFilter();
+        filter.init(config);
+
+        filter.doFilter(new MockHttpServletRequest("GET", "/"), new MockHttpServletResponse(), new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException {
+                response.getOutputStream().write(new byte[100]);
+            }
+        });
+    }
+
+    @Test
+    public void testBuiltinBackendKeepsItsMetricsOutOfTheGlobalRegistry() throws Exception {
+        initFilter(ResponseCodeFilter.METRICS_BACKEND_BUILTIN);
+
+        MetricsRegistry registry = filter.getMetricsBackend().getRegistry();
+        MetricName getTimer = name(ResponseCodeFilter.METRIC_NAME_LOOKUP_GET_REQUEST, "requests");
+        assertNull(Metrics.defaultRegistry().allMetrics().get(getTimer));
+
+        Metric timer = registry.allMetrics().get(getTimer);
+        assertTrue(timer instanceof HdrHistogramTimer);
+        assertEquals(1, ((Timer) timer).count());
+        assertTrue(registry.allMetrics().get(name(ResponseCodeFilter.METRIC_NAME_LOOKUP_2XX_RESPONSES, "responses")) instanceof LazyDecayingMeter);
+
+        Metric bytes = registry.allMetrics().get(name("get" + ResponseCodeFilter.METRIC_NAME_LOOKUP_RESPONSE_BYTES_SUFFIX, "requests"));
+        assertTrue(bytes instanceof HdrValueHistogram);
+        assertEquals(100.0, ((Histogram) bytes).max(), 1.0);
+
+        filter.destroy();
+        filter = null;
+        assertNull(registry.allMetrics().get(getTimer));
+    }
+
+    @Test
+    public void testBackendCanBeNamedByClass() throws Exception {
+        initFilter(SharedRegistryBackend.class.getName());
+
+        Metric timer = SharedRegistryBackend.SHARED_REGISTRY.allMetrics().get(name(ResponseCodeFilter.METRIC_NAME_LOOKUP_GET_REQUEST, "requests"));
+        assertEquals(1, ((Timer) timer).count());
+        assertSame(SharedRegistryBackend.SHARED_REGISTRY, filter.getMetricsBackend().getRegistry());
+    }
+
+    @Test
+    public void testBuiltinBackendPublishesItsMetricsOverJmx() throws Exception {
+        initFilter(ResponseCodeFilter.METRICS_BACKEND_BUILTIN);
+
+        ObjectName getTimer = new ObjectName(name(ResponseCodeFilter.METRIC_NAME_LOOKUP_GET_REQUEST, "requests").getMBeanName());
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertEquals(1L, server.getAttribute(getTimer, "Count"));
+
+        filter.destroy();
+        filter = null;
+        assertFalse(server.isRegistered(getTimer));
+    }
+
+    @Test
+    public void testBackendConstructorFailureIsTheCause() throws Exception {
+        MockFilterConfig config = new MockFilterConfig(new MockServletContext());
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_METRICS_BACKEND, FailingBackend.class.getName());
+        try {
+            new ResponseCodeFilter().init(config);
+            fail("the backend cannot be created");
+        } catch(IllegalArgumentException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+            assertEquals("no registry", e.getCause().getMessage());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownBackendFailsInit() throws Exception {
+        MockFilterConfig config = new MockFilterConfig(new MockServletContext());
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_METRICS_BACKEND, "no.such.Backend");
+        new ResponseCodeFilter().init(config);
+    }
+
+    @Test
+    public void testHdrValueHistogramReportsRecentValues() {
+        HdrValueHistogram histogram = new HdrValueHistogram(2, TimeUnit.MINUTES.toNanos(1), Clock.defaultClock());
+        for(int i = 1; i <= 1000; i++) {
+            histogram.update(i);
+        }
+        histogram.update(-1);
+
+        assertEquals(1000, histogram.count());
+        assertEquals(500500.0, histogram.sum(), 0.0);
+        assertEquals(1.0, histogram.min(), 0.0);
+        assertEquals(1000.0, histogram.max(), 10.0);
+        assertEquals(990.0, histogram.getSnapshot().get99thPercentile(), 10.0);
+
+        histogram.clear();
+        assertEquals(0, histogram.count());
+        assertEquals(0.0, histogram.max(), 0.0);
+    }
+}
@@ -0,0 +1,101 @@
+package org.greencheek.yammer.metrics.web.filter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.*;
+import org.greencheek.yammer.metrics.web.filter.utils.StatusChains;
+
+import javax.servlet.http.HttpServletResponse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the exposition servlet writes the filter's metrics in the prometheus text format
+ */
+public class PrometheusExpositionTest {
+
+    private static final String PREFIX = "org_greencheek_yammer_metrics_web_filter_exposition_filter_";
+
+    private MockServletContext servletContext;
+    private ResponseCodeFilter filter;
+
+    @Before
+    public void setUp() throws Exception {
+        servletContext = new MockServletContext();
+        MockFilterConfig config = new MockFilterConfig(servletContext, "exposition-filter");
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_PROMETHEUS_EXPOSITION, "true");
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_STATUS_CODE_METRICS, "true");
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_ROUTE_METRICS, "true");
+
+        filter = new ResponseCodeFilter();
+        filter.init(config);
+    }
+
+    @After
+    public void tearDown() {
+        filter.destroy();
+    }
+
+    private void send(String path, int status) {
+        StatusChains.send(filter, "GET", path, status);
+    }
+
+    private MockHttpServletResponse scrape(String filterName) throws Exception {
+        MockServletConfig config = new MockServletConfig(servletContext);
+        config.addInitParameter(PrometheusExpositionServlet.CONFIG_PARAM_FILTER_NAME, filterName);
+        PrometheusExpositionServlet servlet = new PrometheusExpositionServlet();
+        servlet.init(config);
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        servlet.service(new MockHttpServletRequest("GET", "/metrics"), response);
+        return response;
+    }
+
+    @Test
+    public void testMetricsAreWrittenInTheTextFormat() throws Exception {
+        send("/users/1", 200);
+        send("/users/2", 404);
+
+        MockHttpServletResponse response = scrape("exposition-filter");
+        String body = response.getContentAsString();
+
+        assertEquals(PrometheusExposition.CONTENT_TYPE, response.getContentType());
+        assertEquals(response.getContentAsByteArray().length, response.getContentLength());
+        assertTrue(body, body.contains("# TYPE " + PREFIX + "get_requests_seconds summary\n"));
+        assertTrue(body, body.contains(PREFIX + "get_requests_seconds_count{scope=\"requests\"} 2\n"));
+        assertTrue(body, body.contains(PREFIX + "get_requests_seconds{scope=\"requests\",quantile=\"0.99\"} "));
+        assertTrue(body, body.contains("# TYPE " + PREFIX + "2xx_responses_total counter\n"));
+        assertTrue(body, body.contains(PREFIX + "4xx_responses_total{scope=\"responses\"} 1\n"));
+    }
+
+    @Test
+    public void testMetricsCreatedAfterTheFirstScrapeAreWritten() throws Exception {
+        scrape("exposition-filter");
+        send("/users/1", 429);
+
+        String body = scrape("exposition-filter").getContentAsString();
+
+        assertTrue(body, body.contains(PREFIX + "429_responses_total{scope=\"responses\"} 1\n"));
+        assertTrue(body, body.contains(PREFIX + "route_requests_seconds_count{route=\"/users/{id}\"} 1\n"));
+        assertTrue(body, body.contains(PREFIX + "route_responses_total{route=\"/users/{id}\",response=\"4xx-responses\"} 1\n"));
+    }
+
+    @Test
+    public void testEachFamilyHasOneTypeLine() throws Exception {
+        send("/users/1", 200);
+        send("/orders/1", 200);
+
+        String body = scrape("exposition-filter").getContentAsString();
+
+        String typeLine = "# TYPE " + PREFIX + "route_requests_seconds summary\n";
+        assertEquals(body.indexOf(typeLine), body.lastIndexOf(typeLine));
+        assertTrue(body, body.contains(PREFIX + "route_requests_seconds_count{route=\"/orders/{id}\"} 1\n"));
+    }
+
+    @Test
+    public void testUnknownFilterIsNotFound() throws Exception {
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, scrape("no-such-filter").getStatus());
+    }
+}
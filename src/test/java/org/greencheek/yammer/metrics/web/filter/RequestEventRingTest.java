@@ -0,0 +1,153 @@
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Timer;
+import org.junit.Test;
+import org.springframework.mock.web.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the request record ring buffer, and recording requests through the background aggregator
+ */
+public class RequestEventRingTest {
+
+    @Test
+    public void testRecordsAreDrainedInOrder() {
+        RequestEventRing ring = new RequestEventRing(4);
+        assertTrue(ring.offer(0, 200, 10, -1, -1, -1, -1));
+        assertTrue(ring.offer(1, 404, 20, -1, -1, 3, -1));
+        assertTrue(ring.offer(2, 500, 30, -1, -1, -1, 2));
+
+        final StringBuilder drained = new StringBuilder();
+        RequestEventRing.Handler handler = new RequestEventRing.Handler() {
+            @Override
+            public void onRequest(int methodIndex, int statusCode, long durationNanos, long firstByteNanos, long responseBytes, int routeId, int adminEndpoint) {
+                drained.append(methodIndex).append(':').append(statusCode).append(':').append(durationNanos)
+                        .append(':').append(routeId).append(':').append(adminEndpoint).append(' ');
+            }
+        };
+
+        assertEquals(2, ring.drain(handler, 2));
+        assertEquals(1, ring.drain(handler, 10));
+        assertEquals(0, ring.drain(handler, 10));
+        assertEquals("0:200:10:-1:-1 1:404:20:3:-1 2:500:30:-1:2 ", drained.toString());
+    }
+
+    @Test
+    public void testOfferFailsWhenFull() {
+        RequestEventRing ring = new RequestEventRing(2);
+        assertTrue(ring.offer(0, 200, 1, -1, -1, -1, -1));
+        assertTrue(ring.offer(0, 200, 1, -1, -1, -1, -1));
+        assertFalse("ring should be full", ring.offer(0, 200, 1, -1, -1, -1, -1));
+
+        assertEquals(1, ring.drain(new CountingHandler(), 1));
+        assertTrue("drained slot should be reusable", ring.offer(0, 200, 1, -1, -1, -1, -1));
+    }
+
+    @Test
+    public void testConcurrentProducersAreAllDrained() throws Exception {
+        final RequestEventRing ring = new RequestEventRing(1024);
+        final int threads = 4;
+        final int recordsPerThread = 50000;
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for(int i=0;i<threads;i++) {
+            new Thread() {
+                public void run() {
+                    for(int j=0;j<recordsPerThread;j++) {
+                        while(!ring.offer(0, 200, 1, -1, -1, -1, -1)) {
+                            Thread.yield();
+                        }
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        CountingHandler handler = new CountingHandler();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while(handler.count < threads * recordsPerThread && System.nanoTime() < deadline) {
+            ring.drain(handler, 256);
+        }
+        assertTrue("producers did not finish", done.await(10, TimeUnit.SECONDS));
+        assertEquals(threads * recordsPerThread, handler.count);
+        assertEquals(threads * recordsPerThread, handler.totalNanos);
+    }
+
+    @Test
+    public void testFilterRecordsThroughTheAggregator() throws Exception {
+        MockFilterConfig config = new MockFilterConfig(new MockServletContext());
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_BACKGROUND_AGGREGATION, "true");
+
+        ResponseCodeFilter filter = new ResponseCodeFilter();
+        filter.init(config);
+        try {
+            filter.doFilter(new MockHttpServletRequest("GET", "/"), new MockHttpServletResponse(), new MockFilterChain());
+
+            Timer get = (Timer) Metrics.defaultRegistry().allMetrics().get(
+                    new MetricName(filter.monitoringGroupName, filter.monitoringTypeName, ResponseCodeFilter.METRIC_NAME_LOOKUP_GET_REQUEST, "requests"));
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while(get.count() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(1, get.count());
+
+            Gauge ringFull = (Gauge) Metrics.defaultRegistry().allMetrics().get(
+                    new MetricName(filter.monitoringGroupName, filter.monitoringTypeName, ResponseCodeFilter.METRIC_NAME_LOOKUP_RING_FULL_REQUESTS, "requests"));
+            assertEquals(0L, ringFull.value());
+        } finally {
+            filter.destroy();
+        }
+    }
+
+    @Test
+    public void testIdleAggregatorBacksOff() throws Exception {
+        final AtomicInteger drains = new AtomicInteger();
+        RequestEventRing ring = new RequestEventRing(16) {
+            @Override
+            public int drain(Handler handler, int maxRecords) {
+                drains.incrementAndGet();
+                return super.drain(handler, maxRecords);
+            }
+        };
+        CountingHandler handler = new CountingHandler();
+        RequestEventAggregator aggregator = new RequestEventAggregator(ring, handler, "idle-aggregator-test");
+        aggregator.start();
+        try {
+            Thread.sleep(1000);
+            // parking for 1ms each time would drain around 2000 times a second
+            assertTrue("drained " + drains.get() + " times while idle", drains.get() < 100);
+
+            assertTrue(ring.offer(0, 200, 10, -1, -1, -1, -1));
+            aggregator.published();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while(ring.size() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(0, ring.size());
+        } finally {
+            aggregator.stop();
+        }
+        assertEquals(1, handler.count);
+    }
+
+    private static class CountingHandler implements RequestEventRing.Handler {
+        int count;
+        long totalNanos;
+
+        @Override
+        public void onRequest(int methodIndex, int statusCode, long durationNanos, long firstByteNanos, long responseBytes, int routeId, int adminEndpoint) {
+            count++;
+            totalNanos += durationNanos;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Timer;
+import org.junit.Test;
+import org.springframework.mock.web.*;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+/**
+ * Tests the request method to timer lookup
+ */
+public class RequestMethodsTest {
+
+    @Test
+    public void testDefaultMethodsAreFoundIgnoringCase() {
+        RequestMethods methods = new RequestMethods();
+
+        assertEquals(0, methods.indexOf("GET"));
+        assertEquals(0, methods.indexOf("get"));
+        assertEquals(1, methods.indexOf("Post"));
+        assertEquals(2, methods.indexOf("HEAD"));
+        assertEquals(3, methods.indexOf("put"));
+        assertEquals(4, methods.indexOf("DELETE"));
+        assertEquals(5, methods.otherIndex());
+        assertEquals(6, methods.size());
+    }
+
+    @Test
+    public void testUnknownMethodsAreOther() {
+        RequestMethods methods = new RequestMethods();
+
+        assertEquals(methods.otherIndex(), methods.indexOf("OPTIONS"));
+        assertEquals(methods.otherIndex(), methods.indexOf("PATCH"));
+        assertEquals(methods.otherIndex(), methods.indexOf("GETS"));
+        assertEquals(methods.otherIndex(), methods.indexOf("GTT"));
+        assertEquals(methods.otherIndex(), methods.indexOf(""));
+        assertEquals(methods.otherIndex(), methods.indexOf(null));
+    }
+
+    @Test
+    public void testAdditionalMethodsAreRegistered() {
+        RequestMethods methods = new RequestMethods(Arrays.asList("patch", "OPTIONS", "GET", " ", "PROPFIND"));
+
+        assertEquals("duplicates and blanks should be ignored", Arrays.asList("GET", "POST", "HEAD", "PUT", "DELETE", "PATCH", "OPTIONS", "PROPFIND"), methods.getMethods());
+        assertEquals(5, methods.indexOf("PATCH"));
+        assertEquals(6, methods.indexOf("options"));
+        assertEquals(7, methods.indexOf("PropFind"));
+        assertEquals(8, methods.otherIndex());
+        assertEquals(RequestMethods.OTHER, methods.getMethodsAndOther().get(methods.otherIndex()));
+        assertEquals(methods.size(), methods.getMethodsAndOther().size());
+    }
+
+    @Test
+    public void testAdditionalMethodsHaveTheirOwnTimer() throws Exception {
+        MockFilterConfig config = new MockFilterConfig(new MockServletContext());
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_ADDITIONAL_REQUEST_METHODS, "PATCH, OPTIONS");
+
+        ResponseCodeFilter filter = new ResponseCodeFilter();
+        filter.init(config);
+        try {
+            filter.doFilter(new MockHttpServletRequest("PATCH", "/"), new MockHttpServletResponse(), new MockFilterChain());
+            filter.doFilter(new MockHttpServletRequest("OPTIONS", "/"), new MockHttpServletResponse(), new MockFilterChain());
+            filter.doFilter(new MockHttpServletRequest("TRACE", "/"), new MockHttpServletResponse(), new MockFilterChain());
+
+            assertEquals("one PATCH request should have been filtered", 1, getTimer(filter, "patch-requests").count());
+            assertEquals("one OPTIONS request should have been filtered", 1, getTimer(filter, "options-requests").count());
+            assertEquals("one OTHER request should have been filtered", 1, getTimer(filter, "other-requests").count());
+            assertNotSame(filter.getTimerForCurrentRequestMethodType("patch"), filter.getTimerForCurrentRequestMethodType("TRACE"));
+        } finally {
+            filter.destroy();
+        }
+    }
+
+    private Timer getTimer(ResponseCodeFilter filter, String name) {
+        return (Timer) Metrics.defaultRegistry().allMetrics().get(
+                new MetricName(filter.monitoringGroupName, filter.monitoringTypeName, name, "requests"));
+    }
+}
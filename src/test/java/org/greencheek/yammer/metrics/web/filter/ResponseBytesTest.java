@@ -0,0 +1,177 @@
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Metered;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.*;
+import org.greencheek.yammer.metrics.web.filter.utils.StatusChains;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the bytes written to the response body are counted, through the stream and the writer
+ */
+public class ResponseBytesTest {
+
+    private FilterChain mockFilterChain;
+    private ResponseCodeFilter filter;
+
+    @Before
+    public void setUp() throws Exception {
+        MockFilterConfig config = new MockFilterConfig(new MockServletContext());
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_RESPONSE_BYTE_METRICS, "true");
+
+        mockFilterChain = new FilterChain()  {
+            @Override
+            public void doFilter(ServletRequest req, ServletResponse res) throws IOException {
+                HttpServletRequest request = (HttpServletRequest) req;
+                HttpServletResponse response = (HttpServletResponse) res;
+                StatusChains.sendStatus(request, response);
+                String body = request.getHeader("SEND_BODY");
+                if(request.getHeader("USE_WRITER") != null) {
+                    response.setCharacterEncoding("UTF-8");
+                    PrintWriter writer = response.getWriter();
+                    writer.print(body);
+                    writer.flush();
+                } else {
+                    response.getOutputStream().write(body.getBytes("UTF-8"));
+                }
+            }
+        };
+
+        filter = new ResponseCodeFilter();
+        filter.init(config);
+    }
+
+    @After
+    public void tearDown() {
+        filter.destroy();
+    }
+
+    private MockHttpServletResponse send(int status, String body, boolean useWriter) {
+        MockHttpServletRequest request = StatusChains.request("GET", "http://localhost:9090/", status);
+        request.addHeader("SEND_BODY", body);
+        if(useWriter) {
+            request.addHeader("USE_WRITER", "true");
+        }
+        return StatusChains.send(filter, request, mockFilterChain);
+    }
+
+    private Metric getMetric(String name, String scope) {
+        return Metrics.defaultRegistry().allMetrics().get(new MetricName(filter.monitoringGroupName,
+                filter.monitoringTypeName, name, scope));
+    }
+
+    @Test
+    public void testStreamBytesAreCounted() {
+        MockHttpServletResponse response = send(200, "hello", false);
+
+        assertEquals("the body should still reach the response", 5, response.getContentAsByteArray().length);
+        Histogram getBytes = (Histogram) getMetric("get" + ResponseCodeFilter.METRIC_NAME_LOOKUP_RESPONSE_BYTES_SUFFIX, "requests");
+        assertEquals(1, getBytes.count());
+        assertEquals(5.0, getBytes.max(), 0.0);
+        assertEquals(5, ((Metered) getMetric("2xx" + ResponseCodeFilter.METRIC_NAME_LOOKUP_RESPONSE_THROUGHPUT_SUFFIX, "responses")).count());
+    }
+
+    @Test
+    public void testWriterBytesAreCountedInTheResponseEncoding() throws Exception {
+        // 1 + 2 + 3 + 4 bytes in UTF-8
+        String body = "a\u00e9\u20ac\ud83d\ude00";
+        MockHttpServletResponse response = send(404, body, true);
+
+        assertEquals(body, response.getContentAsString());
+        Histogram notFoundBytes = (Histogram) getMetric("4xx" + ResponseCodeFilter.METRIC_NAME_LOOKUP_RESPONSE_BYTES_SUFFIX, "responses");
+        assertEquals(1, notFoundBytes.count());
+        assertEquals(10.0, notFoundBytes.max(), 0.0);
+    }
+
+    @Test
+    public void testSendfileIsCountedFromTheRequestAttributes() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET","http://localhost:9090/");
+        request.setAttribute("org.apache.tomcat.sendfile.start", 100L);
+        request.setAttribute("org.apache.tomcat.sendfile.end", 1124L);
+
+        assertEquals(1024, filter.getResponseBytes(request, filter.wrapResponseIfRequired(new MockHttpServletResponse())));
+    }
+
+    @Test
+    public void testUnwrappedPathsAreCountedFromWhatTheContainerReports() throws Exception {
+        filter.destroy();
+        MockFilterConfig config = new MockFilterConfig(new MockServletContext() {
+            @Override
+            public int getMajorVersion() {
+                return 3;
+            }
+        });
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_RESPONSE_BYTE_METRICS, "true");
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_RESPONSE_BYTE_METRICS_UNWRAPPED_PATHS, "/static/*, *.ico");
+        filter = new ResponseCodeFilter();
+        filter.init(config);
+
+        final List<ServletResponse> responsesPassedToChain = new ArrayList<ServletResponse>();
+        FilterChain staticContent = new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest req, ServletResponse res) throws IOException {
+                responsesPassedToChain.add(res);
+                if(req.getAttribute("SENDFILE") != null) {
+                    // as tomcat's default servlet hands the file to the connector
+                    req.setAttribute("org.apache.tomcat.sendfile.start", 0L);
+                    req.setAttribute("org.apache.tomcat.sendfile.end", 4096L);
+                } else {
+                    res.setContentLength(2048);
+                    res.getOutputStream().write(new byte[2048]);
+                }
+            }
+        };
+        MockHttpServletRequest sendfile = new MockHttpServletRequest("GET", "/static/app.js");
+        sendfile.setAttribute("SENDFILE", true);
+        filter.doFilter(sendfile, new MockHttpServletResponse(), staticContent);
+        filter.doFilter(new MockHttpServletRequest("GET", "/favicon.ico"), new MockHttpServletResponse(), staticContent);
+
+        for(ServletResponse response : responsesPassedToChain) {
+            assertTrue("static content should reach the container's own response", response instanceof MockHttpServletResponse);
+        }
+        Histogram getBytes = (Histogram) getMetric("get" + ResponseCodeFilter.METRIC_NAME_LOOKUP_RESPONSE_BYTES_SUFFIX, "requests");
+        assertEquals(2, getBytes.count());
+        assertEquals(4096.0, getBytes.max(), 0.0);
+        assertEquals(2048.0, getBytes.min(), 0.0);
+
+        // any other path is still wrapped, and counted as it is written
+        filter.doFilter(new MockHttpServletRequest("GET", "/static.html"), new MockHttpServletResponse(), staticContent);
+        assertTrue(responsesPassedToChain.get(2) instanceof StatusExposingServletResponse);
+    }
+
+    @Test
+    public void testOutputStreamCanBeLeftUnwrappedForNonBlockingIo() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        StatusExposingServletResponse unwrapped = new StatusExposingServletResponse(response, true, true, false);
+        assertSame(response.getOutputStream(), unwrapped.getOutputStream());
+        assertTrue(unwrapped.isOutputStreamUnwrapped());
+        assertEquals("bytes written to an unwrapped stream are not counted, rather than counted as none",
+                -1, unwrapped.getBytesWritten());
+
+        StatusExposingServletResponse wrapped = new StatusExposingServletResponse(response, true, true, true);
+        CountingServletOutputStream counting = (CountingServletOutputStream) wrapped.getOutputStream();
+        // the servlet 3.0 api has no non-blocking io, so writes never block on readiness
+        assertFalse(CountingServletOutputStream.isNonBlockingIoAvailable());
+        assertTrue(counting.isReady());
+    }
+}
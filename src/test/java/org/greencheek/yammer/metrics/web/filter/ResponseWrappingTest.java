@@ -0,0 +1,79 @@
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.mock.web.*;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that the response is only wrapped on containers that do not expose the response status
+ */
+public class ResponseWrappingTest {
+
+    private ResponseCodeFilter filter;
+
+    @After
+    public void tearDown() {
+        filter.destroy();
+    }
+
+    private ServletResponse filterRequest(MockServletContext context) throws Exception {
+        filter = new ResponseCodeFilter();
+        filter.init(new MockFilterConfig(context));
+
+        final ServletResponse[] responsePassedToChain = new ServletResponse[1];
+        MockFilterChain chain = new MockFilterChain() {
+            @Override
+            public void doFilter(ServletRequest req, ServletResponse res) {
+                responsePassedToChain[0] = res;
+                ((HttpServletResponse) res).setStatus(HttpServletResponse.SC_NOT_FOUND);
+            }
+        };
+
+        filter.doFilter(new MockHttpServletRequest("GET", "/"), new MockHttpServletResponse(), chain);
+
+        Meter fourXX = (Meter) Metrics.defaultRegistry().allMetrics().get(new MetricName(filter.monitoringGroupName,
+                filter.monitoringTypeName, ResponseCodeFilter.METRIC_NAME_LOOKUP_4XX_RESPONSES, "responses"));
+        assertEquals("one 4xx response should have been recorded", 1, fourXX.count());
+
+        return responsePassedToChain[0];
+    }
+
+    @Test
+    public void testResponseIsNotWrappedOnServlet3Container() throws Exception {
+        MockServletContext servlet3Context = new MockServletContext() {
+            @Override
+            public int getMajorVersion() {
+                return 3;
+            }
+        };
+
+        ServletResponse response = filterRequest(servlet3Context);
+
+        assertTrue("status should be read from the response", filter.isResponseStatusAvailable());
+        assertTrue("container's response should be passed down the chain", response instanceof MockHttpServletResponse);
+    }
+
+    @Test
+    public void testResponseIsWrappedOnServlet25Container() throws Exception {
+        MockServletContext servlet25Context = new MockServletContext() {
+            @Override
+            public int getMajorVersion() {
+                return 2;
+            }
+        };
+
+        ServletResponse response = filterRequest(servlet25Context);
+
+        assertFalse("status should be captured by wrapping the response", filter.isResponseStatusAvailable());
+        assertTrue("wrapped response should be passed down the chain", response instanceof StatusExposingServletResponse);
+    }
+}
@@ -0,0 +1,227 @@
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Timer;
+import org.junit.Test;
+import org.springframework.mock.web.*;
+
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the per route metrics, and that the number of routes and cached paths are bounded
+ */
+public class RouteMetricsTest {
+
+    private static final RouteMetrics.RouteFactory ROUTE_FACTORY = new RouteMetrics.RouteFactory() {
+        @Override
+        public RouteMetrics.Route createRoute(String template) {
+            return new RouteMetrics.Route(template, null, null);
+        }
+
+        @Override
+        public void removeRoute(RouteMetrics.Route route) {
+        }
+    };
+
+    private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(600);
+
+    private static RouteMetrics routeMetrics(int maxRoutes, int maxCachedPaths) {
+        return new RouteMetrics(new RouteNormaliser(), ROUTE_FACTORY, maxRoutes, maxCachedPaths, IDLE_NANOS, Clock.defaultClock());
+    }
+
+    private MockHttpServletRequest request(String uri) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", uri);
+        request.setContextPath("/app");
+        return request;
+    }
+
+    @Test
+    public void testRouteIsDerivedByCollapsingIdsAndUuids() {
+        RouteNormaliser normaliser = new RouteNormaliser();
+
+        assertEquals("/users/{id}/orders/{id}", normaliser.normalise("/users/123/orders/45"));
+        assertEquals("/sessions/{uuid}", normaliser.normalise("/sessions/" + UUID.randomUUID()));
+        assertEquals("/users/{id}", normaliser.normalise("/users/123;jsessionid=abc"));
+        assertEquals("/users/me", normaliser.normalise("/users/me"));
+        assertEquals("/", normaliser.normalise("/"));
+    }
+
+    @Test
+    public void testConfiguredTemplatesAreMatchedFirst() {
+        RouteNormaliser normaliser = new RouteNormaliser(Arrays.asList("/users/{name}/orders", "/static/*"));
+
+        assertEquals("/users/{name}/orders", normaliser.normalise("/users/bob/orders"));
+        assertEquals("/static/*", normaliser.normalise("/static/css/site.css"));
+        assertEquals("/users/bob/orders/{id}", normaliser.normalise("/users/bob/orders/1"));
+    }
+
+    @Test
+    public void testSamePathIsCachedAndContextPathIsRemoved() {
+        RouteMetrics routes = routeMetrics(10, 10);
+
+        RouteMetrics.Route route = routes.getRoute(request("/app/users/1"));
+
+        assertEquals("/users/{id}", route.getTemplate());
+        assertSame(route, routes.getRoute(request("/app/users/1")));
+        assertSame(route, routes.getRoute(request("/app/users/2")));
+        assertEquals(1, routes.getNumberOfRoutes());
+        assertEquals(2, routes.getNumberOfCachedPaths());
+    }
+
+    @Test
+    public void testNewRoutesOverflowOnceTheLimitIsReached() {
+        RouteMetrics routes = routeMetrics(2, 10);
+
+        assertEquals("/a", routes.getRoute(request("/app/a")).getTemplate());
+        assertEquals("/b", routes.getRoute(request("/app/b")).getTemplate());
+        assertSame(routes.getOverflowRoute(), routes.getRoute(request("/app/c")));
+        assertEquals("/a", routes.getRoute(request("/app/a/")).getTemplate());
+        assertEquals(2, routes.getNumberOfRoutes());
+    }
+
+    @Test
+    public void testIdleRoutesAreEvictedForNewRoutes() {
+        final List<String> removed = new ArrayList<String>();
+        MovableClock clock = new MovableClock();
+        RouteMetrics routes = new RouteMetrics(new RouteNormaliser(), new RouteMetrics.RouteFactory() {
+            @Override
+            public RouteMetrics.Route createRoute(String template) {
+                return new RouteMetrics.Route(template, null, null);
+            }
+
+            @Override
+            public void removeRoute(RouteMetrics.Route route) {
+                removed.add(route.getTemplate());
+            }
+        }, 2, 10, IDLE_NANOS, clock);
+
+        RouteMetrics.Route scanned = routes.getRoute(request("/app/wp-login.php"));
+        RouteMetrics.Route users = routes.getRoute(request("/app/users/1"));
+        assertSame(routes.getOverflowRoute(), routes.getRoute(request("/app/orders/1")));
+
+        // the first sweep only gives the routes their second chance
+        clock.now += IDLE_NANOS;
+        assertSame(routes.getOverflowRoute(), routes.getRoute(request("/app/orders/2")));
+        assertTrue(removed.isEmpty());
+
+        // then the route that was not used since is evicted, for the path that had overflowed
+        routes.getRoute(request("/app/users/1"));
+        clock.now += IDLE_NANOS;
+        RouteMetrics.Route orders = routes.getRoute(request("/app/orders/1"));
+        assertEquals("/orders/{id}", orders.getTemplate());
+        assertEquals(Arrays.asList("/wp-login.php"), removed);
+        assertEquals("the evicted route's id is reused", scanned.getId(), orders.getId());
+        assertSame(orders, routes.getRoute(orders.getId()));
+        assertSame(users, routes.getRoute(request("/app/users/1")));
+        assertEquals(2, routes.getNumberOfRoutes());
+
+        // and a path cached against the evicted route is looked up again
+        assertSame(routes.getOverflowRoute(), routes.getRoute(request("/app/wp-login.php")));
+    }
+
+    @Test
+    public void testCachedPathsAreBounded() {
+        RouteMetrics routes = routeMetrics(10, 5);
+
+        for(int i = 0; i < 100; i++) {
+            assertEquals("/users/{id}", routes.getRoute(request("/app/users/" + i)).getTemplate());
+        }
+
+        assertTrue("cached paths should be bounded", routes.getNumberOfCachedPaths() <= 5);
+        assertEquals(1, routes.getNumberOfRoutes());
+    }
+
+    @Test
+    public void testFullCacheIsSweptBelowItsSize() {
+        RouteMetrics routes = routeMetrics(10, 16);
+
+        for(int i = 0; i < 17; i++) {
+            routes.getRoute(request("/app/users/" + i));
+        }
+        assertEquals("a sweep should evict down to 7/8ths of the cache", 14, routes.getNumberOfCachedPaths());
+
+        // so the next miss does not sweep
+        routes.getRoute(request("/app/users/17"));
+        assertEquals(15, routes.getNumberOfCachedPaths());
+    }
+
+    @Test
+    public void testFilterRecordsRouteMetrics() throws Exception {
+        MockFilterConfig config = new MockFilterConfig(new MockServletContext());
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_ROUTE_METRICS, "true");
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_ROUTE_PATTERNS, "/orders/{order}");
+
+        ResponseCodeFilter filter = new ResponseCodeFilter();
+        filter.init(config);
+        try {
+            MockFilterChain notFound = new MockFilterChain() {
+                @Override
+                public void doFilter(ServletRequest req, ServletResponse res) {
+                    ((HttpServletResponse) res).setStatus(HttpServletResponse.SC_NOT_FOUND);
+                }
+            };
+            filter.doFilter(request("/app/orders/abc"), new MockHttpServletResponse(), notFound);
+            filter.doFilter(request("/app/orders/def"), new MockHttpServletResponse(), notFound);
+
+            Timer timer = (Timer) Metrics.defaultRegistry().allMetrics().get(new MetricName(filter.monitoringGroupName,
+                    filter.monitoringTypeName, "/orders/{order}", ResponseCodeFilter.METRIC_SCOPE_ROUTE_REQUESTS));
+            Meter fourXX = (Meter) Metrics.defaultRegistry().allMetrics().get(new MetricName(filter.monitoringGroupName,
+                    filter.monitoringTypeName, "/orders/{order}.4xx-responses", ResponseCodeFilter.METRIC_SCOPE_ROUTE_RESPONSES));
+
+            assertEquals("two requests should have been timed for the route", 2, timer.count());
+            assertEquals("two 4xx responses should have been recorded for the route", 2, fourXX.count());
+        } finally {
+            filter.destroy();
+        }
+    }
+
+    @Test
+    public void testFilterRemovesTheMetricsOfEvictedRoutes() throws Exception {
+        MockFilterConfig config = new MockFilterConfig(new MockServletContext());
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_ROUTE_METRICS, "true");
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_ROUTE_MAX_ROUTES, "1");
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_ROUTE_IDLE_SECONDS, "0");
+
+        ResponseCodeFilter filter = new ResponseCodeFilter();
+        filter.init(config);
+        try {
+            MetricName scannedTimer = new MetricName(filter.monitoringGroupName, filter.monitoringTypeName,
+                    "/wp-login.php", ResponseCodeFilter.METRIC_SCOPE_ROUTE_REQUESTS);
+            filter.doFilter(request("/app/wp-login.php"), new MockHttpServletResponse(), new MockFilterChain());
+            assertNotNull(Metrics.defaultRegistry().allMetrics().get(scannedTimer));
+
+            // the first sweep gives the route its second chance, the next evicts it
+            filter.doFilter(request("/app/users/1"), new MockHttpServletResponse(), new MockFilterChain());
+            filter.doFilter(request("/app/orders/1"), new MockHttpServletResponse(), new MockFilterChain());
+
+            assertNull(Metrics.defaultRegistry().allMetrics().get(scannedTimer));
+            assertNull(Metrics.defaultRegistry().allMetrics().get(new MetricName(filter.monitoringGroupName,
+                    filter.monitoringTypeName, "/wp-login.php.4xx-responses", ResponseCodeFilter.METRIC_SCOPE_ROUTE_RESPONSES)));
+            assertNotNull(Metrics.defaultRegistry().allMetrics().get(new MetricName(filter.monitoringGroupName,
+                    filter.monitoringTypeName, "/orders/{id}", ResponseCodeFilter.METRIC_SCOPE_ROUTE_REQUESTS)));
+        } finally {
+            filter.destroy();
+        }
+    }
+
+    private static class MovableClock extends Clock {
+        long now = 0;
+
+        @Override
+        public long tick() {
+            return now;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package org.greencheek.yammer.metrics.web.filter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.*;
+
+import com.yammer.metrics.core.Metered;
+import org.greencheek.yammer.metrics.web.filter.utils.StatusChains;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the counters are published to the shared file in its documented layout
+ */
+public class SharedCountersFileTest {
+
+    private File file;
+    private ResponseCodeFilter filter;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("shared-counters", ".bin");
+
+        MockFilterConfig config = new MockFilterConfig(new MockServletContext());
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_SHARED_COUNTERS_FILE, file.getPath());
+        // only the final publish, when the filter is destroyed
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_SHARED_COUNTERS_INTERVAL_MILLIS, "3600000");
+
+        filter = new ResponseCodeFilter();
+        filter.init(config);
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private void send(String method, int status) {
+        StatusChains.send(filter, method, "http://localhost:9090/", status);
+    }
+
+    private ByteBuffer read() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static String methodName(ByteBuffer file, int index) {
+        StringBuilder name = new StringBuilder();
+        int offset = SharedCountersFile.HEADER_SIZE + (index * SharedCountersFile.METHOD_NAME_SIZE);
+        for(int i = 0; i < SharedCountersFile.METHOD_NAME_SIZE && file.get(offset + i) != 0; i++) {
+            name.append((char) file.get(offset + i));
+        }
+        return name.toString();
+    }
+
+    @Test
+    public void testCountersArePublishedInTheDocumentedLayout() throws Exception {
+        send("GET", 200);
+        send("GET", 204);
+        send("POST", 500);
+        filter.destroy();
+
+        ByteBuffer file = read();
+        assertEquals(SharedCountersFile.MAGIC, file.getInt(SharedCountersFile.MAGIC_OFFSET));
+        assertEquals(SharedCountersFile.VERSION, file.getInt(SharedCountersFile.VERSION_OFFSET));
+        assertEquals("the sequence should be even once published", 0, file.getLong(SharedCountersFile.SEQUENCE_OFFSET) % 2);
+
+        int methods = file.getInt(SharedCountersFile.METHOD_COUNT_OFFSET);
+        int responseTypes = file.getInt(SharedCountersFile.RESPONSE_TYPE_COUNT_OFFSET);
+        int buckets = file.getInt(SharedCountersFile.BUCKET_COUNT_OFFSET);
+        assertEquals(6, responseTypes);
+        assertEquals(SharedCountersFile.LATENCY_BUCKET_BOUNDS.length, buckets);
+
+        int get = -1;
+        int post = -1;
+        for(int i = 0; i < methods; i++) {
+            if(methodName(file, i).equals("get")) get = i;
+            if(methodName(file, i).equals("post")) post = i;
+        }
+        assertEquals("other", methodName(file, methods - 1));
+
+        int bounds = SharedCountersFile.HEADER_SIZE + (methods * SharedCountersFile.METHOD_NAME_SIZE);
+        assertEquals(Long.MAX_VALUE, file.getLong(bounds + ((buckets - 1) * 8)));
+
+        int responseCounts = bounds + (buckets * 8);
+        int methodCounts = responseCounts + (responseTypes * 8);
+        int latencyCounts = methodCounts + (methods * 8);
+        assertEquals("2xx", 2, file.getLong(responseCounts + 8));
+        assertEquals("5xx", 1, file.getLong(responseCounts + (4 * 8)));
+        assertEquals(2, file.getLong(methodCounts + (get * 8)));
+        assertEquals(1, file.getLong(methodCounts + (post * 8)));
+
+        long getLatencies = 0;
+        for(int i = 0; i < buckets; i++) {
+            getLatencies += file.getLong(latencyCounts + (((get * buckets) + i) * 8));
+        }
+        assertEquals(2, getLatencies);
+        assertEquals(latencyCounts + (methods * buckets * 8), file.limit());
+    }
+
+    @Test
+    public void testReaderOnlySeesConsistentCounters() throws Exception {
+        filter.destroy();
+        // every counter is the number of publishes so far, so a consistent read has them all equal
+        final AtomicLong generation = new AtomicLong();
+        final Metered[] responses = meters(6, generation);
+        final Metered[] methods = meters(2, generation);
+        final List<String> methodNames = Arrays.asList("GET", "other");
+        final SharedCountersFile shared = new SharedCountersFile(file, methodNames, responses, methods,
+                Long.MAX_VALUE, "shared-counters-test");
+
+        final MappedByteBuffer mapped = map();
+        final int counters = SharedCountersFile.HEADER_SIZE + (methodNames.size() * SharedCountersFile.METHOD_NAME_SIZE)
+                + (SharedCountersFile.LATENCY_BUCKET_BOUNDS.length * 8);
+        final int values = responses.length + methods.length + 1;
+        final AtomicBoolean publishing = new AtomicBoolean(true);
+        final AtomicLong consistentReads = new AtomicLong();
+        final AtomicLong inconsistentReads = new AtomicLong();
+        final AtomicLong fence = new AtomicLong();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while(publishing.get()) {
+                    long before = mapped.getLong(SharedCountersFile.SEQUENCE_OFFSET);
+                    if(before % 2 != 0) {
+                        continue;
+                    }
+                    // full fences, so the counter reads stay between the sequence reads
+                    fence.incrementAndGet();
+                    long first = mapped.getLong(counters);
+                    boolean equal = true;
+                    for(int i = 1; i < values; i++) {
+                        equal &= mapped.getLong(counters + (i * 8)) == first;
+                    }
+                    fence.incrementAndGet();
+                    if(mapped.getLong(SharedCountersFile.SEQUENCE_OFFSET) == before) {
+                        if(equal) {
+                            consistentReads.incrementAndGet();
+                        } else {
+                            inconsistentReads.incrementAndGet();
+                        }
+                    }
+                }
+            }
+        });
+        reader.start();
+
+        final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+        while(System.nanoTime() - end < 0) {
+            generation.incrementAndGet();
+            // the first latency bucket of the first method, the last value read
+            shared.recordLatency(0, 0);
+            shared.publish();
+        }
+        publishing.set(false);
+        reader.join();
+        shared.stop();
+
+        assertEquals("the reader saw counters from different publishes", 0, inconsistentReads.get());
+        assertTrue("the reader should have read the counters", consistentReads.get() > 0);
+    }
+
+    @Test
+    public void testFileIsReplacedNotTruncatedUnderAReader() throws Exception {
+        filter.destroy();
+        MappedByteBuffer previous = map();
+        long published = previous.getLong(SharedCountersFile.SEQUENCE_OFFSET);
+
+        filter = new ResponseCodeFilter();
+        MockFilterConfig config = new MockFilterConfig(new MockServletContext());
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_SHARED_COUNTERS_FILE, file.getPath());
+        filter.init(config);
+        try {
+            // the previous mapping is still readable, and unchanged
+            assertEquals(SharedCountersFile.MAGIC, previous.getInt(SharedCountersFile.MAGIC_OFFSET));
+            assertEquals(published, previous.getLong(SharedCountersFile.SEQUENCE_OFFSET));
+            assertEquals(SharedCountersFile.MAGIC, read().getInt(SharedCountersFile.MAGIC_OFFSET));
+            assertEquals("only the file remains in its directory", 1,
+                    file.getParentFile().listFiles(new FilenameFilter() {
+                        @Override
+                        public boolean accept(File dir, String name) {
+                            return name.contains(file.getName());
+                        }
+                    }).length);
+        } finally {
+            filter.destroy();
+        }
+    }
+
+    private MappedByteBuffer map() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            return mapped;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static Metered[] meters(int count, final AtomicLong value) {
+        Metered[] meters = new Metered[count];
+        for(int i = 0; i < count; i++) {
+            meters[i] = (Metered) Proxy.newProxyInstance(SharedCountersFileTest.class.getClassLoader(), new Class[]{Metered.class},
+                    new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            return method.getName().equals("count") ? value.get() : null;
+                        }
+                    });
+        }
+        return meters;
+    }
+}
@@ -0,0 +1,139 @@
+package org.greencheek.yammer.metrics.web.filter;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.mock.web.*;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.greencheek.yammer.metrics.web.filter.utils.AsyncContexts.asyncContext;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the slowest requests of each interval are kept, for sync and async requests, and listed by the servlet
+ */
+public class SlowestRequestsTest {
+
+    private ResponseCodeFilter filter;
+    private SlowestRequests slowestRequests;
+
+    @After
+    public void tearDown() {
+        if(filter != null) {
+            filter.destroy();
+        }
+        if(slowestRequests != null) {
+            slowestRequests.stop();
+        }
+    }
+
+    private static MockHttpServletRequest request(String method, String path) {
+        MockHttpServletRequest request = new MockHttpServletRequest(method, path);
+        request.setServletPath(path);
+        return request;
+    }
+
+    @Test
+    public void testOnlyTheSlowestAreKeptPerInterval() {
+        slowestRequests = new SlowestRequests(3, TimeUnit.HOURS.toNanos(1), "slowest-requests-test");
+        for(int i = 1; i <= 100; i++) {
+            // spread the slowest through the interval
+            int duration = (i * 37) % 101;
+            slowestRequests.record(request("GET", "/" + duration), 200, duration);
+        }
+
+        List<SlowestRequests.SlowRequest> slowest = slowestRequests.getCurrentInterval().getRequests();
+        assertEquals(3, slowest.size());
+        assertEquals(100, slowest.get(0).getDurationNanos());
+        assertEquals("/100", slowest.get(0).getPath());
+        assertEquals(99, slowest.get(1).getDurationNanos());
+        assertEquals(98, slowest.get(2).getDurationNanos());
+
+        slowestRequests.endInterval();
+        assertEquals(3, slowestRequests.getLastInterval().getRequests().size());
+        assertTrue(slowestRequests.getCurrentInterval().getRequests().isEmpty());
+
+        // the new interval keeps requests faster than the last interval's slowest
+        slowestRequests.record(request("POST", "/fast"), 201, 1);
+        assertEquals("/fast", slowestRequests.getCurrentInterval().getRequests().get(0).getPath());
+    }
+
+    @Test
+    public void testIntervalThreadEndsTheInterval() throws Exception {
+        slowestRequests = new SlowestRequests(3, TimeUnit.MILLISECONDS.toNanos(20), "slowest-requests-test");
+        slowestRequests.start();
+        slowestRequests.record(request("GET", "/slow"), 200, 10);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while(slowestRequests.getLastInterval().getRequests().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals("/slow", slowestRequests.getLastInterval().getRequests().get(0).getPath());
+    }
+
+    private MockFilterConfig config(MockServletContext context) {
+        MockFilterConfig config = new MockFilterConfig(context, "slowest-filter");
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_SLOWEST_REQUESTS, "true");
+        return config;
+    }
+
+    @Test
+    public void testRequestsAreListedByTheServlet() throws Exception {
+        MockServletContext context = new MockServletContext();
+        filter = new ResponseCodeFilter();
+        filter.init(config(context));
+
+        filter.doFilter(request("GET", "/sync"), new MockHttpServletResponse(), new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) {
+                ((HttpServletResponse) response).setStatus(503);
+            }
+        });
+
+        MockServletConfig servletConfig = new MockServletConfig(context);
+        servletConfig.addInitParameter(SlowestRequestsServlet.CONFIG_PARAM_FILTER_NAME, "slowest-filter");
+        SlowestRequestsServlet servlet = new SlowestRequestsServlet();
+        servlet.init(servletConfig);
+        MockHttpServletRequest listRequest = new MockHttpServletRequest("GET", "/slowest");
+        listRequest.setParameter(SlowestRequestsServlet.PARAM_INTERVAL, SlowestRequestsServlet.INTERVAL_CURRENT);
+        MockHttpServletResponse listResponse = new MockHttpServletResponse();
+        servlet.service(listRequest, listResponse);
+
+        String listing = listResponse.getContentAsString();
+        assertTrue(listing, listing.startsWith("# interval "));
+        assertTrue(listing, listing.contains("\tGET\t503\t"));
+        assertTrue(listing, listing.endsWith("\t/sync\n"));
+
+        filter.destroy();
+        filter = null;
+        MockHttpServletResponse destroyedResponse = new MockHttpServletResponse();
+        servlet.service(new MockHttpServletRequest("GET", "/slowest"), destroyedResponse);
+        assertEquals(404, destroyedResponse.getStatus());
+    }
+
+    @Test
+    public void testAsyncRequestsAreKeptOnCompletion() throws Exception {
+        AsyncResponseCodeFilter asyncFilter = new AsyncResponseCodeFilter();
+        filter = asyncFilter;
+        filter.init(config(new MockServletContext()));
+
+        MockHttpServletRequest asyncRequest = request("PUT", "/async");
+        MockHttpServletResponse asyncResponse = new MockHttpServletResponse();
+        asyncResponse.setStatus(202);
+        AsyncResponseCodeFilter.AsyncMetricsRequestResponseListener listener =
+                asyncFilter.new AsyncMetricsRequestResponseListener(asyncRequest, asyncResponse, filter.startTiming(), System.nanoTime());
+        listener.onComplete(new AsyncEvent(asyncContext(asyncRequest, asyncResponse)));
+
+        SlowestRequests.SlowRequest slowest = filter.getSlowestRequests().getCurrentInterval().getRequests().get(0);
+        assertEquals("PUT", slowest.getMethod());
+        assertEquals("/async", slowest.getPath());
+        assertEquals(202, slowest.getStatus());
+    }
+}
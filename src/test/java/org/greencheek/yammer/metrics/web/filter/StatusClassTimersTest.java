@@ -0,0 +1,59 @@
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Timer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.*;
+import org.greencheek.yammer.metrics.web.filter.utils.StatusChains;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests that requests are timed per request method and response type
+ */
+public class StatusClassTimersTest {
+
+    private ResponseCodeFilter filter;
+
+    @Before
+    public void setUp() throws Exception {
+        MockFilterConfig config = new MockFilterConfig(new MockServletContext());
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_STATUS_CLASS_TIMERS, "true");
+
+        filter = new ResponseCodeFilter();
+        filter.init(config);
+    }
+
+    @After
+    public void tearDown() {
+        filter.destroy();
+    }
+
+    private void send(String method, int status) {
+        StatusChains.send(filter, method, "http://localhost:9090/", status);
+    }
+
+    private Timer timer(String name) {
+        return (Timer) Metrics.defaultRegistry().allMetrics().get(new MetricName(filter.monitoringGroupName,
+                filter.monitoringTypeName, name, "requests"));
+    }
+
+    @Test
+    public void testRequestsAreTimedPerMethodAndResponseType() {
+        send("GET", 200);
+        send("GET", 204);
+        send("GET", 503);
+        send("POST", 404);
+        send("PATCH", 200);
+
+        assertEquals(3, timer(ResponseCodeFilter.METRIC_NAME_LOOKUP_GET_REQUEST).count());
+        assertEquals(2, timer("get-2xx-requests").count());
+        assertEquals(1, timer("get-5xx-requests").count());
+        assertEquals(0, timer("get-4xx-requests").count());
+        assertEquals(1, timer("post-4xx-requests").count());
+        assertEquals(1, timer("other-2xx-requests").count());
+    }
+}
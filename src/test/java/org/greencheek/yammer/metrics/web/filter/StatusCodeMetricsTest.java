@@ -0,0 +1,72 @@
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Metered;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.*;
+import org.greencheek.yammer.metrics.web.filter.utils.StatusChains;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests that individual status codes are counted, and only registered once seen
+ */
+public class StatusCodeMetricsTest {
+
+    private ResponseCodeFilter filter;
+
+    @Before
+    public void setUp() throws Exception {
+        MockFilterConfig config = new MockFilterConfig(new MockServletContext());
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_STATUS_CODE_METRICS, "true");
+
+        filter = new ResponseCodeFilter();
+        filter.init(config);
+    }
+
+    @After
+    public void tearDown() {
+        filter.destroy();
+    }
+
+    private void sendStatus(int status) {
+        StatusChains.send(filter, "GET", "http://localhost:9090/", status);
+    }
+
+    private Metric getStatusCodeMetric(int status) {
+        return Metrics.defaultRegistry().allMetrics().get(new MetricName(filter.monitoringGroupName,
+                filter.monitoringTypeName, status + ResponseCodeFilter.METRIC_NAME_LOOKUP_STATUS_CODE_RESPONSES_SUFFIX, "responses"));
+    }
+
+    @Test
+    public void testIndividualStatusCodesAreCounted() {
+        sendStatus(404);
+        sendStatus(429);
+        sendStatus(429);
+        sendStatus(503);
+
+        assertEquals("one 404 should have been recorded", 1, ((Metered) getStatusCodeMetric(404)).count());
+        assertEquals("two 429s should have been recorded", 2, ((Metered) getStatusCodeMetric(429)).count());
+        assertEquals("one 503 should have been recorded", 1, ((Metered) getStatusCodeMetric(503)).count());
+    }
+
+    @Test
+    public void testUnseenStatusCodesAreNotRegistered() {
+        sendStatus(200);
+
+        assertEquals("one 200 should have been recorded", 1, ((Metered) getStatusCodeMetric(200)).count());
+        assertNull("502 has not been seen", getStatusCodeMetric(502));
+    }
+
+    @Test
+    public void testStatusCodesOutsideOfRangeAreIgnored() {
+        sendStatus(600);
+
+        assertNull("600 is not a status code that is counted", getStatusCodeMetric(600));
+    }
+}
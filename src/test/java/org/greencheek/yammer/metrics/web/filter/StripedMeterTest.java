@@ -0,0 +1,110 @@
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.*;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the striped meter, and that the filter registers it under the existing metric names
+ */
+public class StripedMeterTest {
+
+    private ScheduledExecutorService tickThread;
+
+    @Before
+    public void setUp() {
+        tickThread = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        tickThread.shutdownNow();
+    }
+
+    @Test
+    public void testConcurrentMarksAreAllCounted() throws Exception {
+        final StripedMeter meter = new StripedMeter(tickThread, "requests", TimeUnit.SECONDS, Clock.defaultClock());
+        final int threads = 8;
+        final int marksPerThread = 10000;
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for(int i=0;i<threads;i++) {
+            new Thread() {
+                public void run() {
+                    for(int j=0;j<marksPerThread;j++) {
+                        meter.mark();
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        assertTrue("mark threads did not finish", done.await(10, TimeUnit.SECONDS));
+        assertEquals("all marks should be counted", threads * marksPerThread, meter.count());
+    }
+
+    @Test
+    public void testTickFoldsCountIntoRates() {
+        StripedMeter meter = new StripedMeter(tickThread, "requests", TimeUnit.SECONDS, Clock.defaultClock());
+        meter.mark(50);
+
+        assertEquals("rates should not move until the meter ticks", 0.0, meter.oneMinuteRate(), 0.0);
+
+        meter.tick();
+
+        // first tick of an EWMA is the number of events over the 5 second interval
+        assertEquals(10.0, meter.oneMinuteRate(), 0.0001);
+        assertEquals(10.0, meter.fiveMinuteRate(), 0.0001);
+        assertEquals(10.0, meter.fifteenMinuteRate(), 0.0001);
+
+        meter.tick();
+        assertTrue("no events in the last tick should decay the rate", meter.oneMinuteRate() < 10.0);
+    }
+
+    @Test
+    public void testFilterRegistersStripedMetersUnderExistingNames() throws Exception {
+        MockFilterConfig config = new MockFilterConfig(new MockServletContext());
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_METER_TYPE, ResponseCodeFilter.METER_TYPE_STRIPED);
+
+        ResponseCodeFilter filter = new ResponseCodeFilter();
+        filter.init(config);
+        try {
+            FilterChain chain = new MockFilterChain() {
+                @Override
+                public void doFilter(ServletRequest req, ServletResponse res) {
+                    ((HttpServletResponse)res).setStatus(HttpServletResponse.SC_OK);
+                }
+            };
+            filter.doFilter(new MockHttpServletRequest("GET", "/"), new MockHttpServletResponse(), chain);
+
+            Metric twoXX = Metrics.defaultRegistry().allMetrics().get(
+                    new MetricName(filter.monitoringGroupName, filter.monitoringTypeName, ResponseCodeFilter.METRIC_NAME_LOOKUP_2XX_RESPONSES, "responses"));
+            Metric requests = Metrics.defaultRegistry().allMetrics().get(
+                    new MetricName(filter.monitoringGroupName, filter.monitoringTypeName, ResponseCodeFilter.METRIC_NAME_LOOKUP_REQUESTS_PER_SECOND, "requests"));
+
+            assertTrue("2xx meter should be striped", twoXX instanceof StripedMeter);
+            assertTrue("requestsPerSecond meter should be striped", requests instanceof StripedMeter);
+            assertEquals(1, ((StripedMeter) twoXX).count());
+            assertEquals(1, ((StripedMeter) requests).count());
+        } finally {
+            filter.destroy();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+import org.springframework.mock.web.*;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the cpu time and allocation of requests are recorded per request method, and turned off when unsupported
+ */
+public class ThreadResourceMetricsTest {
+
+    private static final int ALLOCATION = 1024 * 1024;
+
+    private ResponseCodeFilter filter;
+
+    // stops the allocation being optimised away
+    private volatile byte[] allocated;
+
+    @After
+    public void tearDown() {
+        filter.destroy();
+    }
+
+    private Metric getMetric(String name) {
+        return Metrics.defaultRegistry().allMetrics().get(new MetricName(filter.monitoringGroupName,
+                filter.monitoringTypeName, name, "requests"));
+    }
+
+    @Test
+    public void testAllocationIsRecordedPerRequestMethod() throws Exception {
+        Assume.assumeTrue(new ThreadResourceMeter().isAllocationSupported());
+
+        MockFilterConfig config = new MockFilterConfig(new MockServletContext());
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_THREAD_RESOURCE_METRICS, "true");
+        filter = new ResponseCodeFilter();
+        filter.init(config);
+
+        filter.doFilter(new MockHttpServletRequest("POST", "/"), new MockHttpServletResponse(), new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) {
+                allocated = new byte[ALLOCATION];
+            }
+        });
+
+        Histogram allocatedBytes = (Histogram) getMetric("post" + ResponseCodeFilter.METRIC_NAME_LOOKUP_THREAD_ALLOCATED_BYTES_SUFFIX);
+        assertEquals(1, allocatedBytes.count());
+        assertTrue("the request's allocation should be recorded", allocatedBytes.max() >= ALLOCATION);
+        assertEquals(1, ((Histogram) getMetric(ResponseCodeFilter.METRIC_NAME_LOOKUP_THREAD_RESOURCE_OVERHEAD)).count());
+    }
+
+    @Test
+    public void testUnsupportedJvmRegistersNothing() throws Exception {
+        filter = new ResponseCodeFilter();
+        filter.init(new MockFilterConfig(new MockServletContext()));
+
+        ThreadResourceMeter unsupported = new ThreadResourceMeter(unsupportedThreadMXBean());
+        assertFalse(unsupported.isSupported());
+        filter.createThreadResourceMetrics(unsupported);
+        filter.doFilter(new MockHttpServletRequest("GET", "/"), new MockHttpServletResponse(), new MockFilterChain());
+
+        assertNull(getMetric("get" + ResponseCodeFilter.METRIC_NAME_LOOKUP_THREAD_CPU_NANOS_SUFFIX));
+        assertNull(getMetric(ResponseCodeFilter.METRIC_NAME_LOOKUP_THREAD_RESOURCE_OVERHEAD));
+    }
+
+    private static ThreadMXBean unsupportedThreadMXBean() {
+        return (ThreadMXBean) Proxy.newProxyInstance(ThreadMXBean.class.getClassLoader(), new Class[]{ThreadMXBean.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if(method.getReturnType() == boolean.class) {
+                            return false;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
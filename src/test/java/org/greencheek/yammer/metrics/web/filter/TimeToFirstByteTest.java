@@ -0,0 +1,120 @@
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Timer;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.mock.web.*;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.io.IOException;
+
+import static org.greencheek.yammer.metrics.web.filter.utils.AsyncContexts.asyncContext;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the time to the first byte of the response is timed per request method, for sync and async requests
+ */
+public class TimeToFirstByteTest {
+
+    private static final long WORK_AFTER_FIRST_BYTE_MILLIS = 50;
+
+    private ResponseCodeFilter filter;
+
+    @After
+    public void tearDown() {
+        filter.destroy();
+    }
+
+    private MockFilterConfig config() {
+        MockFilterConfig config = new MockFilterConfig(new MockServletContext());
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_TIME_TO_FIRST_BYTE_METRICS, "true");
+        return config;
+    }
+
+    private Timer timer(String name) {
+        return (Timer) Metrics.defaultRegistry().allMetrics().get(new MetricName(filter.monitoringGroupName,
+                filter.monitoringTypeName, name, "requests"));
+    }
+
+    private static void writeThenWork(ServletResponse response) throws IOException {
+        response.getOutputStream().write('a');
+        response.getOutputStream().flush();
+        try {
+            Thread.sleep(WORK_AFTER_FIRST_BYTE_MILLIS);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    public void testFirstByteIsTimedBeforeTheRequestCompletes() throws Exception {
+        filter = new ResponseCodeFilter();
+        filter.init(config());
+
+        filter.doFilter(new MockHttpServletRequest("GET", "/"), new MockHttpServletResponse(), new FilterChain() {
+            @Override
+            public void doFilter(ServletRequest request, ServletResponse response) throws IOException {
+                writeThenWork(response);
+            }
+        });
+
+        Timer firstByte = timer("get" + ResponseCodeFilter.METRIC_NAME_LOOKUP_TIME_TO_FIRST_BYTE_SUFFIX);
+        Timer total = timer(ResponseCodeFilter.METRIC_NAME_LOOKUP_GET_REQUEST);
+        assertEquals(1, firstByte.count());
+        assertTrue("first byte should be well before the end of the request",
+                firstByte.max() <= total.max() - (WORK_AFTER_FIRST_BYTE_MILLIS / 2));
+    }
+
+    @Test
+    public void testEmptyResponseHasItsFirstByteAtTheEnd() throws Exception {
+        filter = new ResponseCodeFilter();
+        filter.init(config());
+
+        filter.doFilter(new MockHttpServletRequest("DELETE", "/"), new MockHttpServletResponse(), new MockFilterChain());
+
+        Timer firstByte = timer("delete" + ResponseCodeFilter.METRIC_NAME_LOOKUP_TIME_TO_FIRST_BYTE_SUFFIX);
+        assertEquals(1, firstByte.count());
+        assertEquals(timer(ResponseCodeFilter.METRIC_NAME_LOOKUP_DELETE_REQUEST).max(), firstByte.max(), 0.0);
+    }
+
+    @Test
+    public void testAsyncFirstByteIsTimedOnCompletion() throws Exception {
+        AsyncResponseCodeFilter asyncFilter = new AsyncResponseCodeFilter();
+        filter = asyncFilter;
+        filter.init(config());
+
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        ServletResponse filteredResponse = filter.wrapResponseIfRequired(response);
+        AsyncResponseCodeFilter.AsyncMetricsRequestResponseListener listener =
+                asyncFilter.new AsyncMetricsRequestResponseListener(request, filteredResponse, filter.startTiming(), System.nanoTime());
+
+        writeThenWork(filteredResponse);
+        listener.onComplete(new AsyncEvent(asyncContext(request, response)));
+
+        Timer firstByte = timer("get" + ResponseCodeFilter.METRIC_NAME_LOOKUP_TIME_TO_FIRST_BYTE_SUFFIX);
+        assertEquals(1, firstByte.count());
+        assertTrue("first byte should be well before the end of the request",
+                firstByte.max() <= timer(ResponseCodeFilter.METRIC_NAME_LOOKUP_GET_REQUEST).max() - (WORK_AFTER_FIRST_BYTE_MILLIS / 2));
+    }
+
+    @Test
+    public void testUnwrappedOutputStreamIsNotTimed() throws Exception {
+        filter = new ResponseCodeFilter();
+        filter.init(config());
+
+        StatusExposingServletResponse response = new StatusExposingServletResponse(new MockHttpServletResponse(),
+                false, true, false);
+        long startTime = filter.startTiming();
+        writeThenWork(response);
+
+        assertEquals("writes through an unwrapped stream are not seen, so the first byte is not timed",
+                ResponseCodeFilter.NOT_TIMED, filter.getTimeToFirstByte(response, startTime, filter.durationSince(startTime)));
+    }
+}
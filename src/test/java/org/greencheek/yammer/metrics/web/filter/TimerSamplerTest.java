@@ -0,0 +1,103 @@
+package org.greencheek.yammer.metrics.web.filter;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Timer;
+import org.junit.Test;
+import org.springframework.mock.web.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that sampling only times some of the requests, whilst the meters still count them all
+ */
+public class TimerSamplerTest {
+
+    @Test
+    public void testFixedSamplesOneInN() {
+        TimerSampler sampler = TimerSampler.fixed(4);
+        int sampled = 0;
+        for(int i = 0; i < 100; i++) {
+            if(sampler.sample()) {
+                sampled++;
+            }
+        }
+        assertEquals(25, sampled);
+        assertEquals(0.25, sampler.getSampleRate(), 0.0);
+    }
+
+    @Test
+    public void testAdaptiveOnlySamplesAboveTheThreshold() {
+        MovableClock clock = new MovableClock();
+        LazyDecayingMeter requests = new LazyDecayingMeter("requests", TimeUnit.SECONDS, clock);
+        TimerSampler sampler = TimerSampler.adaptive(100, requests, clock);
+
+        // 50 requests a second is below the threshold, so all are timed
+        requests.mark(50);
+        clock.now += TimeUnit.SECONDS.toNanos(1);
+        assertTrue(sampler.sample());
+        assertEquals(1, sampler.getInterval());
+
+        // 1000 requests a second is 10 times the threshold
+        requests.mark(1000);
+        clock.now += TimeUnit.SECONDS.toNanos(1);
+        assertTrue(sampler.sample());
+        assertEquals(10, sampler.getInterval());
+        assertEquals(0.1, sampler.getSampleRate(), 0.0);
+
+        // back below the threshold
+        requests.mark(10);
+        clock.now += TimeUnit.SECONDS.toNanos(1);
+        int sampled = 0;
+        for(int i = 0; i < 10; i++) {
+            if(sampler.sample()) {
+                sampled++;
+            }
+        }
+        assertEquals(1, sampler.getInterval());
+        assertTrue(sampled >= 1);
+    }
+
+    @Test
+    public void testFilterCountsEveryRequestButTimesTheSample() throws Exception {
+        MockFilterConfig config = new MockFilterConfig(new MockServletContext());
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_TIMER_SAMPLING, TimerSampler.MODE_FIXED);
+        config.addInitParameter(ResponseCodeFilter.CONFIG_PARAM_TIMER_SAMPLING_INTERVAL, "2");
+
+        ResponseCodeFilter filter = new ResponseCodeFilter();
+        filter.init(config);
+        try {
+            for(int i = 0; i < 4; i++) {
+                filter.doFilter(new MockHttpServletRequest("GET", "/"), new MockHttpServletResponse(), new MockFilterChain());
+            }
+
+            Meter requests = (Meter) Metrics.defaultRegistry().allMetrics().get(
+                    new MetricName(filter.monitoringGroupName, filter.monitoringTypeName, ResponseCodeFilter.METRIC_NAME_LOOKUP_REQUESTS_PER_SECOND, "requests"));
+            Timer get = (Timer) Metrics.defaultRegistry().allMetrics().get(
+                    new MetricName(filter.monitoringGroupName, filter.monitoringTypeName, ResponseCodeFilter.METRIC_NAME_LOOKUP_GET_REQUEST, "requests"));
+            Gauge sampleRate = (Gauge) Metrics.defaultRegistry().allMetrics().get(
+                    new MetricName(filter.monitoringGroupName, filter.monitoringTypeName, ResponseCodeFilter.METRIC_NAME_LOOKUP_TIMER_SAMPLE_RATE, "requests"));
+
+            assertEquals(4, requests.count());
+            assertEquals(2, get.count());
+            assertEquals(0.5, sampleRate.value());
+        } finally {
+            filter.destroy();
+        }
+    }
+
+    private static class MovableClock extends Clock {
+        long now = 0;
+
+        @Override
+        public long tick() {
+            return now;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.greencheek.yammer.metrics.web.filter.utils;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+
+/**
+ * AsyncContexts over mock requests and responses, for the listeners the filter registers on async requests
+ */
+public class AsyncContexts {
+
+    /**
+     * An AsyncContext that returns the given request and response, and ignores any listeners added to it
+     */
+    public static AsyncContext asyncContext(ServletRequest request, ServletResponse response) {
+        return asyncContext(request, response, null);
+    }
+
+    /**
+     * An AsyncContext that returns the given request and response, and adds any listeners
+     * added to it to the given list
+     */
+    public static AsyncContext asyncContext(final ServletRequest request, final ServletResponse response,
+                                            final List<AsyncListener> listeners) {
+        return (AsyncContext) Proxy.newProxyInstance(AsyncContexts.class.getClassLoader(), new Class[]{AsyncContext.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if(method.getName().equals("getRequest")) {
+                            return request;
+                        } else if(method.getName().equals("getResponse")) {
+                            return response;
+                        } else if(method.getName().equals("addListener") && listeners != null) {
+                            listeners.add((AsyncListener) args[0]);
+                        }
+                        return null;
+                    }
+                });
+    }
+}
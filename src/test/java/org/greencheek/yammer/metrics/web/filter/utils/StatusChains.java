@@ -0,0 +1,76 @@
+package org.greencheek.yammer.metrics.web.filter.utils;
+
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Filter chains that respond with the status a request asks for, and sends requests through a filter to them
+ */
+public class StatusChains {
+
+    /**
+     * The request header giving the status the chain responds with
+     */
+    public static final String SEND_STATUS = "SEND_STATUS";
+
+    private static final FilterChain SEND_STATUS_CHAIN = new MockFilterChain() {
+        @Override
+        public void doFilter(ServletRequest request, ServletResponse response) {
+            sendStatus(request, response);
+        }
+    };
+
+    /**
+     * A chain that sets the status given by the request's {@value #SEND_STATUS} header
+     */
+    public static FilterChain sendStatusChain() {
+        return SEND_STATUS_CHAIN;
+    }
+
+    /**
+     * Sets the status given by the request's {@value #SEND_STATUS} header, for chains that also write a body
+     */
+    public static void sendStatus(ServletRequest request, ServletResponse response) {
+        int status = Integer.parseInt(((HttpServletRequest) request).getHeader(SEND_STATUS));
+        ((HttpServletResponse) response).setStatus(status);
+    }
+
+    /**
+     * A request asking for the given status
+     */
+    public static MockHttpServletRequest request(String method, String uri, int status) {
+        MockHttpServletRequest request = new MockHttpServletRequest(method, uri);
+        request.addHeader(SEND_STATUS, String.valueOf(status));
+        return request;
+    }
+
+    /**
+     * Sends a request asking for the given status through the filter to {@link #sendStatusChain()}
+     */
+    public static MockHttpServletResponse send(Filter filter, String method, String uri, int status) {
+        return send(filter, request(method, uri, status), SEND_STATUS_CHAIN);
+    }
+
+    /**
+     * Sends the request through the filter to the chain, failing the test if the filter throws
+     */
+    public static MockHttpServletResponse send(Filter filter, ServletRequest request, FilterChain chain) {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        try {
+            filter.doFilter(request, response, chain);
+        } catch(Exception e) {
+            fail("failed with exception during filter request");
+        }
+        return response;
+    }
+}